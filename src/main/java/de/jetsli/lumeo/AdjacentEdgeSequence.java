@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import de.jetsli.lumeo.util.AdjacencyCache.Adjacency;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the out or in edges of a vertex from its adjacency, e.g. from the adjacency
+ * cache. The edges load their document only if a property is read.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class AdjacentEdgeSequence implements CloseableSequence<Edge> {
+
+    private final LuceneGraph g;
+    private final long vertexId;
+    private final boolean out;
+    private final Adjacency adj;
+    // the accepted label ordinals, all if empty
+    private final int[] labelOrds;
+    private int index = -1;
+    private int next = -1;
+    private Edge last;
+
+    AdjacentEdgeSequence(LuceneGraph g, long vertexId, boolean out, Adjacency adj, int[] labelOrds) {
+        this.g = g;
+        this.vertexId = vertexId;
+        this.out = out;
+        this.adj = adj;
+        this.labelOrds = labelOrds;
+    }
+
+    @Override public boolean hasNext() {
+        if (next > index)
+            return next < adj.size();
+
+        next = index + 1;
+        while (next < adj.size() && !accepts(adj.labels[next])) {
+            next++;
+        }
+        return next < adj.size();
+    }
+
+    @Override public Edge next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        index = next;
+        long neighbor = adj.neighborIds[index];
+        last = new LuceneEdge(g, adj.edgeIds[index], out ? vertexId : neighbor, out ? neighbor : vertexId,
+                adj.labels[index]);
+        return last;
+    }
+
+    private boolean accepts(int label) {
+        if (labelOrds.length == 0)
+            return true;
+        for (int ord : labelOrds) {
+            if (ord == label)
+                return true;
+        }
+        return false;
+    }
+
+    @Override public void remove() {
+        if (last == null)
+            throw new IllegalStateException("next was not called");
+        g.removeEdge(last);
+        last = null;
+    }
+
+    @Override public Iterator<Edge> iterator() {
+        return this;
+    }
+
+    @Override public void close() {
+    }
+}
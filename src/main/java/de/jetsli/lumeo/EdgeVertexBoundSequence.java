@@ -15,7 +15,7 @@
  */
 package de.jetsli.lumeo;
 
-import de.jetsli.lumeo.util.KeywordAnalyzerLowerCase;
+import de.jetsli.lumeo.util.LabelDictionary;
 import de.jetsli.lumeo.util.LuceneHelper;
 import de.jetsli.lumeo.util.TermFilter;
 import org.apache.lucene.index.Term;
@@ -23,6 +23,8 @@ import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.BytesRef;
 
 /**
  *
@@ -35,6 +37,9 @@ public class EdgeVertexBoundSequence extends EdgeFilterSequence {
     private String[] edgeLabels;
     private BooleanFilter edgeFilter;
 
+    /**
+     * @param edgeTypes RawLucene.EDGE_OUT and/or RawLucene.EDGE_IN, both directions if none
+     */
     public EdgeVertexBoundSequence(LuceneGraph g, LuceneVertex vertex, String... edgeTypes) {
         super(g);
         this.vertexDoc = vertex;
@@ -46,27 +51,44 @@ public class EdgeVertexBoundSequence extends EdgeFilterSequence {
         return this;
     }
 
+    /**
+     * A sharded index only needs to search the shards which can contain the edges of the vertex
+     */
+    @Override protected IndexSearcher newSearcher() {
+        if (edgeTypes != null && edgeTypes.length == 1)
+            return g.getRaw().newEdgeSearcher((Long) vertexDoc.getId(), edgeTypes[0]);
+        return super.newSearcher();
+    }
+
     @Override public Filter getBaseFilter() {
         if (edgeFilter == null) {
             // 1. restrict to edges only
             edgeFilter = new BooleanFilter();
             edgeFilter.add(super.getBaseFilter(), Occur.MUST);
 
-            // 2. restrict to in or out edges
-            if (edgeTypes != null) {
-                if (edgeTypes.length == 1) {
-                    String vertexField = RawLucene.getVertexFieldForEdgeType(edgeTypes[0]);
-                    edgeFilter.add(new TermFilter(vertexField,
-                            LuceneHelper.newRefFromLong((Long) vertexDoc.getId())), Occur.MUST);
-                }
-                // no restriction as both types are accepted
+            // 2. restrict to in or out edges of the vertex
+            BytesRef vertexRef = LuceneHelper.newRefFromLong((Long) vertexDoc.getId());
+            if (edgeTypes != null && edgeTypes.length == 1) {
+                String vertexField = RawLucene.getVertexFieldForEdgeType(edgeTypes[0]);
+                edgeFilter.add(new TermFilter(vertexField, vertexRef), Occur.MUST);
+            } else {
+                // both directions: one filter unions the postings of both fields, so an edge
+                // from the vertex to itself is returned once
+                TermsFilter both = new TermsFilter();
+                both.addTerm(new Term(RawLucene.VERTEX_OUT, vertexRef));
+                both.addTerm(new Term(RawLucene.VERTEX_IN, vertexRef));
+                edgeFilter.add(both, Occur.MUST);
             }
 
-            // 3. restrict to one or more edge labels
+            // 3. restrict to one or more edge labels via their ordinals
             if (edgeLabels != null && edgeLabels.length > 0) {
+                LabelDictionary dict = g.getRaw().getLabels();
                 TermsFilter tf = new TermsFilter();
                 for (String label : edgeLabels) {
-                    tf.addTerm(new Term(RawLucene.EDGE_LABEL, KeywordAnalyzerLowerCase.transform(label)));
+                    int ord = dict.getOrdinal(label);
+                    // no edge has an unknown label
+                    if (ord >= 0)
+                        tf.addTerm(new Term(RawLucene.EDGE_LABEL_ORD, LuceneHelper.newRefFromLong(ord)));
                 }
                 edgeFilter.add(tf, Occur.MUST);
             }
@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.Mapping;
+import de.jetsli.lumeo.util.TermFilter;
+import java.util.Arrays;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.BooleanFilter;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.PrefixFilter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+
+/**
+ * A predicate over the indexed properties of vertices or edges. Combine them via and, or and not
+ * and pass the result to LuceneAutomaticIndex.query. A query is compiled into a non-scoring
+ * filter, so all the matching is done inside Lucene. Instances are immutable and equal queries
+ * share the cached compiled filter.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public abstract class GraphQuery {
+
+    /**
+     * Exact match. For TEXT fields the value is parsed as full text query.
+     */
+    public static GraphQuery eq(final String key, final Object value) {
+        if (value == null)
+            throw new NullPointerException("value for " + key + " cannot be null");
+        return new GraphQuery("eq", key, value) {
+
+            @Override Filter toFilter(Mapping m) {
+                checkIndexed(m, key);
+                if (m.getType(key) == Mapping.Type.TEXT)
+                    return new QueryWrapperFilter(m.getQuery(key, value));
+                return new TermFilter(key, m.toBytes(key, value));
+            }
+        };
+    }
+
+    /**
+     * Matches numeric values between from and to (both inclusive). Use null for an open range.
+     */
+    public static GraphQuery range(String key, Object from, Object to) {
+        return range(key, from, to, true, true);
+    }
+
+    public static GraphQuery range(final String key, final Object from, final Object to,
+            final boolean fromInclusive, final boolean toInclusive) {
+        return new GraphQuery("range", key, from, to, fromInclusive, toInclusive) {
+
+            @Override Filter toFilter(Mapping m) {
+                checkIndexed(m, key);
+                return m.getRangeFilter(key, from, to, fromInclusive, toInclusive);
+            }
+        };
+    }
+
+    /**
+     * Matches the values of a STRING or STRING_LC field starting with the specified prefix
+     */
+    public static GraphQuery prefix(final String key, final String prefix) {
+        return new GraphQuery("prefix", key, prefix) {
+
+            @Override Filter toFilter(Mapping m) {
+                checkIndexed(m, key);
+                Mapping.Type t = m.getType(key);
+                if (t != Mapping.Type.STRING && t != Mapping.Type.STRING_LC)
+                    throw new UnsupportedOperationException("Prefix queries are only supported for "
+                            + "string fields but " + key + " is " + t);
+                return new PrefixFilter(new Term(key, m.toBytes(key, prefix)));
+            }
+        };
+    }
+
+    /**
+     * Full text query on a TEXT field, parsed with the analyzer of the field
+     */
+    public static GraphQuery text(final String key, final String text) {
+        return new GraphQuery("text", key, text) {
+
+            @Override Filter toFilter(Mapping m) {
+                checkIndexed(m, key);
+                if (m.getType(key) != Mapping.Type.TEXT)
+                    throw new UnsupportedOperationException("Full text queries are only supported for "
+                            + "text fields but " + key + " is " + m.getType(key));
+                return new QueryWrapperFilter(m.getQuery(key, text));
+            }
+        };
+    }
+
+    /**
+     * Matches edges with one of the specified labels
+     */
+    public static GraphQuery label(String... labels) {
+        return terms(RawLucene.EDGE_LABEL, labels);
+    }
+
+    /**
+     * Matches elements of one of the specified types
+     */
+    public static GraphQuery type(String... types) {
+        return terms(RawLucene.TYPE, types);
+    }
+
+    private static GraphQuery terms(final String key, String... values) {
+        if (values == null || values.length == 0)
+            throw new IllegalArgumentException("at least one value for " + key + " is necessary");
+        // a copy so that equals matches what the filter is built from
+        final String[] copy = values.clone();
+        return new GraphQuery("in", key, copy) {
+
+            @Override Filter toFilter(Mapping m) {
+                TermsFilter tf = new TermsFilter();
+                for (String v : copy) {
+                    tf.addTerm(new Term(key, m.toBytes(key, v)));
+                }
+                return tf;
+            }
+        };
+    }
+
+    public static GraphQuery and(GraphQuery... queries) {
+        return bool("and", Occur.MUST, queries);
+    }
+
+    public static GraphQuery or(GraphQuery... queries) {
+        return bool("or", Occur.SHOULD, queries);
+    }
+
+    public static GraphQuery not(final GraphQuery query) {
+        return bool("not", Occur.MUST_NOT, query);
+    }
+
+    private static GraphQuery bool(String name, final Occur occur, GraphQuery... queries) {
+        if (queries == null || queries.length == 0)
+            throw new IllegalArgumentException(name + " needs at least one query");
+        final GraphQuery[] copy = queries.clone();
+        return new GraphQuery(name, (Object) copy) {
+
+            @Override Filter toFilter(Mapping m) {
+                BooleanFilter bf = new BooleanFilter();
+                for (GraphQuery q : copy) {
+                    bf.add(q.toFilter(m), occur);
+                }
+                return bf;
+            }
+        };
+    }
+    private final String name;
+    // the arguments of the factory method, compared by equals
+    private final Object[] args;
+
+    private GraphQuery(String name, Object... args) {
+        this.name = name;
+        this.args = args;
+    }
+
+    /**
+     * Compiles this query against the mapping of the queried element type
+     */
+    abstract Filter toFilter(Mapping m);
+
+    /**
+     * @return a query which matches the same elements with a constant score
+     */
+    public Query toQuery(Mapping m) {
+        return new ConstantScoreQuery(toFilter(m));
+    }
+
+    static void checkIndexed(Mapping m, String key) {
+        if (!m.exists(key))
+            throw new UnsupportedOperationException("key not indexed " + key);
+    }
+
+    @Override public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof GraphQuery))
+            return false;
+        GraphQuery other = (GraphQuery) obj;
+        return name.equals(other.name) && Arrays.deepEquals(args, other.args);
+    }
+
+    @Override public int hashCode() {
+        return 31 * name.hashCode() + Arrays.deepHashCode(args);
+    }
+
+    @Override public String toString() {
+        String str = Arrays.deepToString(args);
+        return name + "(" + str.substring(1, str.length() - 1) + ")";
+    }
+}
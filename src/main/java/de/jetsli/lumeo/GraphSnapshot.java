@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.util.IndexOp;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * A point in time view of the graph for multi-step traversals. It pins one searcher and the
+ * realtime cache entries which were not yet searchable when it was opened, including pending
+ * write-behind operations and the transaction of the opening thread. All lookups, elements
+ * and sequences obtained from it share this state, so a traversal sees consistent data and
+ * acquires the searcher only once.
+ *
+ * Sequences only return searchable elements like the ones of the graph, but updated elements are
+ * returned in their latest version and removed ones are skipped. Writes of the graph after opening
+ * are not visible. The snapshot must be closed to release the searcher. Thread safe for reads.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphSnapshot {
+
+    private final LuceneGraph g;
+    private final RawLucene raw;
+    private final IndexSearcher searcher;
+    // id -> latest not yet searchable operation at opening time
+    private final Map<Long, IndexOp> frozenOps;
+    // user id -> id of the frozen documents
+    private final Map<String, Long> frozenUIds;
+    private volatile boolean closed = false;
+
+    GraphSnapshot(LuceneGraph g) {
+        this.g = g;
+        raw = g.getRaw();
+        Map<Long, IndexOp> unflushed = new HashMap<Long, IndexOp>();
+        searcher = raw.newUnmanagedSearcher(unflushed);
+        raw.putTransactionOps(unflushed);
+        // the documents of the realtime cache are the ones of the elements and change with them
+        frozenOps = new HashMap<Long, IndexOp>(unflushed.size() * 2);
+        frozenUIds = new HashMap<String, Long>(unflushed.size() * 2);
+        for (Map.Entry<Long, IndexOp> e : unflushed.entrySet()) {
+            IndexOp op = e.getValue();
+            if (op.type == IndexOp.Type.DELETE) {
+                frozenOps.put(e.getKey(), op);
+                continue;
+            }
+
+            Document copy;
+            synchronized (op.document) {
+                copy = RawLucene.copy(op.document);
+            }
+            frozenOps.put(e.getKey(), new IndexOp(copy, op.type));
+            String uId = copy.get(RawLucene.UID);
+            if (uId != null)
+                frozenUIds.put(uId, e.getKey());
+        }
+    }
+
+    /**
+     * @return a copy of the frozen document so that changes of the caller don't leak into the
+     * snapshot or null if it was removed
+     */
+    private static Document thaw(IndexOp op) {
+        return op.type == IndexOp.Type.DELETE ? null : RawLucene.copy(op.document);
+    }
+
+    public Document findById(long id) {
+        IndexOp op = frozenOps.get(id);
+        if (op != null)
+            return thaw(op);
+
+        checkOpen();
+        try {
+            for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                AtomicReader reader = ctx.reader();
+                int docId = RawLucene.findDocId(reader, id);
+                if (docId >= 0)
+                    return reader.document(docId);
+            }
+            return null;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public Document findByUserId(String uId) {
+        Long frozenId = frozenUIds.get(uId);
+        if (frozenId != null)
+            return thaw(frozenOps.get(frozenId));
+
+        checkOpen();
+        try {
+            TopDocs results = searcher.search(new TermQuery(new Term(RawLucene.UID, uId)), 1);
+            if (results.totalHits == 0)
+                return null;
+            if (results.totalHits > 1)
+                throw new IllegalStateException("Document with " + RawLucene.UID + "=" + uId + " not the only one");
+
+            // a newer version could have a different user id or could be removed
+            Document doc = searcher.doc(results.scoreDocs[0].doc);
+            return frozenOps.containsKey(raw.getId(doc)) ? null : doc;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return the vertex with the specified user id or null
+     */
+    public Vertex getVertex(Object uId) {
+        Document doc = findByUserId(uId.toString());
+        if (doc == null)
+            return null;
+        return newVertex(doc);
+    }
+
+    public LuceneFilterSequence<Vertex> getVertices() {
+        return new VertexFilterSequence(g).setSnapshot(this);
+    }
+
+    public LuceneFilterSequence<Edge> getEdges() {
+        return new EdgeFilterSequence(g).setSnapshot(this);
+    }
+
+    /**
+     * @return the frozen version of the specified searchable document or null if it was removed
+     */
+    Document resolve(Document doc) {
+        IndexOp op = frozenOps.get(raw.getId(doc));
+        if (op == null)
+            return doc;
+        return thaw(op);
+    }
+
+    LuceneVertex newVertex(Document doc) {
+        LuceneVertex v = new LuceneVertex(g, doc);
+        v.setSnapshot(this);
+        return v;
+    }
+
+    IndexSearcher getSearcher() {
+        checkOpen();
+        return searcher;
+    }
+
+    /**
+     * @return the number of not yet searchable operations frozen into this snapshot
+     */
+    public int getFrozenCount() {
+        return frozenOps.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            raw.releaseUnmanagedSearcher(searcher);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Snapshot already closed");
+    }
+
+    @Override public String toString() {
+        return "snapshot of " + raw + ", frozen:" + frozenOps.size();
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.AdjacencyCache;
+import de.jetsli.lumeo.util.AdjacencyCache.Adjacency;
+import de.jetsli.lumeo.util.IndexOp;
+import de.jetsli.lumeo.util.LongHashSet;
+import de.jetsli.lumeo.util.LongIntMap;
+import de.jetsli.lumeo.util.LuceneHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Breadth first traversals which read the relationships from the postings of _vout and _vin and
+ * the other end of every edge from the field cache instead of loading documents. A whole frontier
+ * is expanded per segment with one terms enum. Writes which are not yet searchable are taken from
+ * the realtime cache, the writes of an open transaction are not visible. If an adjacency cache is
+ * specified the neighbors are served from it and the missing ones are read in one pass and put
+ * into it. The searcher is only acquired on the first cache miss. Close it to release the
+ * searcher.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+class GraphTraversal {
+
+    private final RawLucene raw;
+    // null if the adjacency of the vertices should not be cached
+    private final AdjacencyCache cache;
+    private long stamp;
+    private IndexSearcher searcher;
+    private AtomicReaderContext[] leaves;
+    private final Map<Long, IndexOp> unflushed = new HashMap<Long, IndexOp>();
+    // edges which are not in the searcher: vertex id -> edge id, neighbor id and label ordinal
+    private final Map<Long, List<long[]>> unflushedOut = new HashMap<Long, List<long[]>>();
+    private final Map<Long, List<long[]>> unflushedIn = new HashMap<Long, List<long[]>>();
+    // null accepts all labels
+    private int[] labelOrds;
+
+    interface Visitor {
+
+        /**
+         * @param label the ordinal of the edge label or -1 if the edge has none
+         * @return false to stop the expansion
+         */
+        boolean visit(long vertex, long neighbor, int label);
+    }
+
+    GraphTraversal(RawLucene raw) {
+        this(raw, null);
+    }
+
+    GraphTraversal(RawLucene raw, AdjacencyCache cache) {
+        this.raw = raw;
+        this.cache = cache;
+    }
+
+    /**
+     * Acquires the searcher and the writes which it does not contain yet
+     */
+    private void open() {
+        if (searcher != null)
+            return;
+
+        // read it before the searcher so that the read neighbors contain all writes before it
+        if (cache != null)
+            stamp = cache.getStamp();
+        searcher = raw.newUnmanagedSearcher(unflushed);
+        leaves = searcher.getTopReaderContext().leaves();
+        for (Map.Entry<Long, IndexOp> e : unflushed.entrySet()) {
+            Document doc = e.getValue().document;
+            IndexableField vOut = doc == null ? null : doc.getField(RawLucene.VERTEX_OUT);
+            if (vOut == null)
+                continue;
+            long out = vOut.numericValue().longValue();
+            long in = doc.getField(RawLucene.VERTEX_IN).numericValue().longValue();
+            long label = raw.getLabelOrdinal(doc);
+            add(unflushedOut, out, e.getKey(), in, label);
+            add(unflushedIn, in, e.getKey(), out, label);
+        }
+    }
+
+    private static void add(Map<Long, List<long[]>> map, long vertex, long edge, long neighbor, long label) {
+        List<long[]> list = map.get(vertex);
+        if (list == null) {
+            list = new ArrayList<long[]>(2);
+            map.put(vertex, list);
+        }
+        list.add(new long[]{edge, neighbor, label});
+    }
+
+    /**
+     * Follows only edges with one of the labels, all edges if none is specified
+     */
+    GraphTraversal setLabels(String... labels) {
+        if (labels == null || labels.length == 0) {
+            labelOrds = null;
+            return this;
+        }
+        int[] ords = raw.getLabels().getOrdinals(labels);
+        int known = 0;
+        for (int ord : ords) {
+            // no edge has an unknown label
+            if (ord >= 0)
+                ords[known++] = ord;
+        }
+        labelOrds = Arrays.copyOf(ords, known);
+        return this;
+    }
+
+    void close() {
+        if (searcher != null)
+            raw.releaseUnmanagedSearcher(searcher);
+    }
+
+    /**
+     * Calls the visitor for every edge of the frontier vertices in the specified direction
+     *
+     * @return false if the visitor stopped the expansion
+     */
+    boolean expand(long[] frontier, int size, boolean out, Visitor visitor) {
+        if (labelOrds != null && labelOrds.length == 0)
+            return true;
+
+        Adjacency[] adjs = getAdjacency(frontier, size, out);
+        for (int i = 0; i < size; i++) {
+            Adjacency adj = adjs[i];
+            for (int j = 0; j < adj.size(); j++) {
+                if (accepts(adj.labels[j]) && !visitor.visit(frontier[i], adj.neighborIds[j], adj.labels[j]))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean accepts(long label) {
+        if (labelOrds == null)
+            return true;
+        for (int ord : labelOrds) {
+            if (ord == label)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the edges of the out or in edges of the vertices in the same order, including the
+     * edges which are not yet searchable. All labels are returned.
+     */
+    Adjacency[] getAdjacency(long[] vertexIds, int size, boolean out) {
+        Adjacency[] result = new Adjacency[size];
+        long[] misses = new long[size];
+        int[] missIndex = new int[size];
+        int missCount = 0;
+        for (int i = 0; i < size; i++) {
+            Adjacency adj = cache == null ? null : cache.get(vertexIds[i], out);
+            if (adj != null)
+                result[i] = adj;
+            else {
+                misses[missCount] = vertexIds[i];
+                missIndex[missCount++] = i;
+            }
+        }
+        if (missCount == 0)
+            return result;
+
+        Adjacency[] read = read(misses, missCount, out);
+        for (int i = 0; i < missCount; i++) {
+            result[missIndex[i]] = read[i];
+            if (cache != null)
+                cache.put(misses[i], out, read[i], stamp);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the edges of all vertices with one terms enum per segment
+     */
+    private Adjacency[] read(long[] vertexIds, int size, boolean out) {
+        open();
+        LongIntMap index = new LongIntMap(size * 2, -1);
+        AdjacencyBuilder[] builders = new AdjacencyBuilder[size];
+        for (int i = 0; i < size; i++) {
+            int existing = index.get(vertexIds[i]);
+            if (existing >= 0)
+                builders[i] = builders[existing];
+            else {
+                index.put(vertexIds[i], i);
+                builders[i] = new AdjacencyBuilder();
+            }
+        }
+
+        long[] sorted = Arrays.copyOf(vertexIds, size);
+        // ascending ids are ascending terms, so the terms enum seeks forward
+        Arrays.sort(sorted);
+        String field = out ? RawLucene.VERTEX_OUT : RawLucene.VERTEX_IN;
+        String otherField = out ? RawLucene.VERTEX_IN : RawLucene.VERTEX_OUT;
+        BytesRef ref = new BytesRef(NumericUtils.BUF_SIZE_LONG);
+        try {
+            for (AtomicReaderContext ctx : leaves) {
+                AtomicReader reader = ctx.reader();
+                Terms terms = reader.terms(field);
+                if (terms == null)
+                    continue;
+
+                TermsEnum termsEnum = terms.iterator(null);
+                Bits liveDocs = reader.getLiveDocs();
+                DocsEnum docs = null;
+                long[] ids = null;
+                long[] others = null;
+                long[] labels = null;
+                Bits hasLabel = null;
+                for (int i = 0; i < size; i++) {
+                    long vertex = sorted[i];
+                    if (i > 0 && vertex == sorted[i - 1])
+                        continue;
+                    if (!termsEnum.seekExact(LuceneHelper.longToRef(vertex, ref), false))
+                        continue;
+
+                    if (others == null) {
+                        ids = FieldCache.DEFAULT.getLongs(reader, RawLucene.ID, FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+                        others = FieldCache.DEFAULT.getLongs(reader, otherField, FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+                        labels = FieldCache.DEFAULT.getLongs(reader, RawLucene.EDGE_LABEL_ORD,
+                                FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+                        // 0 is a valid ordinal, so edges without one need to be detected separately
+                        hasLabel = FieldCache.DEFAULT.getDocsWithField(reader, RawLucene.EDGE_LABEL_ORD);
+                    }
+                    AdjacencyBuilder builder = builders[index.get(vertex)];
+                    docs = termsEnum.docs(liveDocs, docs, false);
+                    int doc;
+                    while ((doc = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+                        // the edge was removed or changed after the searcher was opened
+                        if (!unflushed.isEmpty() && unflushed.containsKey(ids[doc]))
+                            continue;
+                        builder.add(ids[doc], others[doc], hasLabel.get(doc) ? (int) labels[doc] : -1);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        Map<Long, List<long[]>> map = out ? unflushedOut : unflushedIn;
+        Adjacency[] result = new Adjacency[size];
+        for (int i = 0; i < size; i++) {
+            int first = index.get(vertexIds[i]);
+            if (first < i) {
+                result[i] = result[first];
+                continue;
+            }
+            List<long[]> list = map.get(vertexIds[i]);
+            if (list != null)
+                for (long[] edge : list) {
+                    builders[i].add(edge[0], edge[1], (int) edge[2]);
+                }
+            result[i] = builders[i].build();
+        }
+        return result;
+    }
+
+    private static class AdjacencyBuilder {
+
+        private long[] edgeIds = new long[4];
+        private long[] neighborIds = new long[4];
+        private int[] labels = new int[4];
+        private int size;
+
+        void add(long edgeId, long neighborId, int label) {
+            if (size == edgeIds.length) {
+                edgeIds = Arrays.copyOf(edgeIds, size * 2);
+                neighborIds = Arrays.copyOf(neighborIds, size * 2);
+                labels = Arrays.copyOf(labels, size * 2);
+            }
+            edgeIds[size] = edgeId;
+            neighborIds[size] = neighborId;
+            labels[size++] = label;
+        }
+
+        Adjacency build() {
+            return new Adjacency(Arrays.copyOf(edgeIds, size), Arrays.copyOf(neighborIds, size),
+                    Arrays.copyOf(labels, size));
+        }
+    }
+
+    /**
+     * Bidirectional breadth first search which always expands the smaller frontier and stops as
+     * soon as both searches meet.
+     *
+     * @return the vertex ids of a shortest path along out edges or an empty array
+     */
+    long[] shortestPath(long from, long to, int maxDepth) {
+        if (from == to)
+            return new long[]{from};
+
+        Side forward = new Side(from, true);
+        Side backward = new Side(to, false);
+        forward.other = backward;
+        backward.other = forward;
+        for (int depth = 0; depth < maxDepth; depth++) {
+            if (forward.frontierSize == 0 || backward.frontierSize == 0)
+                break;
+
+            Side side = forward.frontierSize <= backward.frontierSize ? forward : backward;
+            if (side.expandLevel()) {
+                long[] left = forward.pathTo(side.meeting);
+                long[] right = backward.pathTo(side.meeting);
+                long[] path = Arrays.copyOf(left, left.length + right.length - 1);
+                // the backward path ends at the meeting vertex which is already contained
+                for (int i = 0; i < right.length - 1; i++) {
+                    path[left.length + i] = right[right.length - 2 - i];
+                }
+                return path;
+            }
+        }
+        return new long[0];
+    }
+
+    /**
+     * @param edgeType RawLucene.EDGE_OUT, RawLucene.EDGE_IN or null for both directions
+     * @return the ids of all vertices within k edges of the start vertex, nearest first
+     */
+    long[] kHop(long start, int k, String edgeType) {
+        final boolean followOut = edgeType == null || RawLucene.EDGE_OUT.equals(edgeType);
+        final boolean followIn = edgeType == null || RawLucene.EDGE_IN.equals(edgeType);
+        if (!followOut && !followIn)
+            throw new UnsupportedOperationException("Edge type not supported:" + edgeType);
+
+        final LongHashSet visited = new LongHashSet(64);
+        visited.add(start);
+        final long[][] result = {new long[16]};
+        final int[] resultSize = {0};
+        long[] frontier = {start};
+        int frontierSize = 1;
+        for (int depth = 0; depth < k && frontierSize > 0; depth++) {
+            final int levelStart = resultSize[0];
+            Visitor collector = new Visitor() {
+
+                @Override public boolean visit(long vertex, long neighbor, int label) {
+                    if (visited.add(neighbor)) {
+                        if (resultSize[0] == result[0].length)
+                            result[0] = Arrays.copyOf(result[0], resultSize[0] * 2);
+                        result[0][resultSize[0]++] = neighbor;
+                    }
+                    return true;
+                }
+            };
+            if (followOut)
+                expand(frontier, frontierSize, true, collector);
+            if (followIn)
+                expand(frontier, frontierSize, false, collector);
+            frontier = Arrays.copyOfRange(result[0], levelStart, resultSize[0]);
+            frontierSize = frontier.length;
+        }
+        return Arrays.copyOf(result[0], resultSize[0]);
+    }
+
+    /**
+     * One direction of the bidirectional search. The visited vertices are stored index based
+     * together with the index of the vertex they were reached from.
+     */
+    private class Side implements Visitor {
+
+        private final boolean out;
+        private final LongIntMap index = new LongIntMap(64, -1);
+        private long[] ids = new long[16];
+        private int[] parents = new int[16];
+        private int size;
+        private long[] frontier;
+        private int frontierSize;
+        private long[] next;
+        private int nextSize;
+        private Side other;
+        private long meeting;
+
+        Side(long start, boolean out) {
+            this.out = out;
+            add(start, -1);
+            frontier = new long[]{start};
+            frontierSize = 1;
+        }
+
+        private void add(long id, int parent) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                parents = Arrays.copyOf(parents, size * 2);
+            }
+            index.put(id, size);
+            ids[size] = id;
+            parents[size++] = parent;
+        }
+
+        /**
+         * @return true if the other side was reached
+         */
+        boolean expandLevel() {
+            next = new long[Math.max(16, frontierSize)];
+            nextSize = 0;
+            boolean met = !expand(frontier, frontierSize, out, this);
+            frontier = next;
+            frontierSize = nextSize;
+            return met;
+        }
+
+        @Override public boolean visit(long vertex, long neighbor, int label) {
+            if (index.containsKey(neighbor))
+                return true;
+
+            add(neighbor, index.get(vertex));
+            if (other.index.containsKey(neighbor)) {
+                meeting = neighbor;
+                return false;
+            }
+            if (nextSize == next.length)
+                next = Arrays.copyOf(next, nextSize * 2);
+            next[nextSize++] = neighbor;
+            return true;
+        }
+
+        /**
+         * @return the ids from the start of this side to the specified visited vertex
+         */
+        long[] pathTo(long id) {
+            int len = 0;
+            for (int i = index.get(id); i >= 0; i = parents[i]) {
+                len++;
+            }
+            long[] path = new long[len];
+            for (int i = index.get(id); i >= 0; i = parents[i]) {
+                path[--len] = ids[i];
+            }
+            return path;
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package de.jetsli.lumeo;
 
+import de.jetsli.lumeo.util.LRUCache;
 import de.jetsli.lumeo.util.Mapping;
+import de.jetsli.lumeo.util.SearchExecutor;
 import com.tinkerpop.blueprints.pgm.AutomaticIndex;
 
 import com.tinkerpop.blueprints.pgm.CloseableSequence;
 import com.tinkerpop.blueprints.pgm.Element;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.Set;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.BooleanFilter;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Sort;
 
 /**
  * @author Peter Karich, info@jetsli.de
@@ -13,6 +27,8 @@ import java.util.Set;
 public class LuceneAutomaticIndex<T extends Element> extends LuceneIndex<T> implements AutomaticIndex<T> {
 
     private final Mapping m;
+    // compiled queries, the cached doc id sets are per segment and so survive refreshes
+    private final Map<GraphQuery, Filter> filterCache = new LRUCache<GraphQuery, Filter>(100);
 
     public LuceneAutomaticIndex(final LuceneGraph graph, final Class<T> indexClass, Mapping m) {
         super(graph, indexClass);
@@ -31,18 +47,23 @@ public class LuceneAutomaticIndex<T extends Element> extends LuceneIndex<T> impl
     }
 
     protected void autoUpdate(final String key, final Object newValue, final Object oldValue, final T element) {
-        // accept all keys to store them
-        if (oldValue != null)
-            removeField(key, element);
+        // accept all keys to store them. The flush thread copies dirty documents under their monitor
+        synchronized (((LuceneElement) element).getRaw()) {
+            if (oldValue != null)
+                removeField(key, element);
 
-        putField(m.createField(key, newValue), element);
-        g.getRaw().fastPut((Long) element.getId(), ((LuceneElement) element).getRaw());
+            putField(m.createField(key, newValue), element);
+        }
+        // only mark as dirty, setting n properties should not reindex the document n times
+        g.getRaw().putDeferred((Long) element.getId(), ((LuceneElement) element).getRaw());
     }
 
     protected void autoRemove(final String key, final Object oldValue, final T element) {
         // accept all keys to remove stored
-        removeField(key, element);
-        g.getRaw().fastPut((Long) element.getId(), ((LuceneElement) element).getRaw());
+        synchronized (((LuceneElement) element).getRaw()) {
+            removeField(key, element);
+        }
+        g.getRaw().putDeferred((Long) element.getId(), ((LuceneElement) element).getRaw());
     }
 
     @Override public CloseableSequence<T> get(final String key, final Object value) {
@@ -52,6 +73,98 @@ public class LuceneAutomaticIndex<T extends Element> extends LuceneIndex<T> impl
             throw new UnsupportedOperationException("key not indexed " + key);
     }
 
+    /**
+     * @return all elements where the numeric value of the key is between from and to (both
+     * inclusive). Use null for an open range.
+     */
+    public CloseableSequence<T> getRange(final String key, final Object from, final Object to) {
+        return getRange(key, from, to, true, true);
+    }
+
+    public CloseableSequence<T> getRange(final String key, final Object from, final Object to,
+            boolean fromInclusive, boolean toInclusive) {
+        if (!handle(key))
+            throw new UnsupportedOperationException("key not indexed " + key);
+
+        return createSequence().setFilter(m.getRangeFilter(key, from, to, fromInclusive, toInclusive));
+    }
+
+    /**
+     * @return the elements matching the query. Like every sequence it only sees searchable writes.
+     */
+    public CloseableSequence<T> query(GraphQuery query) {
+        return createSequence().setFilter(getFilter(query));
+    }
+
+    /**
+     * @return the ids of the matching elements, read from the field cache without loading any
+     * document
+     */
+    public long[] queryIds(GraphQuery query) {
+        final LuceneFilterSequence<T> seq = createSequence();
+        final BooleanFilter filter = new BooleanFilter();
+        filter.add(seq.getBaseFilter(), Occur.MUST);
+        filter.add(getFilter(query), Occur.MUST);
+        return g.getRaw().searchSomething(new SearchExecutor<long[]>() {
+
+            @Override public long[] execute(IndexSearcher searcher) throws Exception {
+                long[] result = new long[16];
+                int size = 0;
+                for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+                    DocIdSet set = filter.getDocIdSet(leaf, leaf.reader().getLiveDocs());
+                    DocIdSetIterator iter = set == null ? null : set.iterator();
+                    if (iter == null)
+                        continue;
+
+                    long[] ids = FieldCache.DEFAULT.getLongs(leaf.reader(), RawLucene.ID,
+                            FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+                    int doc;
+                    while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                        if (size == result.length)
+                            result = Arrays.copyOf(result, size * 2);
+                        result[size++] = ids[doc];
+                    }
+                }
+                return Arrays.copyOf(result, size);
+            }
+        });
+    }
+
+    /**
+     * @return the first k elements sorted by the LONG, DATE, DOUBLE or STRING value of the key.
+     * Only the top k are collected, the values are read from the field cache.
+     */
+    public CloseableSequence<T> getSorted(String key, boolean reverse, int k) {
+        return getSorted(null, key, reverse, k);
+    }
+
+    /**
+     * Same as getSorted but only for the elements matching the query, e.g. the 100 newest edges
+     * of a label
+     */
+    public CloseableSequence<T> getSorted(GraphQuery query, String key, boolean reverse, int k) {
+        if (!handle(key))
+            throw new UnsupportedOperationException("key not indexed " + key);
+        if (k <= 0)
+            throw new IllegalArgumentException("k has to be positive but was " + k);
+
+        LuceneFilterSequence<T> seq = createSequence().setSort(new Sort(m.getSortField(key, reverse)));
+        if (query != null)
+            seq.setFilter(getFilter(query));
+        return seq.setN(Math.min(k, 1000)).setLimit(k);
+    }
+
+    Filter getFilter(GraphQuery query) {
+        synchronized (filterCache) {
+            Filter f = filterCache.get(query);
+            if (f == null) {
+                f = new CachingWrapperFilter(query.toFilter(m));
+                filterCache.put(query, f);
+            }
+            return f;
+        }
+    }
+
     @Override public void put(String key, Object value, T element) {
         if (handle(key))
             super.put(key, value, element);
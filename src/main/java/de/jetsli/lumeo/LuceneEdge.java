@@ -5,18 +5,33 @@ import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.Vertex;
 import com.tinkerpop.blueprints.pgm.impls.StringFactory;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.LongField;
-//import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexableField;
 
 /**
  * @author Peter Karich, info@jetsli.de
  */
 public class LuceneEdge extends LuceneElement implements Edge {
 
+    // known without the document for edges read from an adjacency, otherwise -1
+    private long outId = -1;
+    private long inId = -1;
+    private int labelOrd = -1;
+
     public LuceneEdge(LuceneGraph graph, Document doc) {
         this(graph, doc, false);
     }
 
+    /**
+     * Creates an edge from the adjacency of a vertex which loads its document only if a property
+     * is read
+     */
+    LuceneEdge(LuceneGraph graph, long id, long outId, long inId, int labelOrd) {
+        super(graph, id, Edge.class);
+        this.outId = outId;
+        this.inId = inId;
+        this.labelOrd = labelOrd;
+    }
+
     protected LuceneEdge(final LuceneGraph graph, final Document doc, boolean isNew) {
         super(graph, doc);
         if (isNew) {
@@ -27,23 +42,32 @@ public class LuceneEdge extends LuceneElement implements Edge {
     }
 
     @Override public String getLabel() {
-        return ((Document) this.rawElement).get(RawLucene.EDGE_LABEL);
+        if (!isLoaded() && labelOrd >= 0) {
+            String label = g.getRaw().getLabels().getLabel(labelOrd);
+            if (label != null)
+                return label;
+        }
+        return getRaw().get(RawLucene.EDGE_LABEL);
     }
 
+    /**
+     * The returned vertex reads its document on first property access, so traversals which only
+     * need the id do not load it.
+     */
     @Override public Vertex getOutVertex() {
-        long id = ((LongField) getRaw().getField(RawLucene.VERTEX_OUT)).numericValue().longValue();
-        Document doc = g.getRaw().findById(id);
-        if (doc == null)
-            throw new NullPointerException("Didn't found out vertex of edge with id " + id);
-        return new LuceneVertex(g, doc);
+        return lazyVertex(outId >= 0 ? outId : getVertexId(RawLucene.VERTEX_OUT));
     }
 
     @Override public Vertex getInVertex() {
-        long id = ((LongField) getRaw().getField(RawLucene.VERTEX_IN)).numericValue().longValue();
-        Document doc = g.getRaw().findById(id);
-        if (doc == null)
-            throw new NullPointerException("Didn't found in vertex of edge with id " + id);
-        return new LuceneVertex(g, doc);
+        return lazyVertex(inId >= 0 ? inId : getVertexId(RawLucene.VERTEX_IN));
+    }
+
+    private long getVertexId(String field) {
+        // a LongField when created here, a StoredField when read from the index
+        IndexableField f = getRaw().getField(field);
+        if (f == null || f.numericValue() == null)
+            throw new NullPointerException("No " + field + " vertex for edge with id " + getId());
+        return f.numericValue().longValue();
     }
 
     @Override public boolean equals(final Object object) {
@@ -5,6 +5,7 @@ import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.Element;
 import com.tinkerpop.blueprints.pgm.impls.StringFactory;
 
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import org.apache.lucene.analysis.Analyzer;
@@ -18,8 +19,12 @@ import org.apache.lucene.index.IndexableField;
 public abstract class LuceneElement implements Element {
 
     protected final LuceneGraph g;
-    protected Document rawElement;
+    // null until first access for elements created from an id only
+    private Document rawElement;
+    private long id;
     private Mapping m;
+    // if not null reads are done against this point in time view
+    private GraphSnapshot snapshot;
 
     public LuceneElement(LuceneGraph graph, Document doc) {
         if (doc == null)
@@ -29,8 +34,26 @@ public abstract class LuceneElement implements Element {
         m = g.getMapping(getType());
     }
 
+    /**
+     * Creates a handle which loads the document of the specified id on first access only
+     */
+    LuceneElement(LuceneGraph graph, long id, Class type) {
+        this.id = id;
+        this.g = graph;
+        m = g.getMapping(type);
+    }
+
     @Override public Object getProperty(final String key) {
-        return rawElement.get(key);
+        IndexableField field = getRaw().getField(key);
+        if (field == null)
+            return null;
+
+        Number n = field.numericValue();
+        if (n == null)
+            return field.stringValue();
+        if (m.getType(key) == Mapping.Type.DATE)
+            return new Date(n.longValue());
+        return n;
     }
 
     @Override public void setProperty(final String key, final Object value) {
@@ -50,8 +73,12 @@ public abstract class LuceneElement implements Element {
 
     @Override public Object removeProperty(final String key) {
         try {
-            String oldValue = rawElement.get(key);
-            rawElement.removeField(key);
+            Document doc = getRaw();
+            String oldValue;
+            synchronized (doc) {
+                oldValue = doc.get(key);
+                doc.removeField(key);
+            }
             if (oldValue != null)
                 for (LuceneAutomaticIndex autoIndex : this.g.getAutoIndices(this.getClass())) {
                     autoIndex.autoRemove(key, oldValue, this);
@@ -63,9 +90,17 @@ public abstract class LuceneElement implements Element {
         }
     }
 
+    /**
+     * Reindexes pending property changes of this element now. Call it when the element won't be
+     * modified anymore and write-behind is enabled.
+     */
+    public void flush() {
+        g.getRaw().flushDeferred((Long) getId());
+    }
+
     @Override public Set<String> getPropertyKeys() {
         final Set<String> keys = new HashSet<String>();
-        for (final IndexableField key : this.rawElement.getFields()) {
+        for (final IndexableField key : getRaw().getFields()) {
             keys.add(key.name());
         }
         return keys;
@@ -76,15 +111,29 @@ public abstract class LuceneElement implements Element {
     }
 
     public Document getRaw() {
-        return this.rawElement;
+        if (rawElement == null) {
+            rawElement = snapshot == null ? g.getRaw().findById(id) : snapshot.findById(id);
+            if (rawElement == null)
+                throw new NullPointerException("Didn't found element with id " + id);
+        }
+        return rawElement;
+    }
+
+    /**
+     * @return false if the document of this element was not read yet
+     */
+    boolean isLoaded() {
+        return rawElement != null;
     }
 
     @Override public Object getId() {
+        if (rawElement == null)
+            return id;
         return (Long) rawElement.getField(RawLucene.ID).numericValue();
     }
 
     public String getType() {
-        String t = rawElement.get(RawLucene.TYPE);
+        String t = getRaw().get(RawLucene.TYPE);
         if (t == null)
             throw new NullPointerException("No type available for " + getId());
         return t;
@@ -94,6 +143,26 @@ public abstract class LuceneElement implements Element {
         return (null != object) && (this.getClass().equals(object.getClass()) && this.getId().equals(((Element) object).getId()));
     }
 
+    void setSnapshot(GraphSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the snapshot this element was read from or null if it reads the current graph
+     */
+    public GraphSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return a vertex handle which reads its document not before a property is requested
+     */
+    LuceneVertex lazyVertex(long id) {
+        LuceneVertex v = new LuceneVertex(g, id);
+        v.setSnapshot(snapshot);
+        return v;
+    }
+
     Analyzer getAnalyzer(String field) {
         return m.getAnalyzerFor(field);
     }
@@ -23,13 +23,19 @@ import java.util.Iterator;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 
 /**
+ * Pages through the elements matching the query and filter. The searcher is acquired on the first
+ * call of hasNext and released on close - except it belongs to a GraphSnapshot. No scores are
+ * computed, elements are returned in index order or in the order of the sort.
  *
  * @author Peter Karich, info@jetsli.de
  */
@@ -40,17 +46,24 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
     private Filter filter;
     private int n = 10;
     private int index = 0;
+    // the number of documents of the previous pages
+    private int offset = 0;
+    private int limit = Integer.MAX_VALUE;
+    private int returned = 0;
+    private Sort sort;
     private Mapping mapping;
     private TopDocs docs;
     private IndexSearcher searcher;
     private Query query;
     private boolean closed = false;
     private Document doc;
+    private GraphSnapshot snapshot;
+    // the next document if already loaded to skip removed ones
+    private Document current;
 
     public LuceneFilterSequence(LuceneGraph g, Class<T> type) {
         this.g = g;
         query = new MatchAllDocsQuery();
-        searcher = g.getRaw().newUnmanagedSearcher();
         mapping = g.getMapping(type);
         baseFilter = new TermFilter(RawLucene.TYPE, mapping.toBytes(RawLucene.TYPE, type.getSimpleName()));
     }
@@ -66,6 +79,22 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
         return this;
     }
 
+    /**
+     * Stops after the specified number of elements
+     */
+    public LuceneFilterSequence<T> setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Sorts via the field cache instead of reading all elements, see Mapping.getSortField
+     */
+    public LuceneFilterSequence<T> setSort(Sort sort) {
+        this.sort = sort;
+        return this;
+    }
+
     public LuceneFilterSequence<T> setValue(String field, Object o) {
         query = mapping.getQuery(field, o);
         return this;
@@ -76,6 +105,33 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
         return this;
     }
 
+    /**
+     * Reads from the searcher and the frozen writes of the specified snapshot instead of the
+     * current state of the graph
+     */
+    public LuceneFilterSequence<T> setSnapshot(GraphSnapshot snapshot) {
+        if (searcher != null)
+            throw new IllegalStateException("Sequence already started");
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    private IndexSearcher getSearcher() {
+        if (searcher == null) {
+            if (closed)
+                throw new IllegalStateException("Sequence already closed");
+            searcher = snapshot != null ? snapshot.getSearcher() : newSearcher();
+        }
+        return searcher;
+    }
+
+    /**
+     * @return a new searcher which is released on close
+     */
+    protected IndexSearcher newSearcher() {
+        return g.getRaw().newUnmanagedSearcher();
+    }
+
     @Override public boolean hasNext() {
         if (docs == null) {
             try {
@@ -90,12 +146,56 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
                     }
                 }
 
-                docs = searcher.search(query, filter, n);
+                query = new ConstantScoreQuery(query);
+                if (sort == null)
+                    docs = getSearcher().search(query, filter, n);
+                else
+                    docs = getSearcher().search(query, filter, n, sort);
             } catch (IOException ex) {
                 throw new RuntimeException(ex);
             }
         }
-        return index < docs.scoreDocs.length;
+        if (returned >= limit)
+            return false;
+
+        while (true) {
+            if (snapshot != null)
+                skipRemoved();
+            if (index < docs.scoreDocs.length)
+                return true;
+            if (!nextPage())
+                return false;
+        }
+    }
+
+    private boolean nextPage() {
+        offset += docs.scoreDocs.length;
+        if (docs.scoreDocs.length == 0 || offset >= docs.totalHits)
+            return false;
+
+        try {
+            ScoreDoc last = docs.scoreDocs[docs.scoreDocs.length - 1];
+            if (sort == null)
+                docs = searcher.searchAfter(last, query, filter, n);
+            else
+                docs = searcher.searchAfter(last, query, filter, n, sort);
+            index = 0;
+            return docs.scoreDocs.length > 0;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void skipRemoved() {
+        try {
+            while (current == null && index < docs.scoreDocs.length) {
+                current = snapshot.resolve(searcher.doc(docs.scoreDocs[index].doc));
+                if (current == null)
+                    index++;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     @Override public T next() {
@@ -103,11 +203,18 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
             if (!hasNext())
                 throw new UnsupportedOperationException("no further element");
 
-            if (index >= docs.scoreDocs.length)
-                docs = searcher.searchAfter(docs.scoreDocs[n - 1], query, filter, n);
-
-            doc = searcher.doc(docs.scoreDocs[index++].doc);
-            return createElement(doc);
+            returned++;
+            if (current != null) {
+                doc = current;
+                current = null;
+                index++;
+            } else
+                doc = searcher.doc(docs.scoreDocs[index++].doc);
+
+            T element = createElement(doc);
+            if (snapshot != null && element instanceof LuceneElement)
+                ((LuceneElement) element).setSnapshot(snapshot);
+            return element;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
@@ -119,7 +226,9 @@ public abstract class LuceneFilterSequence<T> implements CloseableSequence<T> {
 
     @Override public void close() {
         if (!closed) {
-            g.getRaw().releaseUnmanagedSearcher(searcher);
+            // the searcher of a snapshot is released when closing the snapshot
+            if (searcher != null && snapshot == null)
+                g.getRaw().releaseUnmanagedSearcher(searcher);
             closed = true;
         }
     }
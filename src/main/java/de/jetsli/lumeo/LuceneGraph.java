@@ -1,7 +1,14 @@
 package de.jetsli.lumeo;
 
+import de.jetsli.lumeo.analytics.Analytics;
+import de.jetsli.lumeo.analytics.Components;
+import de.jetsli.lumeo.analytics.TriangleCounter;
+import de.jetsli.lumeo.analytics.UnionFindComponents;
+import de.jetsli.lumeo.util.AdjacencyCache;
+import de.jetsli.lumeo.util.AdjacencyCache.Adjacency;
 import de.jetsli.lumeo.util.Mapping;
 import de.jetsli.lumeo.util.Mapping.Type;
+import de.jetsli.lumeo.util.ProgressListener;
 import com.tinkerpop.blueprints.pgm.AutomaticIndex;
 import com.tinkerpop.blueprints.pgm.CloseableSequence;
 import com.tinkerpop.blueprints.pgm.Edge;
@@ -12,9 +19,13 @@ import com.tinkerpop.blueprints.pgm.TransactionalGraph;
 import com.tinkerpop.blueprints.pgm.Vertex;
 import com.tinkerpop.blueprints.pgm.impls.Parameter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,7 +48,8 @@ import org.slf4j.LoggerFactory;
  * http://groups.google.com/group/neo4jrb/browse_thread/thread/8f739197886ecec7
  *
  * Why is this a bad idea? - heavy alpha software - deletes and realtime results are not easy for
- * search engines - no transaction support
+ * search engines - transactions are only a write buffer per thread (no isolation for readers of
+ * other threads, no durability before the next commit)
  *
  * TODO - caching is bad at the moment. - no advanced caching strategies (e.g. measure degree
  * centrality, cluster) - use FieldCache or DocValues for user and long IDs and similar - use
@@ -52,6 +64,11 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
     private AtomicLong atomicCounter = new AtomicLong(1);
     private RawLucene rawLucene;
     private Map<Class, LuceneAutomaticIndex<? extends Element>> indices = new ConcurrentHashMap<Class, LuceneAutomaticIndex<? extends Element>>();
+    private volatile AdjacencyCache adjacencyCache = new AdjacencyCache(16 << 20);
+    // vertices whose cached neighbors are invalidated again on commit, ALL_VERTICES clears the cache
+    private final ThreadLocal<Set<Long>> transactionInvalidations = new ThreadLocal<Set<Long>>();
+    private static final long ALL_VERTICES = -1;
+    private static final Adjacency EMPTY_ADJACENCY = new Adjacency(new long[0], new long[0], new int[0]);
 
     public LuceneGraph() {
         this(new RawLucene(new RAMDirectory()).init());
@@ -61,6 +78,14 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
         this(new RawLucene(path).init());
     }
 
+    /**
+     * With more than one shard the elements are split across several indices
+     */
+    public LuceneGraph(LumeoConfig config) {
+        this(config.getShards() > 1 ? new ShardedRawLucene(config).init() : new RawLucene(config).init());
+        setAdjacencyCacheMB(config.getAdjacencyCacheMB());
+    }
+
     public LuceneGraph(RawLucene rl) {
         rawLucene = rl;
     }
@@ -200,11 +225,13 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
                         id = atomicCounter.incrementAndGet();
 
                     edgeDoc = rawLucene.createDocument(userId, id, Edge.class);
-                    edgeDoc.add(getMapping(Edge.class.getSimpleName()).createField(RawLucene.EDGE_LABEL, label));
+                    rawLucene.setLabel(edgeDoc, label);
                 }
 
                 rawLucene.initRelation(edgeDoc, ((LuceneElement) outVertex).getRaw(), ((LuceneElement) inVertex).getRaw());
                 rawLucene.fastPut(id, edgeDoc);
+                invalidateAdjacency((Long) outVertex.getId());
+                invalidateAdjacency((Long) inVertex.getId());
             } finally {
                 rawLucene.indexUnlock();
             }
@@ -225,11 +252,206 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
     }
 
     @Override public void removeEdge(final Edge edge) {
-        rawLucene.removeById((Long) edge.getId());
+        rawLucene.indexLock();
+        try {
+            Document edgeDoc = ((LuceneElement) edge).getRaw();
+            rawLucene.removeRelation(edgeDoc);
+            invalidateAdjacency(edgeDoc.getField(RawLucene.VERTEX_OUT).numericValue().longValue());
+            invalidateAdjacency(edgeDoc.getField(RawLucene.VERTEX_IN).numericValue().longValue());
+        } finally {
+            rawLucene.indexUnlock();
+        }
     }
 
     @Override public void removeVertex(final Vertex vertex) {
         rawLucene.removeById((Long) vertex.getId());
+        // the neighbors still reference the vertex
+        invalidateAdjacency(ALL_VERTICES);
+    }
+
+    /**
+     * @param edgeType RawLucene.EDGE_OUT or RawLucene.EDGE_IN
+     * @param labels restricts the edges to these labels if not empty
+     * @return the ids of the vertices at the other end of the out or in edges, served from the
+     * adjacency cache if possible. The array can be shared and must not be modified.
+     */
+    public long[] getNeighborIds(long vertexId, String edgeType, String... labels) {
+        int[] ords = getKnownOrdinals(labels);
+        // no edge has an unknown label
+        if (labels.length > 0 && ords.length == 0)
+            return new long[0];
+
+        return getAdjacency(vertexId, edgeType).getNeighborIds(ords);
+    }
+
+    private int[] getKnownOrdinals(String... labels) {
+        int[] ords = rawLucene.getLabels().getOrdinals(labels);
+        int known = 0;
+        for (int ord : ords) {
+            if (ord >= 0)
+                ords[known++] = ord;
+        }
+        return Arrays.copyOf(ords, known);
+    }
+
+    /**
+     * @return the edge ids, neighbor ids and label ordinals of the out or in edges
+     */
+    public Adjacency getAdjacency(long vertexId, String edgeType) {
+        return getAdjacency(new long[]{vertexId}, edgeType)[0];
+    }
+
+    /**
+     * @return the adjacency of every vertex in the order of the ids. The vertices which are not
+     * cached are read together with one searcher.
+     */
+    public Adjacency[] getAdjacency(long[] vertexIds, String edgeType) {
+        boolean out = RawLucene.EDGE_OUT.equals(edgeType);
+        if (!out && !RawLucene.EDGE_IN.equals(edgeType))
+            throw new UnsupportedOperationException("Edge type not supported:" + edgeType);
+
+        GraphTraversal traversal = newTraversal();
+        try {
+            return traversal.getAdjacency(vertexIds, vertexIds.length, out);
+        } finally {
+            traversal.close();
+        }
+    }
+
+    /**
+     * @return the edges of the vertex served from the adjacency cache if possible. The edges load
+     * their document only if a property is read.
+     */
+    CloseableSequence<Edge> getAdjacentEdges(long vertexId, String edgeType, String... labels) {
+        boolean out = RawLucene.EDGE_OUT.equals(edgeType);
+        int[] ords = getKnownOrdinals(labels);
+        // no edge has an unknown label
+        if (labels.length > 0 && ords.length == 0)
+            return new AdjacentEdgeSequence(this, vertexId, out, EMPTY_ADJACENCY, ords);
+
+        return new AdjacentEdgeSequence(this, vertexId, out, getAdjacency(vertexId, edgeType), ords);
+    }
+
+    /**
+     * The uncommitted writes of a transaction are only visible to its thread, so they bypass the
+     * adjacency cache
+     */
+    private GraphTraversal newTraversal() {
+        return new GraphTraversal(rawLucene, rawLucene.isTransactionActive() ? null : adjacencyCache);
+    }
+
+    /**
+     * Searches a shortest path along out edges without loading documents.
+     *
+     * @param labels follows only edges with one of these labels, all edges if null or empty
+     * @param maxDepth the maximum number of edges of the path
+     * @return the vertex ids of the path including both ends or an empty array if there is none
+     */
+    public long[] shortestPath(long from, long to, String[] labels, int maxDepth) {
+        GraphTraversal traversal = newTraversal().setLabels(labels);
+        try {
+            return traversal.shortestPath(from, to, maxDepth);
+        } finally {
+            traversal.close();
+        }
+    }
+
+    /**
+     * @param edgeType RawLucene.EDGE_OUT, RawLucene.EDGE_IN or null for both directions
+     * @return the ids of all vertices reachable within k edges excluding the start, nearest first
+     */
+    public long[] kHop(long start, int k, String edgeType) {
+        GraphTraversal traversal = newTraversal();
+        try {
+            return traversal.kHop(start, k, edgeType);
+        } finally {
+            traversal.close();
+        }
+    }
+
+    /**
+     * Computes the weakly connected components of all searchable vertices with a thread per CPU
+     */
+    public Components getConnectedComponents(ProgressListener listener) {
+        Analytics analytics = new Analytics(this);
+        try {
+            return new UnionFindComponents(analytics).setProgressListener(listener).run();
+        } finally {
+            analytics.close();
+        }
+    }
+
+    /**
+     * @return the number of triangles of all searchable edges ignoring their direction
+     */
+    public long countTriangles(ProgressListener listener) {
+        Analytics analytics = new Analytics(this);
+        try {
+            return new TriangleCounter(analytics).setProgressListener(listener).run();
+        } finally {
+            analytics.close();
+        }
+    }
+
+    private void invalidateAdjacency(long vertexId) {
+        if (vertexId == ALL_VERTICES)
+            adjacencyCache.clear();
+        else
+            adjacencyCache.invalidate(vertexId);
+
+        // another thread could cache the old neighbors before the transaction is committed
+        if (rawLucene.isTransactionActive()) {
+            Set<Long> ids = transactionInvalidations.get();
+            if (ids == null) {
+                ids = new HashSet<Long>();
+                transactionInvalidations.set(ids);
+            }
+            ids.add(vertexId);
+        }
+    }
+
+    public AdjacencyCache getAdjacencyCache() {
+        return adjacencyCache;
+    }
+
+    /**
+     * Replaces the adjacency cache by an empty one of the specified size, 0 disables it
+     */
+    public LuceneGraph setAdjacencyCacheMB(double mb) {
+        adjacencyCache = new AdjacencyCache((long) (mb * 1024 * 1024));
+        return this;
+    }
+
+    /**
+     * @return at most k vertices with the highest number of edges, highest first
+     */
+    public List<Vertex> getHubs(int k) {
+        List<Vertex> hubs = new ArrayList<Vertex>();
+        for (long id : rawLucene.getHubTracker().getTop(k)) {
+            Document doc = rawLucene.findById(id);
+            if (doc != null)
+                hubs.add(new LuceneVertex(this, doc));
+        }
+        return hubs;
+    }
+
+    /**
+     * @return a new unique id for a vertex or an edge
+     */
+    public long nextId() {
+        return atomicCounter.incrementAndGet();
+    }
+
+    /**
+     * Makes sure that nextId returns only ids greater than the specified one e.g. after loading
+     * elements with their original ids
+     */
+    public void ensureIdAbove(long id) {
+        while (true) {
+            long current = atomicCounter.get();
+            if (current >= id || atomicCounter.compareAndSet(current, id))
+                return;
+        }
     }
 
     <T extends Element> Collection<LuceneAutomaticIndex<T>> getAutoIndices(Class<T> cl) {
@@ -239,34 +461,90 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
         return Collections.<LuceneAutomaticIndex<T>>singletonList(tmp);
     }
 
+    /**
+     * @return the RAM buffer of the IndexWriter in bytes
+     */
     @Override public int getMaxBufferSize() {
-        // TODO not really the correct values ...
-        return rawLucene.getMaxMergeMB() * 1024 * 1024;
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(rawLucene.getRamBufferSizeMB() * 1024 * 1024));
     }
 
+    /**
+     * @return the bytes currently used for buffered documents of the IndexWriter
+     */
     @Override public int getCurrentBufferSize() {
-        // TODO not really the correct values ...
-        return 50 * 1024;
+        return (int) Math.min(Integer.MAX_VALUE, rawLucene.getRamSizeInBytes());
     }
 
+    /**
+     * Sets the RAM buffer of the IndexWriter in bytes. Lucene always needs a buffer, so a size of
+     * 0 or less keeps the current one.
+     */
     @Override public void setMaxBufferSize(final int size) {
-        rawLucene.setMaxMergeMB(size / 1024 / 1024);
+        if (size > 0)
+            rawLucene.setRamBufferSizeMB(size / 1024.0 / 1024.0);
     }
 
     @Override public void shutdown() {
         rawLucene.close();
     }
 
+    /**
+     * Removes all vertices and edges. Indices and mappings stay.
+     */
     @Override public void clear() {
-        throw new UnsupportedOperationException("Not supported yet. (why is this method necessary for transaction support at all??) "
-                + "Recreate the graph or use an in-memory instance.");
+        rawLucene.clear();
+        adjacencyCache.clear();
     }
 
+    /**
+     * Buffers all writes of the current thread until stopTransaction is called. Reads of the
+     * current thread already see the buffered writes.
+     */
     @Override public void startTransaction() {
+        rawLucene.startTransaction();
     }
 
+    /**
+     * SUCCESS applies the buffered writes in one batch, FAILURE drops them.
+     */
     @Override public void stopTransaction(final Conclusion conclusion) {
-        // TODO flush here or use lock of RawLucene?
+        Set<Long> invalidations = transactionInvalidations.get();
+        transactionInvalidations.remove();
+        if (conclusion == Conclusion.SUCCESS)
+            rawLucene.commitTransaction();
+        else
+            rawLucene.rollbackTransaction();
+
+        if (invalidations != null) {
+            for (long id : invalidations) {
+                invalidateAdjacency(id);
+            }
+        }
+    }
+
+    /**
+     * If enabled property changes are collected per element and reindexed once.
+     *
+     * @see RawLucene#setWriteBehind(boolean)
+     */
+    public LuceneGraph setWriteBehind(boolean writeBehind) {
+        rawLucene.setWriteBehind(writeBehind);
+        return this;
+    }
+
+    /**
+     * Reindexes all elements with pending property changes
+     */
+    public void flush() {
+        rawLucene.flushDeferred();
+    }
+
+    /**
+     * Opens a consistent view of the current graph state for multi-step traversals. Close it
+     * afterwards.
+     */
+    public GraphSnapshot openSnapshot() {
+        return new GraphSnapshot(this);
     }
 
     public RawLucene getRaw() {
@@ -277,6 +555,10 @@ public class LuceneGraph implements TransactionalGraph, IndexableGraph {
         return rawLucene.toString();
     }
 
+    /**
+     * @return the exact number of elements where the field contains the value, including not yet
+     * searchable writes
+     */
     public long count(Class cl, String fieldName, Object value) {
         return rawLucene.count(cl, fieldName, value);
     }
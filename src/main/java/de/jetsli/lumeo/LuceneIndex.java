@@ -46,10 +46,17 @@ public class LuceneIndex<T extends Element> implements Index<T> {
     }
 
     @Override public CloseableSequence<T> get(final String key, final Object value) {
+        return createSequence().setValue(key, value);
+    }
+
+    /**
+     * @return a sequence over all elements of the index class
+     */
+    protected LuceneFilterSequence<T> createSequence() {
         if (Vertex.class.isAssignableFrom(indexClass)) {
-            return (CloseableSequence<T>) new VertexFilterSequence(g).setValue(key, value);
+            return (LuceneFilterSequence<T>) (LuceneFilterSequence) new VertexFilterSequence(g);
         } else if (Edge.class.isAssignableFrom(indexClass)) {
-            return (CloseableSequence<T>) new EdgeFilterSequence(g).setValue(key, value);
+            return (LuceneFilterSequence<T>) (LuceneFilterSequence) new EdgeFilterSequence(g);
         } else
             throw new RuntimeException(UNSUPP_TYPE + ":" + indexClass.getSimpleName());
     }
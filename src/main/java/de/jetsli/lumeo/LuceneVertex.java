@@ -15,12 +15,48 @@ public class LuceneVertex extends LuceneElement implements Vertex {
         super(graph, doc);
     }
 
+    LuceneVertex(LuceneGraph graph, long id) {
+        super(graph, id, Vertex.class);
+    }
+
+    /**
+     * @return the number of out edges without iterating over them
+     */
+    public long getOutDegree() {
+        return RawLucene.getDegree(getRaw(), RawLucene.OUT_DEGREE);
+    }
+
+    public long getInDegree() {
+        return RawLucene.getDegree(getRaw(), RawLucene.IN_DEGREE);
+    }
+
+    public long getDegree() {
+        return getOutDegree() + getInDegree();
+    }
+
     @Override public Iterable<Edge> getInEdges(final String... labels) {
-        return new EdgeVertexBoundSequence(g, this, RawLucene.EDGE_IN).setLabels(labels);
+        return getEdges(RawLucene.EDGE_IN, labels);
     }
 
     @Override public Iterable<Edge> getOutEdges(final String... labels) {
-        return new EdgeVertexBoundSequence(g, this, RawLucene.EDGE_OUT).setLabels(labels);        
+        return getEdges(RawLucene.EDGE_OUT, labels);
+    }
+
+    /**
+     * Reads the edges through the adjacency cache. Snapshots and transactions need to see their own
+     * state, so they search the edges.
+     */
+    private Iterable<Edge> getEdges(String edgeType, String... labels) {
+        if (getSnapshot() != null || g.getRaw().isTransactionActive())
+            return new EdgeVertexBoundSequence(g, this, edgeType).setLabels(labels).setSnapshot(getSnapshot());
+        return g.getAdjacentEdges((Long) getId(), edgeType, labels);
+    }
+
+    /**
+     * @return the in and out edges of this vertex, read in one search
+     */
+    public Iterable<Edge> getBothEdges(final String... labels) {
+        return new EdgeVertexBoundSequence(g, this).setLabels(labels).setSnapshot(getSnapshot());
     }
 
     @Override public boolean equals(final Object object) {
@@ -0,0 +1,455 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.MergePolicies;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * All tuning options of a LuceneGraph in one place. Use the fluent setters or fromProperties, e.g.
+ * with a file containing
+ *
+ * <pre>
+ * lumeo.path=/var/lib/graph
+ * lumeo.directory=HYBRID
+ * lumeo.ramBufferSizeMB=64
+ * lumeo.postingsFormat.myfield=Memory
+ * </pre>
+ *
+ * The configuration is validated and copied when creating the RawLucene, later changes have no
+ * effect.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LumeoConfig {
+
+    public enum DirectoryType {
+
+        /** everything on the heap, nothing is persisted */
+        RAM,
+        /** lets Lucene pick the best directory for the platform */
+        FS,
+        MMAP,
+        NIOFS,
+        /** MMAP but small freshly flushed segments stay in RAM until they are merged */
+        NRT_CACHING,
+        /** NRT_CACHING plus in-memory postings for the id and relationship fields */
+        HYBRID
+    }
+    private String path;
+    private DirectoryType directoryType = DirectoryType.RAM;
+    private double nrtCacheMaxMergeSizeMB = 5;
+    private double nrtCacheMaxCachedMB = 60;
+    private double ramBufferSizeMB = 128;
+    private int termIndexInterval = 512;
+    // avoid Lucene performing "mega merges" with a finite limit on segments sizes that can be merged
+    private int maxMergeMB = 3000;
+    private MergePolicies.Type mergePolicy = MergePolicies.Type.LOG_BYTE_SIZE;
+    private long optimizeQuietMillis = 0;
+    private int optimizeMaxSegments = 1;
+    // if there are no waiting searchers reopen less frequent. This also controls how large the
+    // realtime cache can be: less frequent reopens => larger cache
+    private double reopenMaxStaleSec = 5.0;
+    // if there are waiting searchers how long should a reopen take at maximum
+    private double reopenMinStaleSec = 0.03;
+    // priority of the flush and reopen thread, -1 means slightly higher than the creating thread
+    private int threadPriority = -1;
+    private int maxThreadStates = 8;
+    // commit in the background, 0 means only on refresh and close
+    private long commitIntervalMillis = 0;
+    private boolean writeBehind = false;
+    // number of independent indices, more than one creates a ShardedRawLucene
+    private int shards = 1;
+    private double adjacencyCacheMB = 16;
+    // field -> postings format name
+    private Map<String, String> postingsFormats = new LinkedHashMap<String, String>();
+
+    public LumeoConfig() {
+    }
+
+    public LumeoConfig(String path) {
+        this.path = path;
+        directoryType = DirectoryType.FS;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public LumeoConfig setPath(String path) {
+        this.path = path;
+        return this;
+    }
+
+    public DirectoryType getDirectoryType() {
+        return directoryType;
+    }
+
+    public LumeoConfig setDirectoryType(DirectoryType directoryType) {
+        this.directoryType = directoryType;
+        return this;
+    }
+
+    /**
+     * Only segments created from merges up to this size are cached for NRT_CACHING and HYBRID
+     */
+    public LumeoConfig setNrtCacheMaxMergeSizeMB(double nrtCacheMaxMergeSizeMB) {
+        this.nrtCacheMaxMergeSizeMB = nrtCacheMaxMergeSizeMB;
+        return this;
+    }
+
+    public double getNrtCacheMaxMergeSizeMB() {
+        return nrtCacheMaxMergeSizeMB;
+    }
+
+    /**
+     * The maximum RAM for all cached segments for NRT_CACHING and HYBRID
+     */
+    public LumeoConfig setNrtCacheMaxCachedMB(double nrtCacheMaxCachedMB) {
+        this.nrtCacheMaxCachedMB = nrtCacheMaxCachedMB;
+        return this;
+    }
+
+    public double getNrtCacheMaxCachedMB() {
+        return nrtCacheMaxCachedMB;
+    }
+
+    public double getRamBufferSizeMB() {
+        return ramBufferSizeMB;
+    }
+
+    /**
+     * The memory the IndexWriter may use for buffered documents before flushing a segment
+     */
+    public LumeoConfig setRamBufferSizeMB(double ramBufferSizeMB) {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+        return this;
+    }
+
+    public int getTermIndexInterval() {
+        return termIndexInterval;
+    }
+
+    public LumeoConfig setTermIndexInterval(int termIndexInterval) {
+        this.termIndexInterval = termIndexInterval;
+        return this;
+    }
+
+    public int getMaxMergeMB() {
+        return maxMergeMB;
+    }
+
+    public LumeoConfig setMaxMergeMB(int maxMergeMB) {
+        this.maxMergeMB = maxMergeMB;
+        return this;
+    }
+
+    public MergePolicies.Type getMergePolicy() {
+        return mergePolicy;
+    }
+
+    public LumeoConfig setMergePolicy(MergePolicies.Type mergePolicy) {
+        this.mergePolicy = mergePolicy;
+        return this;
+    }
+
+    public long getOptimizeQuietMillis() {
+        return optimizeQuietMillis;
+    }
+
+    public int getOptimizeMaxSegments() {
+        return optimizeMaxSegments;
+    }
+
+    /**
+     * @see RawLucene#setBackgroundOptimize(long, int)
+     */
+    public LumeoConfig setBackgroundOptimize(long quietMillis, int maxSegments) {
+        optimizeQuietMillis = quietMillis;
+        optimizeMaxSegments = maxSegments;
+        return this;
+    }
+
+    public double getReopenMaxStaleSec() {
+        return reopenMaxStaleSec;
+    }
+
+    public double getReopenMinStaleSec() {
+        return reopenMinStaleSec;
+    }
+
+    /**
+     * @param maxStaleSec reopen interval if nobody waits for a searcher
+     * @param minStaleSec reopen interval if a thread waits for a specific generation
+     */
+    public LumeoConfig setReopen(double maxStaleSec, double minStaleSec) {
+        reopenMaxStaleSec = maxStaleSec;
+        reopenMinStaleSec = minStaleSec;
+        return this;
+    }
+
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    public LumeoConfig setThreadPriority(int threadPriority) {
+        this.threadPriority = threadPriority;
+        return this;
+    }
+
+    public int getMaxThreadStates() {
+        return maxThreadStates;
+    }
+
+    /**
+     * The maximum number of threads indexing concurrently
+     */
+    public LumeoConfig setMaxThreadStates(int maxThreadStates) {
+        this.maxThreadStates = maxThreadStates;
+        return this;
+    }
+
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    /**
+     * Commits periodically so that at most this time of writes gets lost on a crash
+     */
+    public LumeoConfig setCommitIntervalMillis(long commitIntervalMillis) {
+        this.commitIntervalMillis = commitIntervalMillis;
+        return this;
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    public LumeoConfig setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Splits the graph into this number of indices, each with its own writer. With a path every
+     * shard gets its own sub directory shard0, shard1 etc.
+     */
+    public LumeoConfig setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    public double getAdjacencyCacheMB() {
+        return adjacencyCacheMB;
+    }
+
+    /**
+     * Caches the neighbor ids of frequently expanded vertices, 0 disables it
+     */
+    public LumeoConfig setAdjacencyCacheMB(double adjacencyCacheMB) {
+        this.adjacencyCacheMB = adjacencyCacheMB;
+        return this;
+    }
+
+    /**
+     * @return a copy of this configuration for the specified shard
+     */
+    LumeoConfig forShard(int shard) {
+        LumeoConfig c = new LumeoConfig();
+        c.path = path == null ? null : new File(path, "shard" + shard).getPath();
+        c.directoryType = directoryType;
+        c.nrtCacheMaxMergeSizeMB = nrtCacheMaxMergeSizeMB;
+        c.nrtCacheMaxCachedMB = nrtCacheMaxCachedMB;
+        c.ramBufferSizeMB = ramBufferSizeMB;
+        c.termIndexInterval = termIndexInterval;
+        c.maxMergeMB = maxMergeMB;
+        c.mergePolicy = mergePolicy;
+        c.optimizeQuietMillis = optimizeQuietMillis;
+        c.optimizeMaxSegments = optimizeMaxSegments;
+        c.reopenMaxStaleSec = reopenMaxStaleSec;
+        c.reopenMinStaleSec = reopenMinStaleSec;
+        c.threadPriority = threadPriority;
+        c.maxThreadStates = maxThreadStates;
+        c.commitIntervalMillis = commitIntervalMillis;
+        c.writeBehind = writeBehind;
+        c.postingsFormats.putAll(postingsFormats);
+        return c;
+    }
+
+    /**
+     * @param format the name of a postings format e.g. Memory or Pulsing40
+     */
+    public LumeoConfig setPostingsFormat(String field, String format) {
+        postingsFormats.put(field, format);
+        return this;
+    }
+
+    /**
+     * @return the postings format name per field. For HYBRID the id and relationship fields use
+     * the Memory format if not specified otherwise.
+     */
+    public Map<String, String> getPostingsFormats() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        if (directoryType == DirectoryType.HYBRID) {
+            for (String field : new String[]{RawLucene.ID, RawLucene.UID, RawLucene.VERTEX_OUT,
+                        RawLucene.VERTEX_IN, RawLucene.EDGE_OUT, RawLucene.EDGE_IN}) {
+                map.put(field, "Memory");
+            }
+        }
+        map.putAll(postingsFormats);
+        return map;
+    }
+
+    /**
+     * @throws IllegalArgumentException if an option is out of range
+     */
+    public LumeoConfig validate() {
+        if (directoryType == null)
+            throw new IllegalArgumentException("directory type must not be null");
+        if (directoryType != DirectoryType.RAM && (path == null || path.isEmpty()))
+            throw new IllegalArgumentException("directory type " + directoryType + " needs a path");
+        if (ramBufferSizeMB <= 0 || ramBufferSizeMB >= 2048)
+            throw new IllegalArgumentException("ramBufferSizeMB must be in (0, 2048) but was " + ramBufferSizeMB);
+        if (termIndexInterval < 1)
+            throw new IllegalArgumentException("termIndexInterval must be positive but was " + termIndexInterval);
+        if (maxMergeMB < 1)
+            throw new IllegalArgumentException("maxMergeMB must be positive but was " + maxMergeMB);
+        if (mergePolicy == null)
+            throw new IllegalArgumentException("merge policy must not be null");
+        if (optimizeQuietMillis < 0 || optimizeMaxSegments < 1)
+            throw new IllegalArgumentException("invalid background optimize " + optimizeQuietMillis + "ms, "
+                    + optimizeMaxSegments + " segments");
+        if (reopenMinStaleSec <= 0 || reopenMaxStaleSec < reopenMinStaleSec)
+            throw new IllegalArgumentException("reopen intervals need 0 < min <= max but were "
+                    + reopenMinStaleSec + ", " + reopenMaxStaleSec);
+        if (threadPriority != -1 && (threadPriority < Thread.MIN_PRIORITY || threadPriority > Thread.MAX_PRIORITY))
+            throw new IllegalArgumentException("invalid thread priority " + threadPriority);
+        if (maxThreadStates < 1)
+            throw new IllegalArgumentException("maxThreadStates must be positive but was " + maxThreadStates);
+        if (commitIntervalMillis < 0)
+            throw new IllegalArgumentException("commitIntervalMillis must not be negative");
+        if (nrtCacheMaxMergeSizeMB <= 0 || nrtCacheMaxCachedMB < nrtCacheMaxMergeSizeMB)
+            throw new IllegalArgumentException("nrt cache needs 0 < maxMergeSizeMB <= maxCachedMB");
+        if (shards < 1)
+            throw new IllegalArgumentException("shards must be positive but was " + shards);
+        if (adjacencyCacheMB < 0)
+            throw new IllegalArgumentException("adjacencyCacheMB must not be negative but was " + adjacencyCacheMB);
+        return this;
+    }
+
+    /**
+     * Reads all options starting with lumeo. and validates the result
+     */
+    public static LumeoConfig fromProperties(Properties p) {
+        LumeoConfig c = new LumeoConfig();
+        c.path = p.getProperty("lumeo.path");
+        if (c.path != null)
+            c.directoryType = DirectoryType.FS;
+        String str = p.getProperty("lumeo.directory");
+        if (str != null)
+            c.directoryType = DirectoryType.valueOf(str.trim().toUpperCase());
+        c.nrtCacheMaxMergeSizeMB = getDouble(p, "lumeo.nrtCache.maxMergeSizeMB", c.nrtCacheMaxMergeSizeMB);
+        c.nrtCacheMaxCachedMB = getDouble(p, "lumeo.nrtCache.maxCachedMB", c.nrtCacheMaxCachedMB);
+        c.ramBufferSizeMB = getDouble(p, "lumeo.ramBufferSizeMB", c.ramBufferSizeMB);
+        c.termIndexInterval = (int) getLong(p, "lumeo.termIndexInterval", c.termIndexInterval);
+        c.maxMergeMB = (int) getLong(p, "lumeo.maxMergeMB", c.maxMergeMB);
+        str = p.getProperty("lumeo.mergePolicy");
+        if (str != null)
+            c.mergePolicy = MergePolicies.Type.valueOf(str.trim().toUpperCase());
+        c.optimizeQuietMillis = getLong(p, "lumeo.optimize.quietMillis", c.optimizeQuietMillis);
+        c.optimizeMaxSegments = (int) getLong(p, "lumeo.optimize.maxSegments", c.optimizeMaxSegments);
+        c.reopenMaxStaleSec = getDouble(p, "lumeo.reopen.maxStaleSec", c.reopenMaxStaleSec);
+        c.reopenMinStaleSec = getDouble(p, "lumeo.reopen.minStaleSec", c.reopenMinStaleSec);
+        c.threadPriority = (int) getLong(p, "lumeo.threadPriority", c.threadPriority);
+        c.maxThreadStates = (int) getLong(p, "lumeo.maxThreadStates", c.maxThreadStates);
+        c.commitIntervalMillis = getLong(p, "lumeo.commitIntervalMillis", c.commitIntervalMillis);
+        str = p.getProperty("lumeo.writeBehind");
+        if (str != null)
+            c.writeBehind = Boolean.parseBoolean(str.trim());
+        c.shards = (int) getLong(p, "lumeo.shards", c.shards);
+        c.adjacencyCacheMB = getDouble(p, "lumeo.adjacencyCacheMB", c.adjacencyCacheMB);
+
+        String prefix = "lumeo.postingsFormat.";
+        // stringPropertyNames includes the defaults of p unlike entrySet
+        for (String key : p.stringPropertyNames()) {
+            if (key.startsWith(prefix))
+                c.setPostingsFormat(key.substring(prefix.length()), p.getProperty(key).trim());
+        }
+        return c.validate();
+    }
+
+    private static double getDouble(Properties p, String key, double defaultValue) {
+        String str = p.getProperty(key);
+        if (str == null)
+            return defaultValue;
+        try {
+            return Double.parseDouble(str.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("option " + key + " is not a number: " + str);
+        }
+    }
+
+    private static long getLong(Properties p, String key, long defaultValue) {
+        String str = p.getProperty(key);
+        if (str == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(str.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("option " + key + " is not an integer: " + str);
+        }
+    }
+
+    public Directory createDirectory() throws IOException {
+        if (directoryType == DirectoryType.RAM)
+            return new RAMDirectory();
+
+        if (path == null)
+            throw new IllegalStateException("Directory type " + directoryType + " needs a path");
+        File file = new File(path);
+        switch (directoryType) {
+            case FS:
+                return FSDirectory.open(file);
+            case MMAP:
+                return new MMapDirectory(file);
+            case NIOFS:
+                return new NIOFSDirectory(file);
+            case NRT_CACHING:
+            case HYBRID:
+                return new NRTCachingDirectory(new MMapDirectory(file), nrtCacheMaxMergeSizeMB, nrtCacheMaxCachedMB);
+            default:
+                throw new IllegalStateException("Unknown directory type " + directoryType);
+        }
+    }
+
+    @Override public String toString() {
+        return directoryType.name().toLowerCase() + (path == null ? "" : ":" + path);
+    }
+}
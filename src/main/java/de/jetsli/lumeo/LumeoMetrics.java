@@ -0,0 +1,419 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.LatencyHistogram;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms of the hot paths of RawLucene. All values are available as one
+ * map via getSnapshot and as attributes of an MBean registered at the platform MBean server under
+ * de.jetsli.lumeo:type=RawLucene,name=&lt;graph name&gt;. If that name is taken by another open
+ * graph a counter is appended, see getObjectName.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LumeoMetrics implements DynamicMBean {
+
+    public enum Op {
+
+        FIND_BY_ID("findById"), FIND_BY_USER_ID("findByUserId"), PUT("put"), REMOVE("remove"), COUNT("count");
+        private final String key;
+
+        private Op(String key) {
+            this.key = key;
+        }
+    }
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final RawLucene raw;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Op.values().length];
+    // found in the realtime cache, transaction or write-behind buffer
+    private final AtomicLong cacheHits = new AtomicLong();
+    // needed an index lookup
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong successfulLuceneReads = new AtomicLong();
+    private final AtomicLong failedLuceneReads = new AtomicLong();
+    private final AtomicLong writerOperations = new AtomicLong();
+    private final LatencyHistogram refreshes = new LatencyHistogram();
+    private final LatencyHistogram reopenIntervals = new LatencyHistogram();
+    private volatile long lastReopen = System.nanoTime();
+    private final LatencyHistogram merges = new LatencyHistogram();
+    private final AtomicInteger runningMerges = new AtomicInteger();
+    private final AtomicLong mergedDocs = new AtomicLong();
+    private final LatencyHistogram optimizes = new LatencyHistogram();
+    private volatile ObjectName objectName;
+    private volatile MBeanInfo info;
+
+    LumeoMetrics(RawLucene raw) {
+        this.raw = raw;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param startNanos the value of System.nanoTime() at the beginning of the operation
+     */
+    void record(Op op, long startNanos) {
+        latencies[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    void cacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    void luceneRead(boolean found) {
+        if (found)
+            successfulLuceneReads.incrementAndGet();
+        else
+            failedLuceneReads.incrementAndGet();
+    }
+
+    void writerOperation(int count) {
+        writerOperations.addAndGet(count);
+    }
+
+    void refreshed(long startNanos) {
+        refreshes.record(System.nanoTime() - startNanos);
+    }
+
+    void optimized(long startNanos) {
+        optimizes.record(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getLatency(Op op) {
+        return latencies[op.ordinal()];
+    }
+
+    public long getSuccessfulLuceneReads() {
+        return successfulLuceneReads.get();
+    }
+
+    public long getFailedLuceneReads() {
+        return failedLuceneReads.get();
+    }
+
+    public long getWriterOperations() {
+        return writerOperations.get();
+    }
+
+    public double getCacheHitRate() {
+        long hits = cacheHits.get();
+        long all = hits + cacheMisses.get();
+        return all == 0 ? 0 : (double) hits / all;
+    }
+
+    /**
+     * @return the number of generations written but not yet searchable
+     */
+    public long getGenerationLag() {
+        return Math.max(0, raw.getLatestGen() - raw.getSearchingGen());
+    }
+
+    /**
+     * Counts every new searcher and records the time since the previous one
+     */
+    SearcherFactory newSearcherFactory() {
+        return new SearcherFactory() {
+
+            @Override public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                long now = System.nanoTime();
+                reopenIntervals.record(now - lastReopen);
+                lastReopen = now;
+                return super.newSearcher(reader);
+            }
+        };
+    }
+
+    /**
+     * A ConcurrentMergeScheduler which records the duration and the documents of every merge
+     */
+    MergeScheduler newMergeScheduler() {
+        return new ConcurrentMergeScheduler() {
+
+            @Override protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+                long start = System.nanoTime();
+                runningMerges.incrementAndGet();
+                try {
+                    super.doMerge(merge);
+                    mergedDocs.addAndGet(merge.totalDocCount);
+                } finally {
+                    runningMerges.decrementAndGet();
+                    merges.record(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return all current values, the keys are the attribute names of the MBean
+     */
+    public Map<String, Number> getSnapshot() {
+        Map<String, Number> map = new LinkedHashMap<String, Number>();
+        for (Op op : Op.values()) {
+            put(map, op.key, latencies[op.ordinal()]);
+        }
+        map.put("cache.hits", cacheHits.get());
+        map.put("cache.misses", cacheMisses.get());
+        map.put("cache.hitRate", getCacheHitRate());
+        map.put("cache.size", raw.getCacheSize());
+        map.put("deferred.size", raw.getDeferredCount());
+        map.put("lucene.successfulReads", getSuccessfulLuceneReads());
+        map.put("lucene.failedReads", getFailedLuceneReads());
+        map.put("lucene.writerOperations", getWriterOperations());
+        map.put("generation.latest", raw.getLatestGen());
+        map.put("generation.searching", raw.getSearchingGen());
+        map.put("generation.lag", getGenerationLag());
+        put(map, "refresh", refreshes);
+        put(map, "reopenInterval", reopenIntervals);
+        put(map, "merge", merges);
+        map.put("merge.running", runningMerges.get());
+        map.put("merge.docs", mergedDocs.get());
+        put(map, "optimize", optimizes);
+        // the lookup costs of findById grow with the number of segments
+        map.put("segments.count", raw.getSegmentCount());
+        return map;
+    }
+
+    /**
+     * @return the current value of the specified attribute or null if there is no such attribute.
+     * Unlike getSnapshot only this value is determined, e.g. no searcher is acquired for the
+     * counters.
+     */
+    public Number getValue(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            Number n = getValue(getHistogram(name.substring(0, dot)), name.substring(dot + 1));
+            if (n != null)
+                return n;
+        }
+        if ("cache.hits".equals(name))
+            return cacheHits.get();
+        if ("cache.misses".equals(name))
+            return cacheMisses.get();
+        if ("cache.hitRate".equals(name))
+            return getCacheHitRate();
+        if ("cache.size".equals(name))
+            return raw.getCacheSize();
+        if ("deferred.size".equals(name))
+            return raw.getDeferredCount();
+        if ("lucene.successfulReads".equals(name))
+            return getSuccessfulLuceneReads();
+        if ("lucene.failedReads".equals(name))
+            return getFailedLuceneReads();
+        if ("lucene.writerOperations".equals(name))
+            return getWriterOperations();
+        if ("generation.latest".equals(name))
+            return raw.getLatestGen();
+        if ("generation.searching".equals(name))
+            return raw.getSearchingGen();
+        if ("generation.lag".equals(name))
+            return getGenerationLag();
+        if ("merge.running".equals(name))
+            return runningMerges.get();
+        if ("merge.docs".equals(name))
+            return mergedDocs.get();
+        if ("segments.count".equals(name))
+            return raw.getSegmentCount();
+        return null;
+    }
+
+    private LatencyHistogram getHistogram(String name) {
+        for (Op op : Op.values()) {
+            if (op.key.equals(name))
+                return latencies[op.ordinal()];
+        }
+        if ("refresh".equals(name))
+            return refreshes;
+        if ("reopenInterval".equals(name))
+            return reopenIntervals;
+        if ("merge".equals(name))
+            return merges;
+        if ("optimize".equals(name))
+            return optimizes;
+        return null;
+    }
+
+    private static Number getValue(LatencyHistogram h, String stat) {
+        if (h == null)
+            return null;
+        if ("count".equals(stat))
+            return h.getCount();
+        if ("meanMillis".equals(stat))
+            return h.getMeanMillis();
+        if ("p50Millis".equals(stat))
+            return h.getPercentileMillis(0.5);
+        if ("p99Millis".equals(stat))
+            return h.getPercentileMillis(0.99);
+        if ("maxMillis".equals(stat))
+            return h.getMaxMillis();
+        return null;
+    }
+
+    private static void put(Map<String, Number> map, String name, LatencyHistogram h) {
+        map.put(name + ".count", h.getCount());
+        map.put(name + ".meanMillis", h.getMeanMillis());
+        map.put(name + ".p50Millis", h.getPercentileMillis(0.5));
+        map.put(name + ".p99Millis", h.getPercentileMillis(0.99));
+        map.put(name + ".maxMillis", h.getMaxMillis());
+    }
+
+    /**
+     * Sets all counters and histograms back to zero
+     */
+    public void reset() {
+        for (LatencyHistogram h : latencies) {
+            h.reset();
+        }
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        successfulLuceneReads.set(0);
+        failedLuceneReads.set(0);
+        writerOperations.set(0);
+        refreshes.reset();
+        reopenIntervals.reset();
+        merges.reset();
+        mergedDocs.set(0);
+        optimizes.reset();
+    }
+
+    /**
+     * Registers the MBean under the specified name or, if another graph of the same name is open,
+     * under the first free name with a counter appended
+     */
+    void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (int i = 1;; i++) {
+                ObjectName tmp = new ObjectName("de.jetsli.lumeo:type=RawLucene,name="
+                        + ObjectName.quote(i == 1 ? name : name + "-" + i));
+                try {
+                    server.registerMBean(this, tmp);
+                    objectName = tmp;
+                    return;
+                } catch (InstanceAlreadyExistsException ex) {
+                }
+            }
+        } catch (Exception ex) {
+            objectName = null;
+            logger.warn("Cannot register metrics of " + name + " at the MBean server: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the name of the registered MBean or null if it is not registered
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception ex) {
+            logger.warn("Cannot unregister metrics " + objectName + ": " + ex.getMessage());
+        }
+        objectName = null;
+    }
+
+    @Override public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number n = getValue(attribute);
+        if (n == null)
+            throw new AttributeNotFoundException(attribute);
+        return n;
+    }
+
+    @Override public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Number n = getValue(a);
+            if (n != null)
+                list.add(new Attribute(a, n));
+        }
+        return list;
+    }
+
+    @Override public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override public Object invoke(String actionName, Object[] params, String[] signature) {
+        if ("reset".equals(actionName)) {
+            reset();
+            return null;
+        }
+        throw new UnsupportedOperationException("Unknown operation " + actionName);
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+        // the attributes and their types never change
+        if (info == null)
+            info = createMBeanInfo();
+        return info;
+    }
+
+    private MBeanInfo createMBeanInfo() {
+        Map<String, Number> snapshot = getSnapshot();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Entry<String, Number> e : snapshot.entrySet()) {
+            attrs[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                    e.getKey(), true, false, false);
+        }
+        MBeanOperationInfo[] ops = new MBeanOperationInfo[]{
+            new MBeanOperationInfo("reset", "Sets all counters to zero", null, "void", MBeanOperationInfo.ACTION)
+        };
+        return new MBeanInfo(getClass().getName(), "Metrics of " + raw, attrs, null, ops, null);
+    }
+
+    @Override public String toString() {
+        return getSnapshot().toString();
+    }
+}
@@ -16,15 +16,26 @@ package de.jetsli.lumeo;
  */
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene40.Lucene40Codec;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.LongField;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
@@ -32,28 +43,36 @@ import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.NRTManager;
 import org.apache.lucene.search.NRTManager.TrackingIndexWriter;
 import org.apache.lucene.search.NRTManagerReopenThread;
-import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.jetsli.lumeo.util.HubTracker;
 import de.jetsli.lumeo.util.IndexOp;
+import de.jetsli.lumeo.util.LabelDictionary;
 import de.jetsli.lumeo.util.LuceneHelper;
 import de.jetsli.lumeo.util.Mapping;
+import de.jetsli.lumeo.util.MergePolicies;
+import de.jetsli.lumeo.util.PendingOps;
 import de.jetsli.lumeo.util.SearchExecutor;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.*;
 
 /**
@@ -79,26 +98,49 @@ public class RawLucene {
     public static final String EDGE_OUT = "_eout";
     public static final String EDGE_IN = "_ein";
     public static final String EDGE_LABEL = "_elabel";
+    // of type long, the ordinal of the edge label in the label dictionary
+    public static final String EDGE_LABEL_ORD = "_elabelord";
     public static final String VERTEX_OUT = "_vout";
     public static final String VERTEX_IN = "_vin";
+    // of type long, the number of out and in edges of a vertex
+    public static final String OUT_DEGREE = "_outdeg";
+    public static final String IN_DEGREE = "_indeg";
     public static final Version VERSION = Version.LUCENE_40;
     private TrackingIndexWriter writer;
     private Directory dir;
     private NRTManager nrtManager;
     //Avoid Lucene performing "mega merges" with a finite limit on segments sizes that can be merged
     private int maxMergeMB = 3000;
-    private volatile long luceneOperations = 0;
-    private long failedLuceneReads = 0;
-    private long successfulLuceneReads = 0;
+    private final LumeoMetrics metrics = new LumeoMetrics(this);
     private double ramBufferSizeMB = 128;
     private int termIndexIntervalSize = 512;
+    // null means LogByteSizeMergePolicy with maxMergeMB
+    private MergePolicy mergePolicy;
+    // forceMerge if no write happened for this time, 0 disables it
+    private long optimizeQuietMillis = 0;
+    private int optimizeMaxSegments = 1;
+    private OptimizeThread optimizeThread;
     private final ReadWriteLock indexRWLock = new ReentrantReadWriteLock();
+    // bulkAdd is called from several threads which must not lower latestGen
+    private static final AtomicLongFieldUpdater<RawLucene> LATEST_GEN =
+            AtomicLongFieldUpdater.newUpdater(RawLucene.class, "latestGen");
     // id -> indexOp (create, update, delete)    
     // we could group indexop and same type (same analyzer) to make indexing faster    
     private final Map<Long, Map<Long, IndexOp>> realTimeCache = new ConcurrentHashMap<Long, Map<Long, IndexOp>>();
+    // id -> the operation of the newest generation in the realtime cache, avoids a lookup per generation
+    private final ConcurrentHashMap<Long, IndexOp> latestOps = new ConcurrentHashMap<Long, IndexOp>();
+    // operations of the current thread which are not yet visible to others as the transaction is still open
+    private final ThreadLocal<PendingOps> transactionOps = new ThreadLocal<PendingOps>();
+    // modified documents which are reindexed later (write-behind) to avoid one reindex per property
+    private final PendingOps deferredOps = new PendingOps();
+    private volatile boolean writeBehind = false;
+    // stays true once write-behind was used so that late dirty documents are still found
+    private volatile boolean deferredUsed = false;
     private Logger logger = LoggerFactory.getLogger(getClass());
     private Map<String, Mapping> mappings = new ConcurrentHashMap<String, Mapping>(2);
     private Mapping defaultMapping = new Mapping("_default");
+    private final HubTracker hubs = new HubTracker(100);
+    private final LabelDictionary labels = new LabelDictionary();
     private String name;
     private boolean closed = false;
     private FlushThread flushThread;
@@ -109,6 +151,15 @@ public class RawLucene {
     // If there are no waiting searchers reopen it less frequent.
     // This also controls how large the realtime cache can be. less frequent reopens => larger cache
     double ordinaryWaiting = 5.0;
+    // field -> postings format name e.g. in-memory postings for fast id lookups and traversals
+    private Map<String, String> postingsFormats = Collections.emptyMap();
+    // -1 means slightly higher than the thread calling init
+    private int threadPriority = -1;
+    private int maxThreadStates = 8;
+    private long commitIntervalMillis = 0;
+    private volatile long lastCommit = System.currentTimeMillis();
+    // keeps the files of published commits for replicas
+    private SnapshotDeletionPolicy snapshotPolicy;
 
     public RawLucene(String path) {
         try {
@@ -126,6 +177,35 @@ public class RawLucene {
         name = "mem " + dir.toString();
     }
 
+    /**
+     * For subclasses which delegate to other instances instead of having an own index
+     */
+    protected RawLucene() {
+    }
+
+    public RawLucene(LumeoConfig config) {
+        config.validate();
+        ramBufferSizeMB = config.getRamBufferSizeMB();
+        termIndexIntervalSize = config.getTermIndexInterval();
+        maxMergeMB = config.getMaxMergeMB();
+        mergePolicy = MergePolicies.create(config.getMergePolicy(), maxMergeMB);
+        optimizeQuietMillis = config.getOptimizeQuietMillis();
+        optimizeMaxSegments = config.getOptimizeMaxSegments();
+        ordinaryWaiting = config.getReopenMaxStaleSec();
+        incomingSearchesMaximumWaiting = config.getReopenMinStaleSec();
+        threadPriority = config.getThreadPriority();
+        maxThreadStates = config.getMaxThreadStates();
+        commitIntervalMillis = config.getCommitIntervalMillis();
+        writeBehind = config.isWriteBehind();
+        postingsFormats = config.getPostingsFormats();
+        try {
+            dir = config.createDirectory();
+            name = config + " " + dir.toString();
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot open lucene directory " + config + " error:" + ex.getMessage());
+        }
+    }
+
     public RawLucene init() {
         indexLock();
         try {
@@ -141,38 +221,45 @@ public class RawLucene {
                 IndexWriter.unlock(dir);
             }
             IndexWriterConfig cfg = new IndexWriterConfig(VERSION, defaultMapping.getCombinedAnalyzer());
-            LogByteSizeMergePolicy mp = new LogByteSizeMergePolicy();
-            mp.setMaxMergeMB(getMaxMergeMB());
+            MergePolicy mp = mergePolicy == null ? MergePolicies.logByteSize(getMaxMergeMB()) : mergePolicy;
             cfg.setRAMBufferSizeMB(ramBufferSizeMB);
             cfg.setTermIndexInterval(termIndexIntervalSize);
             cfg.setMergePolicy(mp);
+            cfg.setMergeScheduler(metrics.newMergeScheduler());
 
-            // TODO specify different formats for id fields etc
-            // -> this breaks 16 of our tests!? Lucene Bug?
-//            cfg.setCodec(new Lucene40Codec() {
-//
-//                @Override public PostingsFormat getPostingsFormatForField(String field) {
-//                    return new Pulsing40PostingsFormat();
-//                }
-//            });
+            if (!postingsFormats.isEmpty()) {
+                // resolve the names now to fail early for unknown formats
+                final Map<String, PostingsFormat> formats = new HashMap<String, PostingsFormat>();
+                for (Entry<String, String> e : postingsFormats.entrySet()) {
+                    formats.put(e.getKey(), PostingsFormat.forName(e.getValue()));
+                }
+                cfg.setCodec(new Lucene40Codec() {
+
+                    @Override public PostingsFormat getPostingsFormatForField(String field) {
+                        PostingsFormat format = formats.get(field);
+                        if (format != null)
+                            return format;
+                        return super.getPostingsFormatForField(field);
+                    }
+                });
+            }
 
-            // cfg.setMaxThreadStates(8);
+            cfg.setMaxThreadStates(maxThreadStates);
+            snapshotPolicy = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+            cfg.setIndexDeletionPolicy(snapshotPolicy);
             boolean create = !DirectoryReader.indexExists(dir);
             cfg.setOpenMode(create ? IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.APPEND);
 
             //wrap the writer with a tracking index writer
             writer = new TrackingIndexWriter(new IndexWriter(dir, cfg));
 
-            nrtManager = new NRTManager(writer, new SearcherFactory() {
-//              @Override
-//              public IndexSearcher newSearcher(IndexReader reader) throws IOException {
-//                //TODO do some kind of warming here?
-//                return new IndexSearcher(reader);
-//              }              
-            });
+            //TODO do some kind of warming in the searcher factory?
+            nrtManager = new NRTManager(writer, metrics.newSearcherFactory());
 
             getCurrentRTCache(latestGen);
-            int priority = Math.min(Thread.currentThread().getPriority() + 2, Thread.MAX_PRIORITY);
+            int priority = threadPriority;
+            if (priority < 0)
+                priority = Math.min(Thread.currentThread().getPriority() + 2, Thread.MAX_PRIORITY);
             flushThread = new FlushThread("flush-thread");
             flushThread.setPriority(priority);
             flushThread.setDaemon(true);
@@ -183,6 +270,16 @@ public class RawLucene {
             reopenThread.setPriority(priority);
             reopenThread.setDaemon(true);
             reopenThread.start();
+
+            if (optimizeQuietMillis > 0) {
+                optimizeThread = new OptimizeThread("optimize-thread");
+                optimizeThread.setDaemon(true);
+                optimizeThread.start();
+            }
+            metrics.register(name);
+            seedHubs();
+            loadLabels();
+            migrateLabels();
             return this;
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -192,40 +289,73 @@ public class RawLucene {
     }
 
     long getId(Document doc) {
-        return ((LongField) doc.getField(ID)).numericValue().longValue();
+        // documents loaded from the index contain a StoredField instead of a LongField
+        return doc.getField(ID).numericValue().longValue();
     }
 
     public Document findById(final long id) {
-        //Check cache
-        IndexOp result = getCurrentRTCache(latestGen).get(id);
-        if (result != null) {
-            if (result.type == IndexOp.Type.DELETE)
-                return null;
-            return result.document;
-        }
+        long start = System.nanoTime();
+        try {
+            // uncommitted changes of the current transaction win
+            IndexOp result = getTransactionOp(id);
+            if (result == null)
+                result = getDeferredOp(id);
+            if (result == null)
+                //Check cache
+                result = getCachedOp(id);
+            if (result != null) {
+                metrics.cacheHit();
+                if (result.type == IndexOp.Type.DELETE)
+                    return null;
+                return result.document;
+            }
 
-        return searchSomething(new SearchExecutor<Document>() {
+            metrics.cacheMiss();
+            Document doc = searchSomething(new SearchExecutor<Document>() {
 
-            @Override public Document execute(IndexSearcher searcher) throws Exception {
-                // TODO optimize via indexReader.termDocsEnum !?
-                IndexReaderContext trc = searcher.getTopReaderContext();
-                AtomicReaderContext[] arc = trc.leaves();
-                for (int i = 0; i < arc.length; i++) {
-                    AtomicReader subreader = arc[i].reader();
-                    DocsEnum docs = subreader.terms(UID).iterator(null).docs(subreader.getLiveDocs(), null, false);
-                    if (docs != null) {
-                        int docID = docs.nextDoc();
-                        if (docID != DocsEnum.NO_MORE_DOCS) {
+                @Override public Document execute(IndexSearcher searcher) throws Exception {
+                    IndexReaderContext trc = searcher.getTopReaderContext();
+                    AtomicReaderContext[] arc = trc.leaves();
+                    for (int i = 0; i < arc.length; i++) {
+                        AtomicReader subreader = arc[i].reader();
+                        int docID = findDocId(subreader, id);
+                        if (docID >= 0)
                             return subreader.document(docID);
-                        }
                     }
+                    return null;
                 }
-                return null;
-            }
-        });
+            });
+            metrics.luceneRead(doc != null);
+            return doc;
+        } finally {
+            metrics.record(LumeoMetrics.Op.FIND_BY_ID, start);
+        }
     }
 
     public Document findByUserId(final String uId) {
+        long start = System.nanoTime();
+        try {
+            PendingOps ops = transactionOps.get();
+            if (ops != null) {
+                Document doc = ops.findByUserId(uId);
+                if (doc != null)
+                    return doc;
+            }
+
+            Document doc = searchUserId(uId);
+            metrics.luceneRead(doc != null);
+            if (doc != null && ops != null) {
+                IndexOp op = ops.get(getId(doc));
+                if (op != null && op.type == IndexOp.Type.DELETE)
+                    return null;
+            }
+            return doc;
+        } finally {
+            metrics.record(LumeoMetrics.Op.FIND_BY_USER_ID, start);
+        }
+    }
+
+    private Document searchUserId(final String uId) {
         return searchSomething(new SearchExecutor<Document>() {
 
             @Override public Document execute(final IndexSearcher searcher) throws IOException {
@@ -303,11 +433,23 @@ public class RawLucene {
     }
 
     public void close() {
+        // stop the flush thread before locking as it needs the lock to write deferred documents
+        flushThread.interrupt();
+        if (optimizeThread != null)
+            optimizeThread.interrupt();
+        try {
+            flushThread.join();
+            if (optimizeThread != null)
+                optimizeThread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        metrics.unregister();
         indexLock();
         try {
-            flushThread.interrupt();
+            flushDeferred();
             reopenThread.close();
-            flushThread.join();
 
             // force correct count of calcSize
 //            waitUntilSearchable();
@@ -342,46 +484,237 @@ public class RawLucene {
     }
 
     /**
-     * Warning: Counts only docs already indexed - exclusive the realtime cache if not yet commited.
+     * Counts the documents where the field contains the specified value without scoring. The
+     * count includes writes which are not yet searchable: indexed versions of unflushed documents
+     * are skipped via the ids from the field cache and their latest version is counted instead.
+     */
+    public long count(Class cl, final String fieldName, final Object val) {
+        long start = System.nanoTime();
+        try {
+            final BytesRef bytes = getMapping(cl).toBytes(fieldName, val);
+            // read it before acquiring the searcher which then contains at least this generation
+            final long searchingGen = nrtManager.getCurrentSearchingGen();
+            return searchSomething(new SearchExecutor<Long>() {
+
+                @Override public Long execute(IndexSearcher searcher) throws Exception {
+                    AtomicReaderContext[] leaves = searcher.getTopReaderContext().leaves();
+                    Map<Long, IndexOp> unflushed = getUnflushedOps(searchingGen);
+                    long count = 0;
+                    for (int i = 0; i < leaves.length; i++) {
+                        if (unflushed.isEmpty())
+                            count += countTerm(leaves[i].reader(), fieldName, bytes);
+                        else
+                            count += countTermExcluding(leaves[i].reader(), fieldName, bytes, unflushed);
+                    }
+
+                    for (IndexOp op : unflushed.values()) {
+                        if (op.type != IndexOp.Type.DELETE && matches(op.document, fieldName, bytes))
+                            count++;
+                    }
+                    return count;
+                }
+            });
+        } finally {
+            metrics.record(LumeoMetrics.Op.COUNT, start);
+        }
+    }
+
+    /**
+     * Without deletions the docFreq is exact, otherwise only the live docs are counted
      */
-    long count(Class cl, final String fieldName, Object val) {
-        Mapping m = getMapping(cl);
-        final BytesRef bytes = m.toBytes(fieldName, val);
-        return searchSomething(new SearchExecutor<Long>() {
+    static int countTerm(AtomicReader reader, String fieldName, BytesRef bytes) throws IOException {
+        Terms terms = reader.terms(fieldName);
+        if (terms == null)
+            return 0;
+
+        TermsEnum termsEnum = terms.iterator(null);
+        if (!termsEnum.seekExact(bytes, false))
+            return 0;
+
+        Bits liveDocs = reader.getLiveDocs();
+        if (liveDocs == null)
+            return termsEnum.docFreq();
+
+        DocsEnum docs = termsEnum.docs(liveDocs, null, false);
+        int count = 0;
+        while (docs.nextDoc() != DocsEnum.NO_MORE_DOCS) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the live documents with the term whose id is not one of the excluded ones
+     */
+    static int countTermExcluding(AtomicReader reader, String fieldName, BytesRef bytes,
+            Map<Long, ?> excludedIds) throws IOException {
+        DocsEnum docs = reader.termDocsEnum(reader.getLiveDocs(), fieldName, bytes, false);
+        if (docs == null)
+            return 0;
+
+        long[] ids = FieldCache.DEFAULT.getLongs(reader, ID, FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+        int count = 0;
+        int docID;
+        while ((docID = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+            if (!excludedIds.containsKey(ids[docID]))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the segment local document id of the live document with the specified id or -1
+     */
+    public static int findDocId(AtomicReader reader, long id) throws IOException {
+        Terms terms = reader.terms(ID);
+        if (terms == null)
+            return -1;
+
+        TermsEnum termsEnum = terms.iterator(null);
+        // only used for seeking so the bytes can be reused
+        if (!termsEnum.seekExact(LuceneHelper.scratchLong(id), false))
+            return -1;
+
+        DocsEnum docs = termsEnum.docs(reader.getLiveDocs(), null, false);
+        if (docs == null)
+            return -1;
+
+        int docID = docs.nextDoc();
+        if (docID == DocsEnum.NO_MORE_DOCS)
+            return -1;
+        return docID;
+    }
+
+    /**
+     * @return true if the document would be found via the term of the specified field and bytes
+     */
+    boolean matches(Document doc, String fieldName, BytesRef bytes) throws IOException {
+        IndexableField[] fields = doc.getFields(fieldName);
+        if (fields.length == 0)
+            return false;
+
+        Mapping m = getMapping(doc.get(TYPE));
+        BytesRef tmp = new BytesRef();
+        for (IndexableField f : fields) {
+            if (!f.fieldType().indexed())
+                continue;
+
+            Number n = f.numericValue();
+            if (n != null) {
+                if (bytes.equals(m.toBytes(fieldName, n, tmp)))
+                    return true;
+            } else if (f.fieldType().tokenized()) {
+                if (containsToken(m.getAnalyzerFor(fieldName), fieldName, f.stringValue(), bytes))
+                    return true;
+            } else if (f.stringValue() != null && bytes.equals(m.toBytes(fieldName, f.stringValue(), tmp)))
+                return true;
+        }
+        return false;
+    }
 
-            @Override public Long execute(IndexSearcher searcher) throws Exception {
-                // TODO optimize via indexReader.termDocsEnum !?
-                TopDocs td = searcher.search(new TermQuery(new Term(fieldName, bytes)), 1);
-                return (long) td.totalHits;
+    private static boolean containsToken(Analyzer analyzer, String fieldName, String value, BytesRef bytes)
+            throws IOException {
+        String term = bytes.utf8ToString();
+        boolean found = false;
+        TokenStream ts = analyzer.tokenStream(fieldName, new StringReader(value));
+        try {
+            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+            ts.reset();
+            while (!found && ts.incrementToken()) {
+                found = term.equals(termAtt.toString());
             }
-        });
+            ts.end();
+        } finally {
+            ts.close();
+        }
+        return found;
     }
 
     long removeById(final long id) {
+        long start = System.nanoTime();
         try {
-            latestGen = writer.deleteDocuments(new Term(ID, LuceneHelper.newRefFromLong(id)));
-            getCurrentRTCache(latestGen).put(id, new IndexOp(IndexOp.Type.DELETE));
-            return latestGen;
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+            PendingOps ops = transactionOps.get();
+            if (ops != null) {
+                ops.delete(id);
+                return latestGen;
+            }
+
+            // excludes a concurrent flush of the dirty document so that the delete always wins
+            indexRWLock.readLock().lock();
+            try {
+                removeDeferred(id);
+                long gen = latestGen = writer.deleteDocuments(newIdTerm(id));
+                metrics.writerOperation(1);
+                cacheOp(gen, id, new IndexOp(IndexOp.Type.DELETE));
+                return gen;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                indexRWLock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(LumeoMetrics.Op.REMOVE, start);
         }
     }
 
     public long fastPut(long id, Document newDoc) {
+        long start = System.nanoTime();
         try {
             String type = newDoc.get(TYPE);
             if (type == null)
                 throw new UnsupportedOperationException("Document needs to have a type associated");
+            PendingOps ops = transactionOps.get();
+            if (ops != null) {
+                ops.put(id, newDoc);
+                return latestGen;
+            }
+
             Mapping m = getMapping(type);
-            latestGen = writer.updateDocument(new Term(ID, LuceneHelper.newRefFromLong(id)),
-                    newDoc, m.getCombinedAnalyzer());
-            getCurrentRTCache(latestGen).put(id, new IndexOp(newDoc, IndexOp.Type.UPDATE));
-            return latestGen;
+            // excludes a concurrent flush which would overwrite this version with an older one
+            indexRWLock.readLock().lock();
+            try {
+                removeDeferred(id);
+                long gen = latestGen = writer.updateDocument(newIdTerm(id), newDoc, m.getCombinedAnalyzer());
+                metrics.writerOperation(1);
+                cacheOp(gen, id, new IndexOp(newDoc, IndexOp.Type.UPDATE));
+                return gen;
+            } finally {
+                indexRWLock.readLock().unlock();
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            metrics.record(LumeoMetrics.Op.PUT, start);
+        }
+    }
+
+    /**
+     * Adds a new document without deleting an older version and without putting it into the
+     * realtime cache. Only use it for new ids e.g. while importing. Thread safe.
+     */
+    public long bulkAdd(Document newDoc) {
+        String type = newDoc.get(TYPE);
+        if (type == null)
+            throw new UnsupportedOperationException("Document needs to have a type associated");
+        try {
+            long gen = writer.addDocument(newDoc, getMapping(type).getCombinedAnalyzer());
+            metrics.writerOperation(1);
+            long current;
+            while ((current = latestGen) < gen && !LATEST_GEN.compareAndSet(this, current, gen)) {
+            }
+            return gen;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * The writer keeps a reference to the term so its bytes must not be reused.
+     */
+    static Term newIdTerm(long id) {
+        return new Term(ID, LuceneHelper.newRefFromLong(id));
+    }
+
     public long put(String uId, long id, Document newDoc) {
         String type = newDoc.get(TYPE);
         if (type == null)
@@ -396,18 +729,300 @@ public class RawLucene {
         return fastPut(id, newDoc);
     }
 
-    void refresh() {
+    /**
+     * Same as fastPut but in write-behind mode the document is only marked as dirty and gets
+     * reindexed later in one go - no matter how many properties were changed in the meantime. The
+     * dirty document is still returned from findById.
+     */
+    public long putDeferred(long id, Document doc) {
+        if (!writeBehind || isTransactionActive())
+            // a transaction already collapses several updates of one element
+            return fastPut(id, doc);
+
+        synchronized (deferredOps) {
+            deferredUsed = true;
+            deferredOps.put(id, doc);
+        }
+        return latestGen;
+    }
+
+    /**
+     * Reindexes all dirty documents
+     */
+    public long flushDeferred() {
+        synchronized (deferredOps) {
+            if (deferredOps.isEmpty())
+                return latestGen;
+        }
+
+        indexLock();
+        try {
+            Map<Long, IndexOp> dirty;
+            synchronized (deferredOps) {
+                dirty = new LinkedHashMap<Long, IndexOp>(deferredOps.size());
+                for (Entry<Long, IndexOp> e : deferredOps.entries()) {
+                    dirty.put(e.getKey(), e.getValue());
+                }
+            }
+            return flushDeferred(dirty);
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * Reindexes the dirty document of the specified id e.g. if an element won't be modified
+     * anymore.
+     */
+    public long flushDeferred(long id) {
+        indexLock();
+        try {
+            IndexOp op;
+            synchronized (deferredOps) {
+                op = deferredOps.get(id);
+                if (op == null)
+                    return latestGen;
+            }
+            return flushDeferred(Collections.singletonMap(id, op));
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * Needs the index lock: fastPut and removeById of the same ids wait until the flush is done,
+     * so a later delete or update is never overwritten by the dirty version.
+     */
+    private long flushDeferred(Map<Long, IndexOp> dirty) {
+        PendingOps ops = new PendingOps();
+        for (Entry<Long, IndexOp> e : dirty.entrySet()) {
+            // the element keeps changing its document, so index the current state of it
+            Document doc = e.getValue().document;
+            synchronized (doc) {
+                ops.put(e.getKey(), copy(doc));
+            }
+        }
+        long gen = apply(ops);
+        // remove the dirty docs only after they are in the realtime cache so that findById sees
+        // them all the time. Keep documents which were marked dirty again while applying.
+        synchronized (deferredOps) {
+            for (Entry<Long, IndexOp> e : dirty.entrySet()) {
+                deferredOps.remove(e.getKey(), e.getValue());
+            }
+        }
+        return gen;
+    }
+
+    private IndexOp getDeferredOp(long id) {
+        if (!deferredUsed)
+            return null;
+
+        synchronized (deferredOps) {
+            return deferredOps.get(id);
+        }
+    }
+
+    private void removeDeferred(long id) {
+        if (!deferredUsed)
+            return;
+
+        synchronized (deferredOps) {
+            deferredOps.remove(id);
+        }
+    }
+
+    public int getDeferredCount() {
+        synchronized (deferredOps) {
+            return deferredOps.size();
+        }
+    }
+
+    /**
+     * In write-behind mode element changes are collected and reindexed once per element while
+     * flushing, at the end of a transaction or periodically in the background.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+        // documents which were marked dirty concurrently are still found and flushed later
+        if (!writeBehind)
+            flushDeferred();
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Starts buffering all following writes of the current thread until commitTransaction or
+     * rollbackTransaction is called. The buffered writes are only visible to the current thread.
+     */
+    public void startTransaction() {
+        if (transactionOps.get() != null)
+            throw new IllegalStateException("Nested transactions are not supported");
+
+        transactionOps.set(new PendingOps());
+    }
+
+    public boolean isTransactionActive() {
+        return transactionOps.get() != null;
+    }
+
+    /**
+     * Applies all buffered writes of the current transaction in one batch.
+     */
+    public long commitTransaction() {
+        PendingOps ops = transactionOps.get();
+        if (ops == null)
+            throw new IllegalStateException("No transaction active");
+
+        transactionOps.remove();
+        return apply(ops);
+    }
+
+    /**
+     * Drops all buffered writes of the current transaction. Elements which were modified within the
+     * transaction still hold their modified documents and should be fetched again.
+     */
+    public void rollbackTransaction() {
+        PendingOps ops = transactionOps.get();
+        if (ops == null)
+            throw new IllegalStateException("No transaction active");
+
+        transactionOps.remove();
+        ops.clear();
+    }
+
+    private IndexOp getTransactionOp(long id) {
+        PendingOps ops = transactionOps.get();
+        if (ops == null)
+            return null;
+        return ops.get(id);
+    }
+
+    /**
+     * Sends all operations to the writer: first all deletes in one call and then the updates. No
+     * other write and no commit interleaves with the batch. Documents without a type are rejected
+     * before anything is written, but if the writer fails in the middle of the batch the already
+     * sent operations stay applied.
+     */
+    long apply(PendingOps ops) {
+        if (ops.isEmpty())
+            return latestGen;
+
+        List<Term> deletes = new ArrayList<Term>();
+        Map<Long, IndexOp> cacheOps = new HashMap<Long, IndexOp>(ops.size());
+        for (Entry<Long, IndexOp> e : ops.entries()) {
+            IndexOp op = e.getValue();
+            if (op.type == IndexOp.Type.DELETE)
+                deletes.add(newIdTerm(e.getKey()));
+            else if (op.document.get(TYPE) == null)
+                throw new UnsupportedOperationException("Document needs to have a type associated");
+
+            cacheOps.put(e.getKey(), op);
+        }
+
+        // no other batch should interleave with this one
+        indexLock();
+        try {
+            long gen = latestGen;
+            if (!deletes.isEmpty())
+                gen = writer.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+
+            for (Entry<Long, IndexOp> e : ops.entries()) {
+                IndexOp op = e.getValue();
+                if (op.type == IndexOp.Type.DELETE)
+                    continue;
+
+                Mapping m = getMapping(op.document.get(TYPE));
+                gen = writer.updateDocument(newIdTerm(e.getKey()), op.document, m.getCombinedAnalyzer());
+            }
+            latestGen = gen;
+            metrics.writerOperation(ops.size());
+            for (Entry<Long, IndexOp> e : cacheOps.entrySet()) {
+                cacheOp(gen, e.getKey(), e.getValue());
+            }
+            ops.clear();
+            return latestGen;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * Removes all documents from the index
+     */
+    public void clear() {
+        indexLock();
+        try {
+            transactionOps.remove();
+            // otherwise the next flush writes the dirty documents into the empty index
+            synchronized (deferredOps) {
+                deferredOps.clear();
+            }
+            latestGen = writer.deleteAll();
+            for (Map<Long, IndexOp> cache : realTimeCache.values()) {
+                cache.clear();
+            }
+            latestOps.clear();
+            hubs.clear();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * Makes all writes searchable and commits them
+     */
+    public void refresh() {
+        long start = System.nanoTime();
         try {
             // use waitForGeneration instead?
 //            writer.commit();
-            writer.getIndexWriter().commit();
+            flushDeferred();
+            commit();
             nrtManager.maybeRefreshBlocking();
+            metrics.refreshed(start);
 //            nrtManager.waitForGeneration(latestGen, true);
         } catch (Exception ex) {
-            throw new RuntimeException();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    long getSearchingGen() {
+        return nrtManager.getCurrentSearchingGen();
+    }
+
+    /**
+     * Commits all writes and keeps the files of the commit until releaseCommit is called with the
+     * same id, e.g. while replicas copy them
+     */
+    IndexCommit snapshotCommit(String id) {
+        try {
+            flushDeferred();
+            commit();
+            return snapshotPolicy.snapshot(id);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    void releaseCommit(String id) {
+        try {
+            snapshotPolicy.release(id);
+            writer.getIndexWriter().deleteUnusedFiles();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
         }
     }
 
+    Directory getDirectory() {
+        return dir;
+    }
+
     /**
      * You'll need to call releaseUnmanagedSearcher afterwards
      */
@@ -415,6 +1030,26 @@ public class RawLucene {
         return nrtManager.acquire();
     }
 
+    /**
+     * Acquires a searcher like newUnmanagedSearcher and puts all operations which it does not
+     * contain yet into the specified map
+     */
+    IndexSearcher newUnmanagedSearcher(Map<Long, IndexOp> unflushedOps) {
+        // read it before acquiring the searcher which then contains at least this generation
+        long searchingGen = getSearchingGen();
+        IndexSearcher searcher = newUnmanagedSearcher();
+        unflushedOps.putAll(getUnflushedOps(searchingGen));
+        return searcher;
+    }
+
+    /**
+     * @return a searcher which contains at least the edges of the specified vertex and edge type.
+     * Release it via releaseUnmanagedSearcher.
+     */
+    IndexSearcher newEdgeSearcher(long vertexId, String edgeType) {
+        return newUnmanagedSearcher();
+    }
+
     void releaseUnmanagedSearcher(IndexSearcher searcher) {
         try {
             nrtManager.release(searcher);
@@ -423,10 +1058,46 @@ public class RawLucene {
         }
     }
 
+    /**
+     * Documents loaded from the index contain only stored fields. This creates a document with the
+     * same values which can be indexed again.
+     */
+    Document toIndexable(Document loaded) {
+        Mapping m = getMapping(loaded.get(TYPE));
+        Document doc = new Document();
+        for (IndexableField f : loaded.getFields()) {
+            String fieldName = f.name();
+            Number n = f.numericValue();
+            if (ID.equals(fieldName) || VERTEX_OUT.equals(fieldName) || VERTEX_IN.equals(fieldName)
+                    || EDGE_OUT.equals(fieldName) || EDGE_IN.equals(fieldName) || EDGE_LABEL_ORD.equals(fieldName))
+                doc.add(m.newIdField(fieldName, n.longValue()));
+            else if (UID.equals(fieldName))
+                doc.add(m.newUIdField(fieldName, f.stringValue()));
+            else if (n != null)
+                doc.add(m.createField(fieldName, n));
+            else if (f.binaryValue() != null)
+                doc.add(new StoredField(fieldName, f.binaryValue()));
+            else
+                doc.add(m.createField(fieldName, f.stringValue()));
+        }
+        return doc;
+    }
+
     void removeDoc(Document doc) {
         removeById(getId(doc));
     }
 
+    /**
+     * Fields are only replaced and never changed in place, so copying the field list is enough
+     */
+    static Document copy(Document doc) {
+        Document copy = new Document();
+        for (IndexableField f : doc.getFields()) {
+            copy.add(f);
+        }
+        return copy;
+    }
+
     void indexLock() {
         indexRWLock.writeLock().lock();
     }
@@ -446,13 +1117,309 @@ public class RawLucene {
         edgeDoc.add(defaultMapping.newIdField(VERTEX_IN, iIndex));
 
         long eId = getId(edgeDoc);
+        setDegree(vOut, OUT_DEGREE, getDegree(vOut, OUT_DEGREE) + 1);
         vOut.add(defaultMapping.newIdField(EDGE_OUT, eId));
+        setDegree(vIn, IN_DEGREE, getDegree(vIn, IN_DEGREE) + 1);
         vIn.add(defaultMapping.newIdField(EDGE_IN, eId));
+        updateHub(vOut);
+        updateHub(vIn);
 
         fastPut(oIndex, vOut);
         fastPut(iIndex, vIn);
     }
 
+    /**
+     * Sets the edge references and degrees of the specified vertices from the searchable edges,
+     * e.g. after the edges were added via bulkAdd without touching their vertices. Call it after a
+     * refresh as the vertices are read from the searcher. Costs two seeks per vertex and segment.
+     *
+     * @return the number of updated vertices
+     */
+    public int linkVertices(final long[] vertexIds, final int length) {
+        return searchSomething(new SearchExecutor<Integer>() {
+
+            @Override public Integer execute(IndexSearcher searcher) throws Exception {
+                AtomicReaderContext[] leaves = searcher.getTopReaderContext().leaves();
+                int updated = 0;
+                for (int i = 0; i < length; i++) {
+                    long vertexId = vertexIds[i];
+                    Document vertex = null;
+                    List<Long> outEdges = new ArrayList<Long>();
+                    List<Long> inEdges = new ArrayList<Long>();
+                    for (AtomicReaderContext ctx : leaves) {
+                        AtomicReader reader = ctx.reader();
+                        if (vertex == null) {
+                            int docID = findDocId(reader, vertexId);
+                            if (docID >= 0)
+                                vertex = reader.document(docID);
+                        }
+                        collectEdges(reader, VERTEX_OUT, vertexId, outEdges);
+                        collectEdges(reader, VERTEX_IN, vertexId, inEdges);
+                    }
+                    if (vertex == null)
+                        continue;
+
+                    Document doc = toIndexable(vertex);
+                    doc.removeFields(EDGE_OUT);
+                    doc.removeFields(EDGE_IN);
+                    for (Long eId : outEdges) {
+                        doc.add(defaultMapping.newIdField(EDGE_OUT, eId));
+                    }
+                    for (Long eId : inEdges) {
+                        doc.add(defaultMapping.newIdField(EDGE_IN, eId));
+                    }
+                    setDegree(doc, OUT_DEGREE, outEdges.size());
+                    setDegree(doc, IN_DEGREE, inEdges.size());
+                    updateHub(doc);
+                    fastPut(vertexId, doc);
+                    updated++;
+                }
+                return updated;
+            }
+        });
+    }
+
+    private static void collectEdges(AtomicReader reader, String vertexField, long vertexId, List<Long> edgeIds)
+            throws IOException {
+        DocsEnum docs = reader.termDocsEnum(reader.getLiveDocs(), vertexField, LuceneHelper.scratchLong(vertexId), false);
+        if (docs == null)
+            return;
+
+        long[] ids = FieldCache.DEFAULT.getLongs(reader, ID, FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+        int docID;
+        while ((docID = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+            edgeIds.add(ids[docID]);
+        }
+    }
+
+    /**
+     * Sets one property of an element without an element handle, e.g. to write back computed
+     * values. Within a transaction all updates are applied in one batch.
+     *
+     * @return false if the element does not exist
+     */
+    public boolean updateProperty(long id, String key, Object value) {
+        Document doc = findById(id);
+        if (doc == null)
+            return false;
+
+        doc = editable(doc);
+        doc.removeFields(key);
+        doc.add(getMapping(doc.get(TYPE)).createField(key, value));
+        fastPut(id, doc);
+        return true;
+    }
+
+    /**
+     * Adds the label and its ordinal from the label dictionary to the edge
+     */
+    public void setLabel(Document edgeDoc, String label) {
+        edgeDoc.add(getMapping(edgeDoc.get(TYPE)).createField(EDGE_LABEL, label));
+        edgeDoc.add(defaultMapping.newIdField(EDGE_LABEL_ORD, labels.getOrCreate(label)));
+    }
+
+    /**
+     * @return the ordinal of the edge label or -1 for edges stored without one
+     */
+    public int getLabelOrdinal(Document edgeDoc) {
+        IndexableField f = edgeDoc.getField(EDGE_LABEL_ORD);
+        if (f != null)
+            return f.numericValue().intValue();
+        String label = edgeDoc.get(EDGE_LABEL);
+        return label == null ? -1 : labels.getOrdinal(label);
+    }
+
+    public LabelDictionary getLabels() {
+        return labels;
+    }
+
+    /**
+     * Registers the ordinals stored with the edges in the label dictionary. Reads only the first
+     * edge with an ordinal of every label.
+     */
+    void loadLabels() {
+        searchSomething(new SearchExecutor<Object>() {
+
+            @Override public Object execute(IndexSearcher searcher) throws Exception {
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    AtomicReader reader = ctx.reader();
+                    Terms terms = reader.terms(EDGE_LABEL);
+                    if (terms == null)
+                        continue;
+
+                    Bits hasOrd = FieldCache.DEFAULT.getDocsWithField(reader, EDGE_LABEL_ORD);
+                    TermsEnum termsEnum = terms.iterator(null);
+                    DocsEnum docs = null;
+                    BytesRef term;
+                    while ((term = termsEnum.next()) != null) {
+                        String label = term.utf8ToString();
+                        if (labels.getOrdinal(label) >= 0)
+                            continue;
+
+                        // edges of the old format have no ordinal
+                        docs = termsEnum.docs(reader.getLiveDocs(), docs, false);
+                        int docID;
+                        while ((docID = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+                            if (!hasOrd.get(docID))
+                                continue;
+                            IndexableField ord = reader.document(docID).getField(EDGE_LABEL_ORD);
+                            labels.put(label, ord.numericValue().intValue());
+                            break;
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Edges of the old format only have the label. Adds the ordinal to them once so that label
+     * filters and traversals find them.
+     *
+     * @return the number of migrated edges
+     */
+    int migrateLabels() {
+        int migrated = searchSomething(new SearchExecutor<Integer>() {
+
+            @Override public Integer execute(IndexSearcher searcher) throws Exception {
+                int count = 0;
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    AtomicReader reader = ctx.reader();
+                    Terms terms = reader.terms(EDGE_LABEL);
+                    if (terms == null)
+                        continue;
+
+                    Bits hasOrd = FieldCache.DEFAULT.getDocsWithField(reader, EDGE_LABEL_ORD);
+                    TermsEnum termsEnum = terms.iterator(null);
+                    DocsEnum docs = null;
+                    while (termsEnum.next() != null) {
+                        docs = termsEnum.docs(reader.getLiveDocs(), docs, false);
+                        int docID;
+                        while ((docID = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+                            if (hasOrd.get(docID))
+                                continue;
+
+                            Document edge = toIndexable(reader.document(docID));
+                            edge.add(defaultMapping.newIdField(EDGE_LABEL_ORD, labels.getOrCreate(edge.get(EDGE_LABEL))));
+                            fastPut(getId(edge), edge);
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            }
+        });
+        if (migrated > 0) {
+            logger.info("Added the label ordinal to " + migrated + " edges of " + name);
+            refresh();
+        }
+        return migrated;
+    }
+
+    /**
+     * Removes the edge and its references from the out and in vertex
+     */
+    void removeRelation(Document edgeDoc) {
+        long eId = getId(edgeDoc);
+        long oIndex = edgeDoc.getField(VERTEX_OUT).numericValue().longValue();
+        long iIndex = edgeDoc.getField(VERTEX_IN).numericValue().longValue();
+        Document vOut = findById(oIndex);
+        if (vOut != null) {
+            vOut = editable(vOut);
+            removeEdgeRef(vOut, EDGE_OUT, OUT_DEGREE, eId);
+        }
+        Document vIn = oIndex == iIndex ? vOut : findById(iIndex);
+        if (vIn != null) {
+            if (vIn != vOut)
+                vIn = editable(vIn);
+            removeEdgeRef(vIn, EDGE_IN, IN_DEGREE, eId);
+        }
+
+        if (vOut != null) {
+            updateHub(vOut);
+            fastPut(oIndex, vOut);
+        }
+        if (vIn != null && vIn != vOut) {
+            updateHub(vIn);
+            fastPut(iIndex, vIn);
+        }
+        removeDoc(edgeDoc);
+    }
+
+    /**
+     * Documents of the realtime cache are shared with the element handles and are modified directly
+     * like in initRelation. Documents loaded from the index need to be converted first.
+     */
+    private Document editable(Document doc) {
+        return doc.getField(ID).fieldType().indexed() ? doc : toIndexable(doc);
+    }
+
+    private void removeEdgeRef(Document vertex, String edgeField, String degreeField, long eId) {
+        IndexableField[] refs = vertex.getFields(edgeField);
+        vertex.removeFields(edgeField);
+        boolean found = false;
+        for (IndexableField f : refs) {
+            long id = f.numericValue().longValue();
+            if (!found && id == eId)
+                found = true;
+            else
+                vertex.add(defaultMapping.newIdField(edgeField, id));
+        }
+        if (found)
+            setDegree(vertex, degreeField, Math.max(0, getDegree(vertex, degreeField) - 1));
+    }
+
+    /**
+     * @param degreeField OUT_DEGREE or IN_DEGREE
+     * @return the number of out or in edges of the vertex. Counts the edge references for
+     * vertices which were stored without a degree.
+     */
+    public static long getDegree(Document vertex, String degreeField) {
+        IndexableField f = vertex.getField(degreeField);
+        if (f != null)
+            return f.numericValue().longValue();
+        return vertex.getFields(OUT_DEGREE.equals(degreeField) ? EDGE_OUT : EDGE_IN).length;
+    }
+
+    private void setDegree(Document vertex, String degreeField, long degree) {
+        vertex.removeFields(degreeField);
+        vertex.add(defaultMapping.newLongField(degreeField, degree));
+    }
+
+    private void updateHub(Document vertex) {
+        hubs.update(getId(vertex), getDegree(vertex, OUT_DEGREE) + getDegree(vertex, IN_DEGREE));
+    }
+
+    /**
+     * @return the vertices with the highest degree which are updated on every edge change
+     */
+    public HubTracker getHubTracker() {
+        return hubs;
+    }
+
+    /**
+     * Fills the hub tracker with the vertices of the highest out and in degree of the index
+     */
+    void seedHubs() {
+        final int k = hubs.getCapacity();
+        searchSomething(new SearchExecutor<Object>() {
+
+            @Override public Object execute(IndexSearcher searcher) throws Exception {
+                for (String degreeField : new String[]{OUT_DEGREE, IN_DEGREE}) {
+                    Sort sort = new Sort(defaultMapping.getSortField(degreeField, true));
+                    TopDocs td = searcher.search(new MatchAllDocsQuery(), null, k, sort);
+                    for (ScoreDoc sd : td.scoreDocs) {
+                        Document doc = searcher.doc(sd.doc);
+                        if (doc.getField(OUT_DEGREE) != null || doc.getField(IN_DEGREE) != null)
+                            updateHub(doc);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
     static String getVertexFieldForEdgeType(String edgeType) {
         if (EDGE_IN.equals(edgeType))
             return VERTEX_IN;
@@ -469,6 +1436,14 @@ public class RawLucene {
         return getMapping(cl.getSimpleName());
     }
 
+    /**
+     * Uses the mappings of the specified instance so that both index documents the same way
+     */
+    void shareMappings(RawLucene other) {
+        mappings = other.mappings;
+        defaultMapping = other.defaultMapping;
+    }
+
     public Mapping getMapping(String type) {
         if (type == null)
             throw new NullPointerException("Type mustn't be empty!");
@@ -482,6 +1457,59 @@ public class RawLucene {
         }
         return m;
     }
+    /**
+     * @return the latest cached operation for the specified id. Normally it is in the cache of the
+     * current generation but it could also be in an older one which is not yet searchable.
+     */
+    private IndexOp getCachedOp(long id) {
+        return latestOps.get(id);
+    }
+
+    /**
+     * Puts the operation into the realtime cache of the generation and makes it the latest one of
+     * the id unless a newer generation was cached concurrently
+     */
+    private void cacheOp(long gen, long id, IndexOp op) {
+        op.gen = gen;
+        getCurrentRTCache(gen).put(id, op);
+        IndexOp old = latestOps.putIfAbsent(id, op);
+        while (old != null && old.gen <= gen && !latestOps.replace(id, old, op)) {
+            old = latestOps.putIfAbsent(id, op);
+        }
+    }
+
+    /**
+     * @return the latest operation per id of all writes which are newer than the specified
+     * generation or which are not yet sent to the writer (write-behind)
+     */
+    Map<Long, IndexOp> getUnflushedOps(long searchingGen) {
+        Map<Long, IndexOp> result = new HashMap<Long, IndexOp>();
+        for (Entry<Long, IndexOp> e : latestOps.entrySet()) {
+            if (e.getValue().gen > searchingGen)
+                result.put(e.getKey(), e.getValue());
+        }
+
+        if (deferredUsed)
+            synchronized (deferredOps) {
+                for (Entry<Long, IndexOp> e : deferredOps.entries()) {
+                    result.put(e.getKey(), e.getValue());
+                }
+            }
+        return result;
+    }
+
+    /**
+     * Puts the operations of the transaction of the calling thread into the specified map
+     */
+    void putTransactionOps(Map<Long, IndexOp> result) {
+        PendingOps ops = transactionOps.get();
+        if (ops == null)
+            return;
+        for (Entry<Long, IndexOp> e : ops.entries()) {
+            result.put(e.getKey(), e.getValue());
+        }
+    }
+
     private Map<Long, IndexOp> tmpCache;
     private long tmpGen = -2;
 
@@ -496,6 +1524,68 @@ public class RawLucene {
         return tmpCache;
     }
 
+    /**
+     * Merges the index down to the specified number of segments. Expensive, so call it only if
+     * there is no or only low write load. Blocks until the merges are done.
+     */
+    public void optimize(int maxSegments) {
+        long start = System.nanoTime();
+        try {
+            writer.getIndexWriter().forceMerge(maxSegments, true);
+            metrics.optimized(start);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return the number of segments of the current searcher
+     */
+    public int getSegmentCount() {
+        return searchSomething(new SearchExecutor<Integer>() {
+
+            @Override public Integer execute(IndexSearcher searcher) {
+                return searcher.getTopReaderContext().leaves().length;
+            }
+        });
+    }
+
+    /**
+     * Optimizes the index after no write happened for the quiet time
+     */
+    private class OptimizeThread extends Thread {
+
+        public OptimizeThread(String name) {
+            super(name);
+        }
+
+        @Override public void run() {
+            long lastGen = latestGen;
+            long quietSince = System.currentTimeMillis();
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(Math.min(1000, optimizeQuietMillis));
+                    long now = System.currentTimeMillis();
+                    if (lastGen != latestGen) {
+                        lastGen = latestGen;
+                        quietSince = now;
+                    } else if (now - quietSince >= optimizeQuietMillis) {
+                        // do not check again before the next quiet period, even if it fails
+                        quietSince = now;
+                        if (getSegmentCount() > optimizeMaxSegments)
+                            optimize(optimizeMaxSegments);
+                    }
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (AlreadyClosedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    logger.error("Problem while optimizing", ex);
+                }
+            }
+        }
+    }
+
     private class FlushThread extends Thread {
 
         public FlushThread(String name) {
@@ -506,7 +1596,9 @@ public class RawLucene {
             Throwable exception = null;
             while (!isInterrupted()) {
                 try {
+                    flushDeferred();
                     cleanUpCache(latestGen);
+                    maybeCommit();
                 } catch (InterruptedException ex) {
                     exception = ex;
                     break;
@@ -532,6 +1624,36 @@ public class RawLucene {
         }
     }
 
+    /**
+     * Commits if the commit interval is over
+     */
+    private void maybeCommit() throws IOException {
+        if (commitIntervalMillis <= 0 || System.currentTimeMillis() - lastCommit < commitIntervalMillis)
+            return;
+
+        commit();
+    }
+
+    /**
+     * Commits under the index lock so that a commit never contains only a part of a batch
+     */
+    private void commit() throws IOException {
+        indexLock();
+        try {
+            writer.getIndexWriter().commit();
+            lastCommit = System.currentTimeMillis();
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * @return the memory currently used by the writer for buffered documents and deletes
+     */
+    public long getRamSizeInBytes() {
+        return writer.getIndexWriter().ramSizeInBytes();
+    }
+
     /**
      * Nearly always faster than flush but slightly more expensive as it will force the nrtManager
      * to reopen a reader very fast
@@ -542,6 +1664,7 @@ public class RawLucene {
 
     public void flush() {
         try {
+            flushDeferred();
             cleanUpCache(latestGen);
         } catch (InterruptedException ex) {
             throw new RuntimeException(ex);
@@ -575,6 +1698,10 @@ public class RawLucene {
                 iter.remove();
                 removed++;
                 removedItems += e.getValue().size();
+                for (Entry<Long, IndexOp> op : e.getValue().entrySet()) {
+                    // only if no newer operation of the id was cached in the meantime
+                    latestOps.remove(op.getKey(), op.getValue());
+                }
                 e.getValue().clear();
             }
         }
@@ -586,8 +1713,13 @@ public class RawLucene {
         return ramBufferSizeMB;
     }
 
+    /**
+     * Takes effect immediately if already initialized
+     */
     public void setRamBufferSizeMB(double ramBufferSizeMB) {
         this.ramBufferSizeMB = ramBufferSizeMB;
+        if (writer != null)
+            writer.getIndexWriter().getConfig().setRAMBufferSizeMB(ramBufferSizeMB);
     }
 
     public int getTermIndexIntervalSize() {
@@ -598,6 +1730,26 @@ public class RawLucene {
         this.termIndexIntervalSize = termIndexIntervalSize;
     }
 
+    /**
+     * Replaces the default LogByteSizeMergePolicy. Call it before init.
+     *
+     * @see MergePolicies
+     */
+    public void setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+    }
+
+    /**
+     * Merges the index in the background down to maxSegments after no write happened for
+     * quietMillis. Call it before init.
+     */
+    public void setBackgroundOptimize(long quietMillis, int maxSegments) {
+        if (maxSegments < 1)
+            throw new IllegalArgumentException("maxSegments must be at least 1");
+        optimizeQuietMillis = quietMillis;
+        optimizeMaxSegments = maxSegments;
+    }
+
     public void setMaxMergeMB(int maxMergeMB) {
         this.maxMergeMB = maxMergeMB;
     }
@@ -607,15 +1759,35 @@ public class RawLucene {
     }
 
     public long getLuceneAdds() {
-        return luceneOperations;
+        return metrics.getWriterOperations();
     }
 
     public long getFailedLuceneReads() {
-        return failedLuceneReads;
+        return metrics.getFailedLuceneReads();
     }
 
     public long getSuccessfulLuceneReads() {
-        return successfulLuceneReads;
+        return metrics.getSuccessfulLuceneReads();
+    }
+
+    public LumeoMetrics getMetrics() {
+        return metrics;
+    }
+
+    long getLatestGen() {
+        return latestGen;
+    }
+
+    /**
+     * @return the number of operations in the realtime cache, including already searchable ones
+     * which are not yet cleaned up
+     */
+    int getCacheSize() {
+        int size = 0;
+        for (Map<Long, IndexOp> cache : realTimeCache.values()) {
+            size += cache.size();
+        }
+        return size;
     }
 
     public NRTManager getNrtManager() {
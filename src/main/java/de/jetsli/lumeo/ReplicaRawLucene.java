@@ -0,0 +1,453 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.IndexOp;
+import de.jetsli.lumeo.util.PendingOps;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NRTManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read only copy of a primary RawLucene. It copies the files of the commits published via
+ * ReplicationPublisher from the directory of the primary into its own directory and searches them.
+ * As segment files never change only new files are copied. The primary directory can be opened by
+ * another process e.g. from the same disk or a network file system, so reads can be spread across
+ * processes without indexing the data again.
+ *
+ * Use it like a normal RawLucene for a LuceneGraph, but writes throw an exception and reads only
+ * see the last synced commit. Create the same automatic indices as on the primary to query them.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ReplicaRawLucene extends RawLucene {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final Directory primaryDir;
+    private final Directory localDir;
+    private final String name;
+    private SearcherManager searcherManager;
+    private volatile long version = -1;
+    // the files of the synced commit
+    private Set<String> files = Collections.emptySet();
+    private SyncThread syncThread;
+
+    /**
+     * Opens both paths as FSDirectory, the primary directory is only read
+     */
+    public ReplicaRawLucene(String primaryPath, String localPath) {
+        try {
+            primaryDir = FSDirectory.open(new File(primaryPath));
+            localDir = FSDirectory.open(new File(localPath));
+        } catch (IOException ex) {
+            throw new RuntimeException("cannot open replica of " + primaryPath + " at " + localPath, ex);
+        }
+        name = "replica " + localPath + " of " + primaryPath;
+    }
+
+    /**
+     * @param primaryDir the directory of the primary RawLucene, it is not closed on close
+     */
+    public ReplicaRawLucene(Directory primaryDir, Directory localDir) {
+        this.primaryDir = primaryDir;
+        this.localDir = localDir;
+        name = "replica " + localDir + " of " + primaryDir;
+    }
+
+    /**
+     * Copies the latest published commit and opens it. The primary must have published at least
+     * once.
+     */
+    @Override public ReplicaRawLucene init() {
+        if (searcherManager != null)
+            throw new IllegalStateException("Already initialized");
+        if (!copyLatest())
+            throw new IllegalStateException("No published commit found for " + this);
+        try {
+            searcherManager = new SearcherManager(localDir, new SearcherFactory());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        seedHubs();
+        loadLabels();
+        return this;
+    }
+
+    /**
+     * Syncs in the background every intervalMillis
+     */
+    public ReplicaRawLucene startSync(long intervalMillis) {
+        if (syncThread != null)
+            throw new IllegalStateException("Already syncing");
+        syncThread = new SyncThread(intervalMillis);
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return this;
+    }
+
+    /**
+     * Copies the latest published commit if it is newer and makes it searchable
+     *
+     * @return true if a newer commit was found
+     */
+    public synchronized boolean sync() {
+        long old = version;
+        Set<String> oldFiles = files;
+        if (!copyLatest())
+            return false;
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        // old readers keep their open files, so it is safe to remove them now
+        for (String file : oldFiles) {
+            if (!files.contains(file))
+                deleteQuietly(file);
+        }
+        // degrees of the primary can also shrink
+        getHubTracker().clear();
+        seedHubs();
+        loadLabels();
+        logger.debug("synced " + this + " from version " + old + " to " + version);
+        return true;
+    }
+
+    /**
+     * @return the generation of the synced commit of the primary
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private synchronized boolean copyLatest() {
+        Manifest manifest = readLatestManifest();
+        if (manifest == null || manifest.gen <= version)
+            return false;
+
+        List<String> copied = new ArrayList<String>();
+        try {
+            for (String file : manifest.files) {
+                // segment files are written once, only the commit file is copied at the end
+                if (file.equals(manifest.segmentsFile) || localDir.fileExists(file))
+                    continue;
+                copied.add(file);
+                primaryDir.copy(localDir, file, file, IOContext.DEFAULT);
+            }
+            localDir.sync(copied);
+            copied.add(manifest.segmentsFile);
+            primaryDir.copy(localDir, manifest.segmentsFile, manifest.segmentsFile, IOContext.DEFAULT);
+            localDir.sync(Collections.singleton(manifest.segmentsFile));
+        } catch (IOException ex) {
+            // e.g. the primary already released the commit, retry with a newer one
+            logger.warn("Cannot copy commit " + manifest.gen + " to " + this + " " + ex.getMessage());
+            for (String file : copied) {
+                deleteQuietly(file);
+            }
+            return false;
+        }
+        files = new HashSet<String>(manifest.files);
+        version = manifest.gen;
+        return true;
+    }
+
+    private void deleteQuietly(String file) {
+        try {
+            if (localDir.fileExists(file))
+                localDir.deleteFile(file);
+        } catch (IOException ex) {
+            logger.warn("Cannot delete " + file + " of " + this + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return the newest complete manifest or null
+     */
+    private Manifest readLatestManifest() {
+        String[] names;
+        try {
+            names = primaryDir.listAll();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        List<Long> gens = new ArrayList<Long>();
+        for (String n : names) {
+            if (n.startsWith(ReplicationPublisher.MANIFEST_PREFIX))
+                gens.add(Long.parseLong(n.substring(ReplicationPublisher.MANIFEST_PREFIX.length())));
+        }
+        Collections.sort(gens, Collections.reverseOrder());
+        for (Long gen : gens) {
+            try {
+                return readManifest(ReplicationPublisher.MANIFEST_PREFIX + gen);
+            } catch (IOException ex) {
+                // still written or already deleted
+                logger.debug("Skipping manifest " + gen + " " + ex.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private Manifest readManifest(String file) throws IOException {
+        IndexInput in = primaryDir.openInput(file, IOContext.READONCE);
+        try {
+            if (in.readInt() != ReplicationPublisher.MAGIC)
+                throw new IOException("Not a manifest " + file);
+            Manifest m = new Manifest();
+            m.gen = in.readVLong();
+            m.segmentsFile = in.readString();
+            int size = in.readVInt();
+            m.files = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                m.files.add(in.readString());
+            }
+            if (in.readInt() != ReplicationPublisher.MAGIC)
+                throw new IOException("Incomplete manifest " + file);
+            return m;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Manifest {
+
+        long gen;
+        String segmentsFile;
+        List<String> files;
+    }
+
+    @Override public Document findById(final long id) {
+        return searchSomething(new SearchExecutor<Document>() {
+
+            @Override public Document execute(IndexSearcher searcher) throws Exception {
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    AtomicReader reader = ctx.reader();
+                    int docID = findDocId(reader, id);
+                    if (docID >= 0)
+                        return reader.document(docID);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override public Document findByUserId(final String uId) {
+        return searchSomething(new SearchExecutor<Document>() {
+
+            @Override public Document execute(IndexSearcher searcher) throws Exception {
+                TopDocs results = searcher.search(new TermQuery(new Term(UID, uId)), 1);
+                if (results.totalHits > 1)
+                    throw new IllegalStateException("Document with " + UID + "=" + uId + " not the only one");
+                return results.totalHits == 0 ? null : searcher.doc(results.scoreDocs[0].doc);
+            }
+        });
+    }
+
+    @Override public long count(Class cl, final String fieldName, Object val) {
+        final BytesRef bytes = getMapping(cl).toBytes(fieldName, val);
+        return searchSomething(new SearchExecutor<Long>() {
+
+            @Override public Long execute(IndexSearcher searcher) throws Exception {
+                long count = 0;
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    count += countTerm(ctx.reader(), fieldName, bytes);
+                }
+                return count;
+            }
+        });
+    }
+
+    @Override public <T> T searchSomething(SearchExecutor<T> exec) {
+        IndexSearcher searcher = newUnmanagedSearcher();
+        try {
+            return (T) exec.execute(searcher);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            releaseUnmanagedSearcher(searcher);
+        }
+    }
+
+    @Override IndexSearcher newUnmanagedSearcher() {
+        return searcherManager.acquire();
+    }
+
+    /**
+     * A replica has no unflushed operations
+     */
+    @Override IndexSearcher newUnmanagedSearcher(Map<Long, IndexOp> unflushedOps) {
+        return newUnmanagedSearcher();
+    }
+
+    @Override void releaseUnmanagedSearcher(IndexSearcher searcher) {
+        try {
+            searcherManager.release(searcher);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override Map<Long, IndexOp> getUnflushedOps(long searchingGen) {
+        return Collections.emptyMap();
+    }
+
+    @Override long getLatestGen() {
+        return version;
+    }
+
+    @Override long getSearchingGen() {
+        return version;
+    }
+
+    @Override int getCacheSize() {
+        return 0;
+    }
+
+    @Override public int calcSize() {
+        return 0;
+    }
+
+    /**
+     * Syncs with the primary
+     */
+    @Override public void refresh() {
+        sync();
+    }
+
+    @Override public void flush() {
+    }
+
+    @Override void waitUntilSearchable() {
+    }
+
+    @Override public long getRamSizeInBytes() {
+        return 0;
+    }
+
+    @Override public NRTManager getNrtManager() {
+        throw new UnsupportedOperationException(this + " has no NRTManager");
+    }
+
+    @Override public long fastPut(long id, Document newDoc) {
+        throw readOnly();
+    }
+
+    @Override public long bulkAdd(Document newDoc) {
+        throw readOnly();
+    }
+
+    @Override long removeById(long id) {
+        throw readOnly();
+    }
+
+    @Override public long putDeferred(long id, Document doc) {
+        throw readOnly();
+    }
+
+    @Override long apply(PendingOps ops) {
+        throw readOnly();
+    }
+
+    @Override public void startTransaction() {
+        throw readOnly();
+    }
+
+    @Override public void clear() {
+        throw readOnly();
+    }
+
+    @Override public void optimize(int maxSegments) {
+        throw readOnly();
+    }
+
+    @Override IndexCommit snapshotCommit(String id) {
+        throw readOnly();
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException(this + " is read only");
+    }
+
+    @Override public void close() {
+        if (syncThread != null) {
+            syncThread.interrupt();
+            try {
+                syncThread.join();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        try {
+            searcherManager.close();
+            localDir.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override public String toString() {
+        return name;
+    }
+
+    private class SyncThread extends Thread {
+
+        private final long intervalMillis;
+
+        public SyncThread(long intervalMillis) {
+            super("replica-sync-thread");
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    sync();
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (AlreadyClosedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    logger.error("Problem while syncing " + ReplicaRawLucene.this, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes commit points of a primary RawLucene for ReplicaRawLucene instances. Every publish
+ * commits, protects the files of the commit from deletion and writes a manifest with the file
+ * names into the directory of the primary. The last retain commits stay available so that a slow
+ * replica can finish copying. Call publish e.g. after a refresh or periodically.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ReplicationPublisher {
+
+    static final String MANIFEST_PREFIX = "replication_";
+    static final int MAGIC = 0x4c524550;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final RawLucene primary;
+    private final int retain;
+    // snapshot ids of the published commits, oldest first
+    private final LinkedList<String> snapshots = new LinkedList<String>();
+    private final LinkedList<Long> generations = new LinkedList<Long>();
+    private long counter;
+
+    public ReplicationPublisher(RawLucene primary) {
+        this(primary, 3);
+    }
+
+    /**
+     * @param retain the number of published commits which are kept
+     */
+    public ReplicationPublisher(RawLucene primary, int retain) {
+        if (retain < 1)
+            throw new IllegalArgumentException("at least one commit needs to be retained");
+        if (primary instanceof ShardedRawLucene)
+            throw new IllegalArgumentException("Publish the shards of " + primary + " one by one via getShard(i)");
+        this.primary = primary;
+        this.retain = retain;
+    }
+
+    /**
+     * @return the generation of the published commit
+     */
+    public synchronized long publish() {
+        String id = "lumeo-replication-" + counter++;
+        IndexCommit commit = primary.snapshotCommit(id);
+        long gen = commit.getGeneration();
+        if (!generations.isEmpty() && generations.getLast() == gen) {
+            // nothing changed since the last publish
+            primary.releaseCommit(id);
+            return gen;
+        }
+
+        try {
+            writeManifest(primary.getDirectory(), gen, commit.getSegmentsFileName(), commit.getFileNames());
+        } catch (IOException ex) {
+            primary.releaseCommit(id);
+            throw new RuntimeException("Cannot publish commit " + gen + " of " + primary, ex);
+        }
+        snapshots.add(id);
+        generations.add(gen);
+        while (snapshots.size() > retain) {
+            release(snapshots.removeFirst(), generations.removeFirst());
+        }
+        return gen;
+    }
+
+    /**
+     * Releases all published commits
+     */
+    public synchronized void close() {
+        while (!snapshots.isEmpty()) {
+            release(snapshots.removeFirst(), generations.removeFirst());
+        }
+    }
+
+    private void release(String id, long gen) {
+        try {
+            primary.getDirectory().deleteFile(MANIFEST_PREFIX + gen);
+        } catch (IOException ex) {
+            logger.warn("Cannot delete manifest of generation " + gen + " " + ex.getMessage());
+        }
+        primary.releaseCommit(id);
+    }
+
+    /**
+     * The segments file is written last by replicas. The magic number at the end marks a complete
+     * manifest.
+     */
+    static void writeManifest(Directory dir, long gen, String segmentsFile, Collection<String> files)
+            throws IOException {
+        String name = MANIFEST_PREFIX + gen;
+        IndexOutput out = dir.createOutput(name, IOContext.DEFAULT);
+        try {
+            out.writeInt(MAGIC);
+            out.writeVLong(gen);
+            out.writeString(segmentsFile);
+            out.writeVInt(files.size());
+            for (String file : files) {
+                out.writeString(file);
+            }
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        dir.sync(Collections.singleton(name));
+    }
+}
@@ -0,0 +1,981 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.IndexOp;
+import de.jetsli.lumeo.util.LongIntMap;
+import de.jetsli.lumeo.util.LuceneHelper;
+import de.jetsli.lumeo.util.PendingOps;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NRTManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Splits the elements across several local indices, each with its own writer, flush and merge
+ * threads. Writes and id lookups go to exactly one shard, user id lookups, counts and refreshes
+ * visit all of them and searches run over one MultiReader so that sequences work unchanged. Put
+ * the shards on different disks to scale the ingest.
+ *
+ * Vertices are split by a hash of their id and every edge is stored in the shard of its out
+ * vertex, so out edges are always read from one shard. For in edges a table keeps the shards
+ * containing edges to a vertex. Only the vertices moved via rebalance are routed explicitly, an
+ * edge which is only known by its id is found by probing the shards. Hubs can be moved with their
+ * out edges to other shards via rebalance.
+ *
+ * A transaction spans all shards but it is committed shard by shard, so a failing commit can leave
+ * a part of it applied. Metrics are collected per shard, see getShard(i).getMetrics().
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ShardedRawLucene extends RawLucene {
+
+    private final RawLucene[] shards;
+    private final String name;
+    private ExecutorService executor;
+    // combined searcher -> searchers of the shards to release them together
+    private final Map<IndexSearcher, IndexSearcher[]> acquired = new ConcurrentHashMap<IndexSearcher, IndexSearcher[]>();
+    // vertex id -> bit mask of the shards containing edges to this vertex
+    private final LongIntMap inShards = new LongIntMap(1024, 0);
+    // vertex id -> shard of the vertices moved via rebalance, persisted in the routing file. All
+    // other vertices live in their hash shard. Guards inShards too.
+    private final Map<Long, Integer> moved = new LinkedHashMap<Long, Integer>();
+    private final File routingFile;
+
+    /**
+     * Creates config.getShards() shards from the specified configuration
+     */
+    public ShardedRawLucene(LumeoConfig config) {
+        config.validate();
+        shards = new RawLucene[checkCount(config.getShards())];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new RawLucene(config.forShard(i));
+            shards[i].shareMappings(this);
+        }
+        name = "sharded " + config;
+        routingFile = config.getPath() == null ? null : new File(config.getPath(), "routing");
+    }
+
+    /**
+     * Uses the specified not yet initialized instances as shards
+     */
+    public ShardedRawLucene(RawLucene... shards) {
+        checkCount(shards.length);
+        this.shards = shards;
+        for (RawLucene shard : shards) {
+            shard.shareMappings(this);
+        }
+        name = "sharded " + shards.length;
+        routingFile = null;
+    }
+
+    private static int checkCount(int count) {
+        // the in edge table stores the shards as bits of an int
+        if (count < 1 || count > 32)
+            throw new IllegalArgumentException("between 1 and 32 shards are supported but was " + count);
+        return count;
+    }
+
+    @Override public ShardedRawLucene init() {
+        if (executor != null)
+            throw new IllegalStateException("Already initialized");
+
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(shards.length, new ThreadFactory() {
+
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "shard-thread-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        forAll(new ShardTask<Object>() {
+
+            @Override public Object run(RawLucene shard) {
+                return shard.init();
+            }
+        });
+        loadRoutes();
+        // rebuild the in edge table from the terms of the in vertex field
+        List<long[]> inVertices = forAll(new ShardTask<long[]>() {
+
+            @Override public long[] run(RawLucene shard) {
+                return shard.searchSomething(new SearchExecutor<long[]>() {
+
+                    @Override public long[] execute(IndexSearcher searcher) throws IOException {
+                        return collectIds(searcher, VERTEX_IN);
+                    }
+                });
+            }
+        });
+        synchronized (moved) {
+            for (int i = 0; i < shards.length; i++) {
+                for (long id : inVertices.get(i)) {
+                    inShards.put(id, inShards.get(id) | (1 << i));
+                }
+            }
+        }
+        seedHubs();
+        loadLabels();
+        return this;
+    }
+
+    /**
+     * @return all values of the id field in the specified searcher
+     */
+    private static long[] collectIds(IndexSearcher searcher, String field) throws IOException {
+        long[] ids = new long[16];
+        int size = 0;
+        for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+            Terms terms = ctx.reader().terms(field);
+            if (terms == null)
+                continue;
+            TermsEnum te = terms.iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                if (size == ids.length) {
+                    long[] tmp = new long[size * 2];
+                    System.arraycopy(ids, 0, tmp, 0, size);
+                    ids = tmp;
+                }
+                ids[size++] = NumericUtils.prefixCodedToLong(term);
+            }
+        }
+        long[] result = new long[size];
+        System.arraycopy(ids, 0, result, 0, size);
+        return result;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public RawLucene getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * @return the shard which stores the element of the specified id. The shards are probed if it
+     * is not in the shard of getShardIndex e.g. for an edge.
+     */
+    public RawLucene getShardFor(long id) {
+        return shards[locate(id)];
+    }
+
+    private int locate(long id) {
+        int index = getShardIndex(id);
+        if (isRouted(id) || shards[index].findById(id) != null)
+            return index;
+
+        for (int i = 0; i < shards.length; i++) {
+            if (i != index && shards[i].findById(id) != null)
+                return i;
+        }
+        return index;
+    }
+
+    /**
+     * @return the shard of a moved vertex, otherwise the hash shard
+     */
+    protected int getShardIndex(long id) {
+        synchronized (moved) {
+            Integer shard = moved.get(id);
+            if (shard != null)
+                return shard;
+        }
+        return getHashShard(id);
+    }
+
+    /**
+     * Spreads the ids evenly even if they are sequential
+     */
+    protected int getHashShard(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % shards.length);
+    }
+
+    /**
+     * @return the number of explicitly routed vertices
+     */
+    int getRoutedCount() {
+        synchronized (moved) {
+            return moved.size();
+        }
+    }
+
+    private boolean isRouted(long id) {
+        synchronized (moved) {
+            return moved.containsKey(id);
+        }
+    }
+
+    /**
+     * Edges go to the shard of their out vertex, vertices to their own one
+     */
+    private int getShardIndex(long id, Document doc) {
+        IndexableField vOut = doc.getField(VERTEX_OUT);
+        if (vOut == null)
+            return getShardIndex(id);
+
+        int shard = getShardIndex(vOut.numericValue().longValue());
+        IndexableField vIn = doc.getField(VERTEX_IN);
+        if (vIn != null)
+            synchronized (moved) {
+                long inId = vIn.numericValue().longValue();
+                inShards.put(inId, inShards.get(inId) | (1 << shard));
+            }
+        return shard;
+    }
+
+    /**
+     * Looks in all shards if the id is not routed and not in its hash shard e.g. for an edge
+     */
+    @Override public Document findById(long id) {
+        int index = getShardIndex(id);
+        Document doc = shards[index].findById(id);
+        if (doc != null || isRouted(id))
+            return doc;
+
+        for (int i = 0; i < shards.length; i++) {
+            if (i == index)
+                continue;
+            doc = shards[i].findById(id);
+            if (doc != null)
+                return doc;
+        }
+        return null;
+    }
+
+    /**
+     * User ids are not routed, so every shard is asked. The lookups run in the calling thread as
+     * they need to see the current transaction.
+     */
+    @Override public Document findByUserId(String uId) {
+        for (RawLucene shard : shards) {
+            Document doc = shard.findByUserId(uId);
+            if (doc != null)
+                return doc;
+        }
+        return null;
+    }
+
+    @Override public long fastPut(long id, Document newDoc) {
+        return shards[getShardIndex(id, newDoc)].fastPut(id, newDoc);
+    }
+
+    @Override public long bulkAdd(Document newDoc) {
+        return shards[getShardIndex(getId(newDoc), newDoc)].bulkAdd(newDoc);
+    }
+
+    @Override long removeById(long id) {
+        long gen = shards[locate(id)].removeById(id);
+        boolean wasMoved;
+        synchronized (moved) {
+            wasMoved = moved.remove(id) != null;
+        }
+        if (wasMoved)
+            saveRoutes();
+        return gen;
+    }
+
+    /**
+     * An edge is in the shard of its out vertex, so no probing is necessary
+     */
+    @Override void removeDoc(Document doc) {
+        IndexableField vOut = doc.getField(VERTEX_OUT);
+        if (vOut == null)
+            removeById(getId(doc));
+        else
+            shards[getShardIndex(vOut.numericValue().longValue())].removeById(getId(doc));
+    }
+
+    @Override public long putDeferred(long id, Document doc) {
+        return shards[getShardIndex(id, doc)].putDeferred(id, doc);
+    }
+
+    @Override public long flushDeferred() {
+        return sum(forAll(new ShardTask<Long>() {
+
+            @Override public Long run(RawLucene shard) {
+                return shard.flushDeferred();
+            }
+        }));
+    }
+
+    @Override public long flushDeferred(long id) {
+        return getShardFor(id).flushDeferred(id);
+    }
+
+    @Override public int getDeferredCount() {
+        int count = 0;
+        for (RawLucene shard : shards) {
+            count += shard.getDeferredCount();
+        }
+        return count;
+    }
+
+    @Override public void setWriteBehind(boolean writeBehind) {
+        for (RawLucene shard : shards) {
+            shard.setWriteBehind(writeBehind);
+        }
+    }
+
+    @Override public boolean isWriteBehind() {
+        return shards[0].isWriteBehind();
+    }
+
+    @Override public void startTransaction() {
+        for (RawLucene shard : shards) {
+            shard.startTransaction();
+        }
+    }
+
+    @Override public boolean isTransactionActive() {
+        return shards[0].isTransactionActive();
+    }
+
+    @Override public long commitTransaction() {
+        long gen = 0;
+        RuntimeException first = null;
+        // all shards need to leave the transaction even if one fails
+        for (RawLucene shard : shards) {
+            try {
+                gen += shard.commitTransaction();
+            } catch (RuntimeException ex) {
+                if (first == null)
+                    first = ex;
+            }
+        }
+        if (first != null)
+            throw first;
+        return gen;
+    }
+
+    @Override public void rollbackTransaction() {
+        for (RawLucene shard : shards) {
+            shard.rollbackTransaction();
+        }
+    }
+
+    @Override long apply(PendingOps ops) {
+        PendingOps[] split = new PendingOps[shards.length];
+        boolean wasMoved = false;
+        for (Entry<Long, IndexOp> e : ops.entries()) {
+            IndexOp op = e.getValue();
+            // a delete has no document to route by, so probe the shards like removeById does
+            int index = op.type == IndexOp.Type.DELETE ? locate(e.getKey()) : getShardIndex(e.getKey(), op.document);
+            if (split[index] == null)
+                split[index] = new PendingOps();
+            if (op.type == IndexOp.Type.DELETE) {
+                split[index].delete(e.getKey());
+                synchronized (moved) {
+                    wasMoved |= moved.remove(e.getKey()) != null;
+                }
+            } else
+                split[index].put(e.getKey(), op.document);
+        }
+        long gen = 0;
+        for (int i = 0; i < shards.length; i++) {
+            gen += split[i] == null ? shards[i].getLatestGen() : shards[i].apply(split[i]);
+        }
+        ops.clear();
+        if (wasMoved)
+            saveRoutes();
+        return gen;
+    }
+
+    /**
+     * Sums the counts of all shards which are computed in parallel
+     */
+    @Override public long count(final Class cl, final String fieldName, final Object val) {
+        return sum(forAll(new ShardTask<Long>() {
+
+            @Override public Long run(RawLucene shard) {
+                return shard.count(cl, fieldName, val);
+            }
+        }));
+    }
+
+    @Override public int calcSize() {
+        int size = 0;
+        for (RawLucene shard : shards) {
+            size += shard.calcSize();
+        }
+        return size;
+    }
+
+    /**
+     * The executor gets a searcher over all shards
+     */
+    @Override public <T> T searchSomething(SearchExecutor<T> exec) {
+        IndexSearcher searcher = newUnmanagedSearcher();
+        try {
+            return (T) exec.execute(searcher);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            releaseUnmanagedSearcher(searcher);
+        }
+    }
+
+    /**
+     * @return a searcher over a MultiReader of the current searchers of all shards. Searches run
+     * in parallel per segment.
+     */
+    @Override IndexSearcher newUnmanagedSearcher() {
+        return acquire(-1, null);
+    }
+
+    @Override IndexSearcher newUnmanagedSearcher(Map<Long, IndexOp> unflushedOps) {
+        return acquire(-1, unflushedOps);
+    }
+
+    /**
+     * Out edges are searched only in the shard of the vertex and in edges only in the shards
+     * which contain edges to the vertex
+     */
+    @Override IndexSearcher newEdgeSearcher(long vertexId, String edgeType) {
+        if (EDGE_OUT.equals(edgeType))
+            return acquire(1 << getShardIndex(vertexId), null);
+        if (EDGE_IN.equals(edgeType)) {
+            int mask;
+            synchronized (moved) {
+                mask = inShards.get(vertexId);
+            }
+            // without in edges any shard returns the correct empty result
+            return acquire(mask == 0 ? 1 << getShardIndex(vertexId) : mask, null);
+        }
+        return newUnmanagedSearcher();
+    }
+
+    /**
+     * @param mask the bits of the shards to search
+     */
+    private IndexSearcher acquire(int mask, Map<Long, IndexOp> unflushedOps) {
+        IndexSearcher[] searchers = new IndexSearcher[shards.length];
+        try {
+            List<IndexReader> readers = new ArrayList<IndexReader>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                if ((mask & (1 << i)) == 0)
+                    continue;
+                searchers[i] = unflushedOps == null ? shards[i].newUnmanagedSearcher()
+                        : shards[i].newUnmanagedSearcher(unflushedOps);
+                readers.add(searchers[i].getIndexReader());
+            }
+            // does not close but only decRef the readers of the shards
+            IndexSearcher searcher = new IndexSearcher(new MultiReader(
+                    readers.toArray(new IndexReader[readers.size()]), false), executor);
+            acquired.put(searcher, searchers);
+            return searcher;
+        } catch (Exception ex) {
+            release(searchers);
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException) ex;
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override void releaseUnmanagedSearcher(IndexSearcher searcher) {
+        IndexSearcher[] searchers = acquired.remove(searcher);
+        if (searchers == null)
+            throw new IllegalStateException("Searcher was not acquired from " + this);
+        try {
+            searcher.getIndexReader().close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            release(searchers);
+        }
+    }
+
+    private void release(IndexSearcher[] searchers) {
+        for (int i = 0; i < searchers.length; i++) {
+            if (searchers[i] != null)
+                shards[i].releaseUnmanagedSearcher(searchers[i]);
+        }
+    }
+
+    /**
+     * Generations are per shard, use newUnmanagedSearcher(Map) instead
+     */
+    @Override Map<Long, IndexOp> getUnflushedOps(long searchingGen) {
+        throw new UnsupportedOperationException("Generations of " + this + " are per shard");
+    }
+
+    @Override void putTransactionOps(Map<Long, IndexOp> result) {
+        for (RawLucene shard : shards) {
+            shard.putTransactionOps(result);
+        }
+    }
+
+    /**
+     * @return the sum of the generations of all shards, only useful to detect changes
+     */
+    @Override long getLatestGen() {
+        long gen = 0;
+        for (RawLucene shard : shards) {
+            gen += shard.getLatestGen();
+        }
+        return gen;
+    }
+
+    /**
+     * @return the sum of the searching generations of all shards
+     */
+    @Override long getSearchingGen() {
+        long gen = 0;
+        for (RawLucene shard : shards) {
+            gen += shard.getSearchingGen();
+        }
+        return gen;
+    }
+
+    @Override int getCacheSize() {
+        int size = 0;
+        for (RawLucene shard : shards) {
+            size += shard.getCacheSize();
+        }
+        return size;
+    }
+
+    /**
+     * Clears the shards one after another in the calling thread as it drops its transaction
+     */
+    @Override public void clear() {
+        for (RawLucene shard : shards) {
+            shard.clear();
+        }
+        synchronized (moved) {
+            inShards.clear();
+            moved.clear();
+        }
+        getHubTracker().clear();
+        saveRoutes();
+    }
+
+    /**
+     * Moves the vertices with the most out edges together with these edges away from shards
+     * containing more than (1 + tolerance) times the average number of documents. Every move goes
+     * to the currently smallest shard and only happens if it lowers the size of the largest one.
+     * Expensive, so call it only without concurrent writes.
+     *
+     * @return the number of moved vertices
+     */
+    public int rebalance(double tolerance, int maxMoves) {
+        indexLock();
+        try {
+            refresh();
+            long[] sizes = new long[shards.length];
+            long sum = 0;
+            for (int i = 0; i < shards.length; i++) {
+                sizes[i] = shards[i].searchSomething(new SearchExecutor<Long>() {
+
+                    @Override public Long execute(IndexSearcher searcher) {
+                        return (long) searcher.getIndexReader().numDocs();
+                    }
+                });
+                sum += sizes[i];
+            }
+            double limit = (1 + tolerance) * sum / shards.length;
+            int moves = 0;
+            while (moves < maxMoves) {
+                int hot = 0, cold = 0;
+                for (int i = 1; i < shards.length; i++) {
+                    if (sizes[i] > sizes[hot])
+                        hot = i;
+                    if (sizes[i] < sizes[cold])
+                        cold = i;
+                }
+                if (sizes[hot] <= limit)
+                    break;
+
+                long[] hub = findHub(hot);
+                long docs = hub[1] + 1;
+                if (hub[0] < 0 || Math.max(sizes[hot] - docs, sizes[cold] + docs) >= sizes[hot])
+                    break;
+
+                moveVertex(hub[0], hot, cold);
+                sizes[hot] -= docs;
+                sizes[cold] += docs;
+                moves++;
+            }
+            if (moves > 0) {
+                saveRoutes();
+                refresh();
+            }
+            return moves;
+        } finally {
+            indexUnlock();
+        }
+    }
+
+    /**
+     * @return the id and the out degree of the vertex with the most out edges in the shard which
+     * was not moved away or {-1, 0}
+     */
+    private long[] findHub(final int shard) {
+        return shards[shard].searchSomething(new SearchExecutor<long[]>() {
+
+            @Override public long[] execute(IndexSearcher searcher) throws IOException {
+                Map<Long, Long> degrees = new LinkedHashMap<Long, Long>();
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    AtomicReader reader = ctx.reader();
+                    Terms terms = reader.terms(VERTEX_OUT);
+                    if (terms == null)
+                        continue;
+                    TermsEnum te = terms.iterator(null);
+                    BytesRef term;
+                    while ((term = te.next()) != null) {
+                        long id = NumericUtils.prefixCodedToLong(term);
+                        // count only live edges, a moved hub still has its deleted ones
+                        DocsEnum docs = te.docs(reader.getLiveDocs(), null, false);
+                        long count = 0;
+                        while (docs.nextDoc() != DocsEnum.NO_MORE_DOCS) {
+                            count++;
+                        }
+                        Long old = degrees.get(id);
+                        degrees.put(id, old == null ? count : old + count);
+                    }
+                }
+                long[] hub = {-1, 0};
+                for (Entry<Long, Long> e : degrees.entrySet()) {
+                    if (e.getValue() > hub[1] && getShardIndex(e.getKey()) == shard) {
+                        hub[0] = e.getKey();
+                        hub[1] = e.getValue();
+                    }
+                }
+                return hub;
+            }
+        });
+    }
+
+    /**
+     * Copies the vertex and its out edges to the target shard, switches the routes and removes
+     * them from the source shard
+     */
+    private void moveVertex(final long vertexId, int source, int target) {
+        Document vertex = shards[source].findById(vertexId);
+        if (vertex == null)
+            return;
+
+        List<Document> edges = shards[source].searchSomething(new SearchExecutor<List<Document>>() {
+
+            @Override public List<Document> execute(IndexSearcher searcher) throws IOException {
+                List<Document> list = new ArrayList<Document>();
+                BytesRef bytes = LuceneHelper.newRefFromLong(vertexId);
+                for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+                    AtomicReader reader = ctx.reader();
+                    DocsEnum docs = reader.termDocsEnum(reader.getLiveDocs(), VERTEX_OUT, bytes, false);
+                    if (docs == null)
+                        continue;
+                    while (docs.nextDoc() != DocsEnum.NO_MORE_DOCS) {
+                        list.add(reader.document(docs.docID()));
+                    }
+                }
+                return list;
+            }
+        });
+
+        shards[target].fastPut(vertexId, toIndexable(vertex));
+        for (Document edge : edges) {
+            shards[target].fastPut(getId(edge), toIndexable(edge));
+        }
+        synchronized (moved) {
+            moved.put(vertexId, target);
+            for (Document edge : edges) {
+                long inId = edge.getField(VERTEX_IN).numericValue().longValue();
+                inShards.put(inId, inShards.get(inId) | (1 << target));
+            }
+        }
+        shards[source].removeById(vertexId);
+        for (Document edge : edges) {
+            shards[source].removeById(getId(edge));
+        }
+    }
+
+    /**
+     * Moved vertices are not in their hash shard, so their routes need to survive a restart
+     */
+    private void saveRoutes() {
+        if (routingFile == null)
+            return;
+
+        try {
+            BufferedWriter writer = new BufferedWriter(new FileWriter(routingFile));
+            try {
+                synchronized (moved) {
+                    for (Entry<Long, Integer> e : moved.entrySet()) {
+                        writer.write(e.getKey() + " " + e.getValue() + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot write routing file " + routingFile, ex);
+        }
+    }
+
+    private void loadRoutes() {
+        if (routingFile == null || !routingFile.exists())
+            return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(routingFile));
+            try {
+                String line;
+                synchronized (moved) {
+                    while ((line = reader.readLine()) != null) {
+                        String[] parts = line.trim().split(" ");
+                        if (parts.length != 2)
+                            continue;
+                        long id = Long.parseLong(parts[0]);
+                        int shard = Integer.parseInt(parts[1]);
+                        moved.put(id, shard);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot read routing file " + routingFile, ex);
+        }
+    }
+
+    /**
+     * The shards have their own commits, publish them one by one via getShard(i)
+     */
+    @Override IndexCommit snapshotCommit(String id) {
+        throw perShard();
+    }
+
+    @Override void releaseCommit(String id) {
+        throw perShard();
+    }
+
+    @Override Directory getDirectory() {
+        throw perShard();
+    }
+
+    private UnsupportedOperationException perShard() {
+        return new UnsupportedOperationException("Replication of " + this
+                + " is only supported per shard, use getShard(i) as primary");
+    }
+
+    @Override public void refresh() {
+        forAll(new ShardTask<Object>() {
+
+            @Override public Object run(RawLucene shard) {
+                shard.refresh();
+                return null;
+            }
+        });
+    }
+
+    @Override void waitUntilSearchable() {
+        for (RawLucene shard : shards) {
+            shard.waitUntilSearchable();
+        }
+    }
+
+    @Override public void flush() {
+        forAll(new ShardTask<Object>() {
+
+            @Override public Object run(RawLucene shard) {
+                shard.flush();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Optimizes all shards in parallel
+     */
+    @Override public void optimize(final int maxSegments) {
+        forAll(new ShardTask<Object>() {
+
+            @Override public Object run(RawLucene shard) {
+                shard.optimize(maxSegments);
+                return null;
+            }
+        });
+    }
+
+    @Override public int getSegmentCount() {
+        int count = 0;
+        for (RawLucene shard : shards) {
+            count += shard.getSegmentCount();
+        }
+        return count;
+    }
+
+    @Override public long getRamSizeInBytes() {
+        long size = 0;
+        for (RawLucene shard : shards) {
+            size += shard.getRamSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * @return the RAM buffer of one shard
+     */
+    @Override public double getRamBufferSizeMB() {
+        return shards[0].getRamBufferSizeMB();
+    }
+
+    /**
+     * Sets the RAM buffer of every shard
+     */
+    @Override public void setRamBufferSizeMB(double ramBufferSizeMB) {
+        for (RawLucene shard : shards) {
+            shard.setRamBufferSizeMB(ramBufferSizeMB);
+        }
+    }
+
+    @Override public int getTermIndexIntervalSize() {
+        return shards[0].getTermIndexIntervalSize();
+    }
+
+    @Override public void setTermIndexIntervalSize(int termIndexInterval) {
+        for (RawLucene shard : shards) {
+            shard.setTermIndexIntervalSize(termIndexInterval);
+        }
+    }
+
+    @Override public int getMaxMergeMB() {
+        return shards[0].getMaxMergeMB();
+    }
+
+    @Override public void setMaxMergeMB(int maxMergeMB) {
+        for (RawLucene shard : shards) {
+            shard.setMaxMergeMB(maxMergeMB);
+        }
+    }
+
+    /**
+     * A merge policy can be used by one writer only, so configure it via LumeoConfig
+     */
+    @Override public void setMergePolicy(MergePolicy mergePolicy) {
+        throw new UnsupportedOperationException("Set the merge policy type via LumeoConfig for " + this);
+    }
+
+    @Override public void setBackgroundOptimize(long quietMillis, int maxSegments) {
+        for (RawLucene shard : shards) {
+            shard.setBackgroundOptimize(quietMillis, maxSegments);
+        }
+    }
+
+    @Override public NRTManager getNrtManager() {
+        throw new UnsupportedOperationException("Every shard of " + this + " has its own NRTManager");
+    }
+
+    @Override public void close() {
+        try {
+            forAll(new ShardTask<Object>() {
+
+                @Override public Object run(RawLucene shard) {
+                    shard.close();
+                    return null;
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Override public String toString() {
+        return name;
+    }
+
+    private static long sum(List<Long> values) {
+        long sum = 0;
+        for (Long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    private interface ShardTask<T> {
+
+        T run(RawLucene shard) throws Exception;
+    }
+
+    /**
+     * Runs the task for every shard in parallel and waits for all of them
+     */
+    private <T> List<T> forAll(final ShardTask<T> task) {
+        List<Future<T>> futures = new ArrayList<Future<T>>(shards.length);
+        for (final RawLucene shard : shards) {
+            futures.add(executor.submit(new Callable<T>() {
+
+                @Override public T call() throws Exception {
+                    return task.run(shard);
+                }
+            }));
+        }
+
+        List<T> results = new ArrayList<T>(shards.length);
+        RuntimeException first = null;
+        for (Future<T> f : futures) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                if (first == null)
+                    first = ex.getCause() instanceof RuntimeException
+                            ? (RuntimeException) ex.getCause() : new RuntimeException(ex.getCause());
+            }
+        }
+        if (first != null)
+            throw first;
+        return results;
+    }
+}
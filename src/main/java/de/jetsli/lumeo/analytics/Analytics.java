@@ -0,0 +1,499 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import com.tinkerpop.blueprints.pgm.TransactionalGraph.Conclusion;
+import de.jetsli.lumeo.LuceneGraph;
+import de.jetsli.lumeo.RawLucene;
+import de.jetsli.lumeo.util.ProgressListener;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterative graph algorithms which run multi threaded over a CsrGraph extracted from the
+ * segments of the index. Only searchable writes are included, so call refresh before. The
+ * results are arrays indexed by the vertex number of the CsrGraph and can be written back as
+ * properties. Close it to stop the threads.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class Analytics {
+
+    interface RangeTask {
+
+        /**
+         * @param chunk the number of the range, e.g. to store partial results
+         */
+        void run(int chunk, int from, int to) throws Exception;
+    }
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final LuceneGraph g;
+    private final int threads;
+    private final ExecutorService executor;
+    private int writeBatchSize = 10000;
+
+    public Analytics(LuceneGraph g) {
+        this(g, Runtime.getRuntime().availableProcessors());
+    }
+
+    public Analytics(LuceneGraph g, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        this.g = g;
+        this.threads = threads;
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "analytics-thread-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * The number of updates which are applied in one transaction by writeBack
+     */
+    public Analytics setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+        return this;
+    }
+
+    public LuceneGraph getGraph() {
+        return g;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Reads the vertex ids and the edges of all segments in parallel. Edges to removed vertices
+     * are skipped.
+     */
+    public CsrGraph snapshot() {
+        long start = System.currentTimeMillis();
+        CsrGraph csr = g.getRaw().searchSomething(new SearchExecutor<CsrGraph>() {
+
+            @Override public CsrGraph execute(IndexSearcher searcher) throws Exception {
+                AtomicReaderContext[] leaves = searcher.getTopReaderContext().leaves();
+                final long[] ids = readVertexIds(searcher);
+                List<Callable<int[][]>> edgeTasks = new ArrayList<Callable<int[][]>>();
+                for (final AtomicReaderContext ctx : leaves) {
+                    edgeTasks.add(new Callable<int[][]>() {
+
+                        @Override public int[][] call() throws Exception {
+                            return readEdges(ctx.reader(), ids);
+                        }
+                    });
+                }
+                List<int[][]> segmentEdges = invokeAll(edgeTasks);
+                int edges = 0;
+                for (int[][] arr : segmentEdges) {
+                    edges += arr[2][0];
+                }
+                int[] sources = new int[edges];
+                int[] targets = new int[edges];
+                edges = 0;
+                for (int[][] arr : segmentEdges) {
+                    int size = arr[2][0];
+                    System.arraycopy(arr[0], 0, sources, edges, size);
+                    System.arraycopy(arr[1], 0, targets, edges, size);
+                    edges += size;
+                }
+                return new CsrGraph(ids, sources, targets, edges);
+            }
+        });
+        logger.info("extracted " + csr.getVertexCount() + " vertices and " + csr.getEdgeCount()
+                + " edges in " + (System.currentTimeMillis() - start) / 1000f + " sec");
+        return csr;
+    }
+
+    /**
+     * @return the sorted ids of all live vertices, read per segment in parallel
+     */
+    long[] readVertexIds(IndexSearcher searcher) {
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for (final AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+            tasks.add(new Callable<long[]>() {
+
+                @Override public long[] call() throws Exception {
+                    return SegmentEdges.readVertexIds(ctx.reader());
+                }
+            });
+        }
+        int count = 0;
+        List<long[]> segmentIds = invokeAll(tasks);
+        for (long[] arr : segmentIds) {
+            count += arr.length;
+        }
+        long[] ids = new long[count];
+        count = 0;
+        for (long[] arr : segmentIds) {
+            System.arraycopy(arr, 0, ids, count, arr.length);
+            count += arr.length;
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Calls the visitor for the edges of all segments in parallel, the visitor needs to be thread
+     * safe. The listener is notified after every segment.
+     */
+    void forEachEdge(IndexSearcher searcher, final SegmentEdges.EdgeVisitor visitor,
+            final ProgressListener listener, final String task) {
+        final long start = System.currentTimeMillis();
+        final AtomicLong done = new AtomicLong();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+            tasks.add(new Callable<Object>() {
+
+                @Override public Object call() throws Exception {
+                    long edges = done.addAndGet(SegmentEdges.forEachEdge(ctx.reader(), visitor));
+                    synchronized (listener) {
+                        listener.progress(task, edges, System.currentTimeMillis() - start);
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * @return the vertex numbers of the out and in vertex of every edge and the edge count
+     */
+    private static int[][] readEdges(AtomicReader reader, final long[] ids) throws Exception {
+        final int[][] result = {new int[16], new int[16], {0}};
+        SegmentEdges.forEachEdge(reader, new SegmentEdges.EdgeVisitor() {
+
+            @Override public void edge(long outVertex, long inVertex) {
+                int source = Arrays.binarySearch(ids, outVertex);
+                int target = Arrays.binarySearch(ids, inVertex);
+                if (source < 0 || target < 0)
+                    return;
+                int size = result[2][0];
+                if (size == result[0].length) {
+                    result[0] = Arrays.copyOf(result[0], size * 2);
+                    result[1] = Arrays.copyOf(result[1], size * 2);
+                }
+                result[0][size] = source;
+                result[1][size] = target;
+                result[2][0] = size + 1;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Iterates until the sum of all rank changes is below the tolerance or the maximum number of
+     * iterations is reached. The rank of vertices without out edges is spread over all vertices.
+     *
+     * @param damping the probability to follow an edge, usually 0.85
+     * @return the rank per vertex, summing up to 1
+     */
+    public double[] pageRank(final CsrGraph csr, final double damping, int maxIterations, double tolerance) {
+        final int n = csr.getVertexCount();
+        if (n == 0)
+            return new double[0];
+
+        final int[] inTargets = csr.getInTargets();
+        final double[][] rank = {new double[n], new double[n]};
+        Arrays.fill(rank[0], 1.0 / n);
+        final double[] contribution = new double[n];
+        final double[] partial = new double[getChunks(n)];
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            // 1. the rank each vertex passes along every out edge and the rank of dangling vertices
+            Arrays.fill(partial, 0);
+            forRange(n, new RangeTask() {
+
+                @Override public void run(int chunk, int from, int to) {
+                    double dangling = 0;
+                    for (int v = from; v < to; v++) {
+                        int degree = csr.getOutDegree(v);
+                        if (degree == 0) {
+                            dangling += rank[0][v];
+                            contribution[v] = 0;
+                        } else
+                            contribution[v] = rank[0][v] / degree;
+                    }
+                    partial[chunk] = dangling;
+                }
+            });
+            final double base = (1 - damping) / n + damping * sum(partial) / n;
+
+            // 2. every vertex pulls the contributions of its in neighbors
+            Arrays.fill(partial, 0);
+            forRange(n, new RangeTask() {
+
+                @Override public void run(int chunk, int from, int to) {
+                    double delta = 0;
+                    for (int v = from; v < to; v++) {
+                        double sum = 0;
+                        int end = csr.getInOffset(v) + csr.getInDegree(v);
+                        for (int i = csr.getInOffset(v); i < end; i++) {
+                            sum += contribution[inTargets[i]];
+                        }
+                        rank[1][v] = base + damping * sum;
+                        delta += Math.abs(rank[1][v] - rank[0][v]);
+                    }
+                    partial[chunk] = delta;
+                }
+            });
+            double[] tmp = rank[0];
+            rank[0] = rank[1];
+            rank[1] = tmp;
+            if (sum(partial) < tolerance)
+                break;
+        }
+        return rank[0];
+    }
+
+    /**
+     * Weakly connected components: every vertex takes the smallest vertex number of its neighbors
+     * in both directions until nothing changes.
+     *
+     * @return the smallest vertex number of the component per vertex
+     */
+    public int[] connectedComponents(final CsrGraph csr) {
+        int n = csr.getVertexCount();
+        final int[] labels = new int[n];
+        for (int v = 0; v < n; v++) {
+            labels[v] = v;
+        }
+        final boolean[] changed = new boolean[getChunks(n)];
+        boolean any = n > 0;
+        while (any) {
+            Arrays.fill(changed, false);
+            // updating in place is safe as labels only decrease and converges faster
+            forRange(n, new RangeTask() {
+
+                @Override public void run(int chunk, int from, int to) {
+                    for (int v = from; v < to; v++) {
+                        int min = labels[v];
+                        min = minLabel(labels, csr.getOutTargets(), csr.getOutOffset(v), csr.getOutDegree(v), min);
+                        min = minLabel(labels, csr.getInTargets(), csr.getInOffset(v), csr.getInDegree(v), min);
+                        if (min < labels[v]) {
+                            labels[v] = min;
+                            changed[chunk] = true;
+                        }
+                    }
+                }
+            });
+            any = false;
+            for (boolean c : changed) {
+                any |= c;
+            }
+        }
+        return labels;
+    }
+
+    private static int minLabel(int[] labels, int[] targets, int offset, int degree, int min) {
+        for (int i = offset; i < offset + degree; i++) {
+            min = Math.min(min, labels[targets[i]]);
+        }
+        return min;
+    }
+
+    /**
+     * Community detection: in every iteration each vertex takes the label which is most frequent
+     * among its neighbors in both directions, ties go to the smaller label.
+     *
+     * @return the community label per vertex, a vertex number of the community
+     */
+    public int[] labelPropagation(final CsrGraph csr, int iterations) {
+        int n = csr.getVertexCount();
+        final int[][] labels = {new int[n], new int[n]};
+        for (int v = 0; v < n; v++) {
+            labels[0][v] = v;
+        }
+        final boolean[] changed = new boolean[getChunks(n)];
+        for (int iteration = 0; iteration < iterations && n > 0; iteration++) {
+            Arrays.fill(changed, false);
+            forRange(n, new RangeTask() {
+
+                @Override public void run(int chunk, int from, int to) {
+                    int[] current = labels[0];
+                    int[] buffer = new int[16];
+                    for (int v = from; v < to; v++) {
+                        int degree = csr.getOutDegree(v) + csr.getInDegree(v);
+                        if (degree == 0) {
+                            labels[1][v] = current[v];
+                            continue;
+                        }
+                        if (buffer.length < degree)
+                            buffer = new int[Math.max(degree, buffer.length * 2)];
+                        int size = 0;
+                        int[] targets = csr.getOutTargets();
+                        for (int i = csr.getOutOffset(v); i < csr.getOutOffset(v) + csr.getOutDegree(v); i++) {
+                            buffer[size++] = current[targets[i]];
+                        }
+                        targets = csr.getInTargets();
+                        for (int i = csr.getInOffset(v); i < csr.getInOffset(v) + csr.getInDegree(v); i++) {
+                            buffer[size++] = current[targets[i]];
+                        }
+                        int label = mostFrequent(buffer, size);
+                        labels[1][v] = label;
+                        if (label != current[v])
+                            changed[chunk] = true;
+                    }
+                }
+            });
+            int[] tmp = labels[0];
+            labels[0] = labels[1];
+            labels[1] = tmp;
+            boolean any = false;
+            for (boolean c : changed) {
+                any |= c;
+            }
+            if (!any)
+                break;
+        }
+        return labels[0];
+    }
+
+    private static int mostFrequent(int[] values, int size) {
+        Arrays.sort(values, 0, size);
+        int best = values[0];
+        int bestCount = 0;
+        for (int i = 0; i < size;) {
+            int j = i;
+            while (j < size && values[j] == values[i]) {
+                j++;
+            }
+            // sorted ascending, so on a tie the smaller label stays
+            if (j - i > bestCount) {
+                best = values[i];
+                bestCount = j - i;
+            }
+            i = j;
+        }
+        return best;
+    }
+
+    /**
+     * Stores the value of every vertex as property. The updates are applied in transactions of
+     * writeBatchSize vertices, so do not call it within a transaction.
+     */
+    public void writeBack(CsrGraph csr, String key, double[] values) {
+        Object[] objects = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            objects[i] = values[i];
+        }
+        writeBack(csr, key, objects);
+    }
+
+    /**
+     * Stores the vertex id of the vertex number of every vertex as property, e.g. the component or
+     * community computed by connectedComponents or labelPropagation.
+     */
+    public void writeBackIds(CsrGraph csr, String key, int[] vertices) {
+        Object[] objects = new Object[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            objects[i] = csr.getId(vertices[i]);
+        }
+        writeBack(csr, key, objects);
+    }
+
+    private void writeBack(CsrGraph csr, String key, Object[] values) {
+        if (values.length != csr.getVertexCount())
+            throw new IllegalArgumentException("Expected one value per vertex but got " + values.length);
+
+        RawLucene raw = g.getRaw();
+        if (raw.isTransactionActive())
+            throw new IllegalStateException("writeBack uses its own transactions");
+        for (int from = 0; from < values.length; from += writeBatchSize) {
+            int to = Math.min(values.length, from + writeBatchSize);
+            g.startTransaction();
+            boolean success = false;
+            try {
+                for (int v = from; v < to; v++) {
+                    raw.updateProperty(csr.getId(v), key, values[v]);
+                }
+                success = true;
+            } finally {
+                g.stopTransaction(success ? Conclusion.SUCCESS : Conclusion.FAILURE);
+            }
+        }
+    }
+
+    int getChunks(int n) {
+        return Math.max(1, Math.min(n, threads * 4));
+    }
+
+    /**
+     * Splits 0..n into getChunks(n) ranges and runs them in parallel
+     */
+    void forRange(int n, final RangeTask task) {
+        final int chunks = getChunks(n);
+        final int chunkSize = (n + chunks - 1) / chunks;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int from = c * chunkSize;
+            final int to = Math.min(n, from + chunkSize);
+            tasks.add(new Callable<Object>() {
+
+                @Override public Object call() throws Exception {
+                    if (from < to)
+                        task.run(chunk, from, to);
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        try {
+            List<T> results = new ArrayList<T>(tasks.size());
+            for (Future<T> f : executor.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0;
+        for (double d : values) {
+            sum += d;
+        }
+        return sum;
+    }
+}
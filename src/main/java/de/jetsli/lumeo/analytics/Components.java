@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import java.util.Arrays;
+
+/**
+ * The result of a connected components run: every component is identified by the smallest
+ * vertex id it contains.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class Components {
+
+    private final long[] ids;
+    private final int[] roots;
+    private final int count;
+
+    /**
+     * @param ids the sorted vertex ids
+     * @param roots the vertex number of the smallest vertex of the component per vertex number
+     */
+    Components(long[] ids, int[] roots) {
+        this.ids = ids;
+        this.roots = roots;
+        int c = 0;
+        for (int v = 0; v < roots.length; v++) {
+            if (roots[v] == v)
+                c++;
+        }
+        count = c;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getVertexCount() {
+        return ids.length;
+    }
+
+    /**
+     * @return the smallest vertex id of the component or -1 if the vertex is unknown
+     */
+    public long getComponent(long vertexId) {
+        int v = Arrays.binarySearch(ids, vertexId);
+        return v < 0 ? -1 : ids[roots[v]];
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import java.util.Arrays;
+
+/**
+ * A read only copy of the graph topology in compressed sparse row format. The vertices are
+ * numbered 0..n-1 in the order of their ids and the out neighbors of vertex v are
+ * outTargets[outOffsets[v]] until outTargets[outOffsets[v + 1] - 1], the same for in neighbors.
+ * Needs 8 bytes per edge and 16 bytes per vertex instead of documents and boxed ids.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class CsrGraph {
+
+    private final long[] ids;
+    private final int[] outOffsets;
+    private final int[] outTargets;
+    private final int[] inOffsets;
+    private final int[] inTargets;
+
+    /**
+     * @param ids the sorted vertex ids
+     * @param sources the vertex numbers of the out vertex of every edge
+     * @param targets the vertex numbers of the in vertex of every edge
+     */
+    CsrGraph(long[] ids, int[] sources, int[] targets, int edges) {
+        this.ids = ids;
+        outOffsets = new int[ids.length + 1];
+        inOffsets = new int[ids.length + 1];
+        for (int i = 0; i < edges; i++) {
+            outOffsets[sources[i] + 1]++;
+            inOffsets[targets[i] + 1]++;
+        }
+        for (int v = 0; v < ids.length; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            inOffsets[v + 1] += inOffsets[v];
+        }
+        outTargets = new int[edges];
+        inTargets = new int[edges];
+        int[] outPos = Arrays.copyOf(outOffsets, ids.length);
+        int[] inPos = Arrays.copyOf(inOffsets, ids.length);
+        for (int i = 0; i < edges; i++) {
+            outTargets[outPos[sources[i]]++] = targets[i];
+            inTargets[inPos[targets[i]]++] = sources[i];
+        }
+    }
+
+    public int getVertexCount() {
+        return ids.length;
+    }
+
+    public int getEdgeCount() {
+        return outTargets.length;
+    }
+
+    public long getId(int vertex) {
+        return ids[vertex];
+    }
+
+    /**
+     * @return the vertex number or a negative value if the id is not contained
+     */
+    public int getVertex(long id) {
+        return Arrays.binarySearch(ids, id);
+    }
+
+    public int getOutDegree(int vertex) {
+        return outOffsets[vertex + 1] - outOffsets[vertex];
+    }
+
+    public int getInDegree(int vertex) {
+        return inOffsets[vertex + 1] - inOffsets[vertex];
+    }
+
+    public int getOutOffset(int vertex) {
+        return outOffsets[vertex];
+    }
+
+    public int getInOffset(int vertex) {
+        return inOffsets[vertex];
+    }
+
+    /**
+     * @return the array of all out neighbors, use it together with getOutOffset and getOutDegree.
+     * Must not be modified.
+     */
+    public int[] getOutTargets() {
+        return outTargets;
+    }
+
+    /**
+     * @see #getOutTargets()
+     */
+    public int[] getInTargets() {
+        return inTargets;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import de.jetsli.lumeo.RawLucene;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Reads vertex ids and edge endpoints of one segment straight from the postings of the id fields.
+ * Nothing is loaded from the stored fields and nothing stays in the field cache, so the memory
+ * needed is bounded by the size of the largest segment.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class SegmentEdges {
+
+    public interface EdgeVisitor {
+
+        void edge(long outVertex, long inVertex);
+    }
+
+    private SegmentEdges() {
+    }
+
+    /**
+     * @return the live documents of the specified type e.g. Vertex or Edge
+     */
+    public static FixedBitSet getTypeDocs(AtomicReader reader, String type) throws IOException {
+        FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+        Terms terms = reader.terms(RawLucene.TYPE);
+        if (terms == null)
+            return bits;
+        TermsEnum termsEnum = terms.iterator(null);
+        if (!termsEnum.seekExact(new BytesRef(type), false))
+            return bits;
+        DocsEnum docs = termsEnum.docs(reader.getLiveDocs(), null, false);
+        int doc;
+        while ((doc = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+            bits.set(doc);
+        }
+        return bits;
+    }
+
+    /**
+     * @return the value of the id field per document or -1 if the document is not accepted or
+     * has no value
+     */
+    public static long[] readIds(AtomicReader reader, String field, Bits acceptDocs) throws IOException {
+        long[] values = new long[reader.maxDoc()];
+        Arrays.fill(values, -1);
+        Terms terms = reader.terms(field);
+        if (terms == null)
+            return values;
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            long value = NumericUtils.prefixCodedToLong(term);
+            docs = termsEnum.docs(acceptDocs, docs, false);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+                values[doc] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the ids of the live vertices of the segment, sorted
+     */
+    public static long[] readVertexIds(AtomicReader reader) throws IOException {
+        FixedBitSet vertices = getTypeDocs(reader, "Vertex");
+        long[] ids = new long[vertices.cardinality()];
+        int size = 0;
+        Terms terms = reader.terms(RawLucene.ID);
+        if (terms == null)
+            return ids;
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef term;
+        // ids are unique and the terms are sorted, so the result is sorted as well
+        while ((term = termsEnum.next()) != null) {
+            docs = termsEnum.docs(vertices, docs, false);
+            if (docs.nextDoc() != DocsEnum.NO_MORE_DOCS)
+                ids[size++] = NumericUtils.prefixCodedToLong(term);
+        }
+        return size == ids.length ? ids : Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * Calls the visitor for every live edge of the segment
+     *
+     * @return the number of edges
+     */
+    public static long forEachEdge(AtomicReader reader, EdgeVisitor visitor) throws IOException {
+        Bits liveDocs = reader.getLiveDocs();
+        long[] outVertices = readIds(reader, RawLucene.VERTEX_OUT, liveDocs);
+        Terms terms = reader.terms(RawLucene.VERTEX_IN);
+        if (terms == null)
+            return 0;
+        long count = 0;
+        TermsEnum termsEnum = terms.iterator(null);
+        DocsEnum docs = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+            long inVertex = NumericUtils.prefixCodedToLong(term);
+            docs = termsEnum.docs(liveDocs, docs, false);
+            int doc;
+            while ((doc = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+                if (outVertices[doc] < 0)
+                    continue;
+                visitor.edge(outVertices[doc], inVertex);
+                count++;
+            }
+        }
+        return count;
+    }
+}
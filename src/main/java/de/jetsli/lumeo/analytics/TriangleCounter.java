@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import de.jetsli.lumeo.util.ProgressListener;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Counts the triangles of the graph ignoring edge directions, self loops and parallel edges.
+ * Every edge is oriented from the vertex with the smaller degree to the one with the larger
+ * degree, so every triangle is found exactly once and the lists of hubs stay short. The edges
+ * are streamed from the segments three times (degrees, counts, fill) and stored only in the
+ * oriented form: 4 bytes per edge plus 16 bytes per vertex.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class TriangleCounter {
+
+    private final Analytics analytics;
+    private ProgressListener listener = ProgressListener.EMPTY;
+
+    public TriangleCounter(Analytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public TriangleCounter setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public long run() {
+        return analytics.getGraph().getRaw().searchSomething(new SearchExecutor<Long>() {
+
+            @Override public Long execute(IndexSearcher searcher) throws Exception {
+                return count(searcher);
+            }
+        });
+    }
+
+    private long count(IndexSearcher searcher) {
+        final long start = System.currentTimeMillis();
+        final long[] ids = analytics.readVertexIds(searcher);
+        final int n = ids.length;
+
+        // 1. undirected degrees
+        final AtomicIntegerArray degrees = new AtomicIntegerArray(n);
+        analytics.forEachEdge(searcher, new SegmentEdges.EdgeVisitor() {
+
+            @Override public void edge(long outVertex, long inVertex) {
+                int a = Arrays.binarySearch(ids, outVertex);
+                int b = Arrays.binarySearch(ids, inVertex);
+                if (a >= 0 && b >= 0 && a != b) {
+                    degrees.incrementAndGet(a);
+                    degrees.incrementAndGet(b);
+                }
+            }
+        }, listener, "triangles: degrees");
+        final int[] degree = new int[n];
+        for (int v = 0; v < n; v++) {
+            degree[v] = degrees.get(v);
+        }
+
+        // 2. the number of oriented edges per vertex
+        final AtomicIntegerArray positions = new AtomicIntegerArray(n + 1);
+        analytics.forEachEdge(searcher, new SegmentEdges.EdgeVisitor() {
+
+            @Override public void edge(long outVertex, long inVertex) {
+                int a = Arrays.binarySearch(ids, outVertex);
+                int b = Arrays.binarySearch(ids, inVertex);
+                if (a >= 0 && b >= 0 && a != b)
+                    positions.incrementAndGet(lower(degree, a, b) + 1);
+            }
+        }, listener, "triangles: orientation");
+        final int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] = offsets[v] + positions.get(v + 1);
+            positions.set(v, offsets[v]);
+        }
+
+        // 3. fill the oriented lists
+        final int[] targets = new int[offsets[n]];
+        analytics.forEachEdge(searcher, new SegmentEdges.EdgeVisitor() {
+
+            @Override public void edge(long outVertex, long inVertex) {
+                int a = Arrays.binarySearch(ids, outVertex);
+                int b = Arrays.binarySearch(ids, inVertex);
+                if (a >= 0 && b >= 0 && a != b) {
+                    int from = lower(degree, a, b);
+                    targets[positions.getAndIncrement(from)] = from == a ? b : a;
+                }
+            }
+        }, listener, "triangles: adjacency");
+
+        // 4. sort every list, drop parallel edges and intersect the lists of both ends per edge
+        final int[] sizes = new int[n];
+        analytics.forRange(n, new Analytics.RangeTask() {
+
+            @Override public void run(int chunk, int from, int to) {
+                for (int v = from; v < to; v++) {
+                    sizes[v] = sortUnique(targets, offsets[v], offsets[v + 1]);
+                }
+            }
+        });
+        final AtomicLong triangles = new AtomicLong();
+        final AtomicLong done = new AtomicLong();
+        analytics.forRange(n, new Analytics.RangeTask() {
+
+            @Override public void run(int chunk, int from, int to) {
+                long sum = 0;
+                for (int u = from; u < to; u++) {
+                    for (int i = offsets[u]; i < offsets[u] + sizes[u]; i++) {
+                        int v = targets[i];
+                        sum += intersect(targets, offsets[u], sizes[u], offsets[v], sizes[v]);
+                    }
+                }
+                triangles.addAndGet(sum);
+                long vertices = done.addAndGet(to - from);
+                synchronized (listener) {
+                    listener.progress("triangles: count", vertices, System.currentTimeMillis() - start);
+                }
+            }
+        });
+        return triangles.get();
+    }
+
+    /**
+     * @return the end of the edge where the oriented edge starts
+     */
+    static int lower(int[] degree, int a, int b) {
+        if (degree[a] != degree[b])
+            return degree[a] < degree[b] ? a : b;
+        return a < b ? a : b;
+    }
+
+    /**
+     * Sorts the range and moves the unique values to its beginning
+     *
+     * @return the number of unique values
+     */
+    static int sortUnique(int[] values, int from, int to) {
+        if (from == to)
+            return 0;
+        Arrays.sort(values, from, to);
+        int size = 1;
+        for (int i = from + 1; i < to; i++) {
+            if (values[i] != values[from + size - 1])
+                values[from + size++] = values[i];
+        }
+        return size;
+    }
+
+    static int intersect(int[] values, int aFrom, int aSize, int bFrom, int bSize) {
+        int count = 0;
+        int i = aFrom;
+        int j = bFrom;
+        int aEnd = aFrom + aSize;
+        int bEnd = bFrom + bSize;
+        while (i < aEnd && j < bEnd) {
+            if (values[i] < values[j])
+                i++;
+            else if (values[i] > values[j])
+                j++;
+            else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import de.jetsli.lumeo.util.ProgressListener;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Weakly connected components via a lock free union-find. The edges are streamed from all
+ * segments in parallel and never stored, so apart from the current segment only 16 bytes per
+ * vertex are needed: the sorted ids, the parents and the roots of the result.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class UnionFindComponents {
+
+    private final Analytics analytics;
+    private ProgressListener listener = ProgressListener.EMPTY;
+
+    public UnionFindComponents(Analytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public UnionFindComponents setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public Components run() {
+        return analytics.getGraph().getRaw().searchSomething(new SearchExecutor<Components>() {
+
+            @Override public Components execute(IndexSearcher searcher) throws Exception {
+                long start = System.currentTimeMillis();
+                final long[] ids = analytics.readVertexIds(searcher);
+                listener.progress("components: vertices", ids.length, System.currentTimeMillis() - start);
+                final AtomicIntegerArray parents = new AtomicIntegerArray(ids.length);
+                for (int v = 0; v < ids.length; v++) {
+                    parents.set(v, v);
+                }
+                analytics.forEachEdge(searcher, new SegmentEdges.EdgeVisitor() {
+
+                    @Override public void edge(long outVertex, long inVertex) {
+                        int a = Arrays.binarySearch(ids, outVertex);
+                        int b = Arrays.binarySearch(ids, inVertex);
+                        if (a >= 0 && b >= 0)
+                            union(parents, a, b);
+                    }
+                }, listener, "components: edges");
+
+                int[] roots = new int[ids.length];
+                for (int v = 0; v < ids.length; v++) {
+                    roots[v] = find(parents, v);
+                }
+                return new Components(ids, roots);
+            }
+        });
+    }
+
+    /**
+     * Follows the parents to the root and halves the path on the way
+     */
+    static int find(AtomicIntegerArray parents, int v) {
+        while (true) {
+            int p = parents.get(v);
+            if (p == v)
+                return v;
+            int gp = parents.get(p);
+            if (p != gp)
+                parents.compareAndSet(v, p, gp);
+            v = gp;
+        }
+    }
+
+    /**
+     * Links the larger root below the smaller one, so the root of a component is always its
+     * smallest vertex number. Retries if another thread changed the root in the meantime.
+     */
+    static void union(AtomicIntegerArray parents, int a, int b) {
+        while (true) {
+            a = find(parents, a);
+            b = find(parents, b);
+            if (a == b)
+                return;
+            if (a < b) {
+                int tmp = a;
+                a = b;
+                b = tmp;
+            }
+            if (parents.compareAndSet(a, a, b))
+                return;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.io;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.LuceneGraph;
+import de.jetsli.lumeo.RawLucene;
+import de.jetsli.lumeo.util.ProgressListener;
+import de.jetsli.lumeo.util.SearchExecutor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes all vertices and edges of a graph into a snapshot file or into GraphML. Instead of paging
+ * through the sequences the stored documents of every segment are read directly from one searcher
+ * so the export sees one consistent state of the graph.
+ *
+ * The snapshot file starts with MAGIC and VERSION followed by one record per document: the length
+ * of the record, the number of fields and per field its name, its kind and its value. Texts are
+ * UTF-8 encoded and prefixed with their length. Only stored fields are exported, so TEXT
+ * properties can not be restored from a snapshot. Use GraphImporter.importSnapshot to load it.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphExporter {
+
+    public static final int MAGIC = 0x4c554d45;
+    public static final int VERSION = 1;
+    static final byte KIND_STRING = 0;
+    static final byte KIND_LONG = 1;
+    static final byte KIND_INT = 2;
+    static final byte KIND_DOUBLE = 3;
+    static final byte KIND_FLOAT = 4;
+    static final byte KIND_BINARY = 5;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final RawLucene raw;
+    private int bufferSize = 1 << 16;
+    private int reportInterval = 100000;
+    private ProgressListener listener = ProgressListener.EMPTY;
+
+    public GraphExporter(LuceneGraph g) {
+        raw = g.getRaw();
+    }
+
+    public GraphExporter setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public GraphExporter setReportInterval(int reportInterval) {
+        this.reportInterval = reportInterval;
+        return this;
+    }
+
+    public GraphExporter setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @return the number of exported elements
+     */
+    public long exportSnapshot(File file) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            final FileChannel channel = fos.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            long count = walk("snapshot", new DocumentVisitor() {
+
+                @Override public void visit(IndexSearcher searcher, Document doc) throws IOException {
+                    writeRecord(channel, buffer, encode(doc));
+                }
+            });
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            return count;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (fos != null)
+                try {
+                    fos.close();
+                } catch (IOException ex) {
+                }
+        }
+    }
+
+    /**
+     * Writes the graph as GraphML. The user ids are used as node and edge ids, the edge label as
+     * label attribute and the properties as data elements of type string. Fields starting with an
+     * underscore are reserved for lumeo and skipped.
+     *
+     * @return the number of exported elements
+     */
+    public long exportGraphML(OutputStream os) {
+        try {
+            final XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+            // two passes: GraphML needs the keys declared before the first node
+            // property name -> node, edge or all
+            final Map<String, String> keys = new LinkedHashMap<String, String>();
+            // vertex id -> user id to resolve the edge endpoints without a lookup per edge
+            final Map<Long, String> vertexUIds = new HashMap<Long, String>();
+            raw.refresh();
+            return raw.searchSomething(new SearchExecutor<Long>() {
+
+                @Override public Long execute(IndexSearcher searcher) throws Exception {
+                    collectKeys(searcher, keys, vertexUIds);
+
+                    w.writeStartDocument("UTF-8", "1.0");
+                    w.writeStartElement("graphml");
+                    w.writeDefaultNamespace("http://graphml.graphdrawing.org/xmlns");
+                    for (Map.Entry<String, String> e : keys.entrySet()) {
+                        w.writeEmptyElement("key");
+                        w.writeAttribute("id", e.getKey());
+                        w.writeAttribute("for", e.getValue());
+                        w.writeAttribute("attr.name", e.getKey());
+                        w.writeAttribute("attr.type", "string");
+                    }
+                    w.writeStartElement("graph");
+                    w.writeAttribute("edgedefault", "directed");
+                    long count = walk(searcher, "graphml", new DocumentVisitor() {
+
+                        @Override public void visit(IndexSearcher searcher, Document doc) throws Exception {
+                            writeGraphMLElement(w, vertexUIds, doc);
+                        }
+                    });
+                    w.writeEndElement();
+                    w.writeEndElement();
+                    w.writeEndDocument();
+                    w.flush();
+                    return count;
+                }
+            });
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void writeGraphMLElement(XMLStreamWriter w, Map<Long, String> vertexUIds, Document doc) throws Exception {
+        if (isVertex(doc)) {
+            w.writeStartElement("node");
+            w.writeAttribute("id", doc.get(RawLucene.UID));
+        } else {
+            w.writeStartElement("edge");
+            w.writeAttribute("id", doc.get(RawLucene.UID));
+            w.writeAttribute("source", getUserId(vertexUIds, doc.getField(RawLucene.VERTEX_OUT)));
+            w.writeAttribute("target", getUserId(vertexUIds, doc.getField(RawLucene.VERTEX_IN)));
+            String label = doc.get(RawLucene.EDGE_LABEL);
+            if (label != null && !label.isEmpty())
+                w.writeAttribute("label", label);
+        }
+        for (IndexableField f : doc.getFields()) {
+            if (isInternal(f.name()))
+                continue;
+            w.writeStartElement("data");
+            w.writeAttribute("key", f.name());
+            w.writeCharacters(f.numericValue() != null ? f.numericValue().toString() : f.stringValue());
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+    }
+
+    private long walk(final String task, final DocumentVisitor visitor) {
+        // make the latest writes part of the export
+        raw.refresh();
+        return raw.searchSomething(new SearchExecutor<Long>() {
+
+            @Override public Long execute(IndexSearcher searcher) throws Exception {
+                return walk(searcher, task, visitor);
+            }
+        });
+    }
+
+    /**
+     * Visits every live document segment by segment
+     *
+     * @param task if not null the progress is reported under this name
+     */
+    private long walk(IndexSearcher searcher, String task, DocumentVisitor visitor) throws Exception {
+        long start = System.currentTimeMillis();
+        long count = 0;
+        for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+            AtomicReader reader = ctx.reader();
+            Bits liveDocs = reader.getLiveDocs();
+            int maxDoc = reader.maxDoc();
+            for (int docId = 0; docId < maxDoc; docId++) {
+                if (liveDocs != null && !liveDocs.get(docId))
+                    continue;
+
+                visitor.visit(searcher, reader.document(docId));
+                count++;
+                if (task != null && count % reportInterval == 0)
+                    listener.progress(task, count, System.currentTimeMillis() - start);
+            }
+        }
+        if (task != null) {
+            long time = System.currentTimeMillis() - start;
+            logger.info("exported " + count + " elements as " + task + " in " + time / 1000f + " sec");
+            listener.progress(task, count, time);
+        }
+        return count;
+    }
+
+    /**
+     * Collects the property names per element kind and the user id of every vertex. Only the
+     * type, the ids and the field names are read, the property values are skipped.
+     */
+    private static void collectKeys(IndexSearcher searcher, Map<String, String> keys,
+            Map<Long, String> vertexUIds) throws IOException {
+        KeyVisitor visitor = new KeyVisitor();
+        for (AtomicReaderContext ctx : searcher.getTopReaderContext().leaves()) {
+            AtomicReader reader = ctx.reader();
+            Bits liveDocs = reader.getLiveDocs();
+            int maxDoc = reader.maxDoc();
+            for (int docId = 0; docId < maxDoc; docId++) {
+                if (liveDocs != null && !liveDocs.get(docId))
+                    continue;
+
+                visitor.reset();
+                reader.document(docId, visitor);
+                boolean vertex = Vertex.class.getSimpleName().equals(visitor.type);
+                if (vertex)
+                    vertexUIds.put(visitor.id, visitor.uId);
+
+                String target = vertex ? "node" : "edge";
+                for (String name : visitor.names) {
+                    String old = keys.get(name);
+                    keys.put(name, old == null || old.equals(target) ? target : "all");
+                }
+            }
+        }
+    }
+
+    private static String getUserId(Map<Long, String> vertexUIds, IndexableField idField) {
+        long id = idField.numericValue().longValue();
+        String uId = vertexUIds.get(id);
+        // vertex was removed but the edge not
+        return uId == null ? Long.toString(id) : uId;
+    }
+
+    static boolean isVertex(Document doc) {
+        return Vertex.class.getSimpleName().equals(doc.get(RawLucene.TYPE));
+    }
+
+    static boolean isEdge(Document doc) {
+        return Edge.class.getSimpleName().equals(doc.get(RawLucene.TYPE));
+    }
+
+    static boolean isInternal(String field) {
+        return field.startsWith("_");
+    }
+
+    static ByteBuffer encode(Document doc) {
+        int size = 2;
+        for (IndexableField f : doc.getFields()) {
+            size += 2 + f.name().length() * 3 + 1;
+            Number n = f.numericValue();
+            if (n != null)
+                size += 8;
+            else if (f.binaryValue() != null)
+                size += 4 + f.binaryValue().length;
+            else
+                size += 4 + f.stringValue().length() * 3;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putShort((short) doc.getFields().size());
+        for (IndexableField f : doc.getFields()) {
+            byte[] name = f.name().getBytes(UTF8);
+            bb.putShort((short) name.length).put(name);
+            Number n = f.numericValue();
+            BytesRef binary;
+            if (n instanceof Long)
+                bb.put(KIND_LONG).putLong(n.longValue());
+            else if (n instanceof Integer)
+                bb.put(KIND_INT).putLong(n.longValue());
+            else if (n instanceof Double)
+                bb.put(KIND_DOUBLE).putDouble(n.doubleValue());
+            else if (n instanceof Float)
+                bb.put(KIND_FLOAT).putDouble(n.doubleValue());
+            else if ((binary = f.binaryValue()) != null)
+                bb.put(KIND_BINARY).putInt(binary.length).put(binary.bytes, binary.offset, binary.length);
+            else {
+                byte[] str = f.stringValue().getBytes(UTF8);
+                bb.put(KIND_STRING).putInt(str.length).put(str);
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static void writeRecord(FileChannel channel, ByteBuffer buffer, ByteBuffer record) throws IOException {
+        if (buffer.remaining() < 4 + record.remaining()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        if (buffer.remaining() < 4 + record.remaining()) {
+            // larger than the buffer => write it directly
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(record.remaining());
+            length.flip();
+            while (length.hasRemaining()) {
+                channel.write(length);
+            }
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } else
+            buffer.putInt(record.remaining()).put(record);
+    }
+
+    private interface DocumentVisitor {
+
+        void visit(IndexSearcher searcher, Document doc) throws Exception;
+    }
+
+    private static class KeyVisitor extends StoredFieldVisitor {
+
+        String type;
+        String uId;
+        long id;
+        final List<String> names = new ArrayList<String>();
+
+        void reset() {
+            type = null;
+            uId = null;
+            id = -1;
+            names.clear();
+        }
+
+        @Override public Status needsField(FieldInfo fieldInfo) {
+            String name = fieldInfo.name;
+            if (RawLucene.TYPE.equals(name) || RawLucene.UID.equals(name) || RawLucene.ID.equals(name))
+                return Status.YES;
+            if (!isInternal(name) && !names.contains(name))
+                names.add(name);
+            return Status.NO;
+        }
+
+        @Override public void stringField(FieldInfo fieldInfo, String value) {
+            if (RawLucene.TYPE.equals(fieldInfo.name))
+                type = value;
+            else if (RawLucene.UID.equals(fieldInfo.name))
+                uId = value;
+        }
+
+        @Override public void longField(FieldInfo fieldInfo, long value) {
+            if (RawLucene.ID.equals(fieldInfo.name))
+                id = value;
+        }
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.io;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.LuceneGraph;
+import de.jetsli.lumeo.RawLucene;
+import de.jetsli.lumeo.util.Mapping;
+import de.jetsli.lumeo.util.ProgressListener;
+import de.jetsli.lumeo.util.StringLongMap;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports GraphML files or edge lists (one "source target [label]" per line) without going through
+ * the realtime path of addVertex and addEdge. One thread parses the input as stream and resolves
+ * the user ids to internal ids, several threads add the documents to the index. Only the user ids
+ * are hold in memory so the graph can be larger than the heap. GraphML vertices which are only
+ * referenced from edges so far are written at the end, as their node could still follow. The edge
+ * references and degrees of the vertices are set in a second pass over the searchable index.
+ *
+ * The documents are only searchable after the import has finished.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphImporter {
+
+    // signals the end of the input to the writer threads
+    private static final Document END = new Document();
+    // user ids of edges without id in the input, vertices must not use it
+    static final String GENERATED_EDGE_PREFIX = "_e:";
+    // vertices per searcher while linking them to their edges
+    private static final int LINK_BATCH = 1000;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final LuceneGraph g;
+    private final RawLucene raw;
+    private final Mapping vertexMapping;
+    private final Mapping edgeMapping;
+    private int writerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int queueSize = 10000;
+    private int reportInterval = 100000;
+    private boolean resolveExisting = false;
+    private ProgressListener listener = ProgressListener.EMPTY;
+    // user id -> internal id or pending(id) for a vertex which was only referenced from an edge
+    private StringLongMap ids;
+    // if true the documents of vertices referenced from edges are written at the end of the import
+    private boolean deferImplicit;
+    private BlockingQueue<Document> queue;
+    private volatile Throwable failure;
+    private final AtomicLong written = new AtomicLong();
+    private long vertices;
+    private long edges;
+    private long start;
+    // the highest id loaded from a snapshot
+    private long maxId;
+
+    public GraphImporter(LuceneGraph g) {
+        this.g = g;
+        raw = g.getRaw();
+        vertexMapping = raw.getMapping(Vertex.class);
+        edgeMapping = raw.getMapping(Edge.class);
+    }
+
+    public GraphImporter setWriterThreads(int writerThreads) {
+        if (writerThreads < 1)
+            throw new IllegalArgumentException("At least one writer thread is necessary");
+        this.writerThreads = writerThreads;
+        return this;
+    }
+
+    /**
+     * The maximum number of parsed documents waiting for a writer thread
+     */
+    public GraphImporter setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Logs and notifies the listener after every n elements
+     */
+    public GraphImporter setReportInterval(int reportInterval) {
+        this.reportInterval = reportInterval;
+        return this;
+    }
+
+    public GraphImporter setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * If true user ids which are not part of the current import are looked up in the graph. This
+     * costs one search per new vertex so only enable it if you import into a non-empty graph.
+     */
+    public GraphImporter setResolveExisting(boolean resolveExisting) {
+        this.resolveExisting = resolveExisting;
+        return this;
+    }
+
+    public long getVertexCount() {
+        return vertices;
+    }
+
+    public long getEdgeCount() {
+        return edges;
+    }
+
+    public GraphImporter importGraphML(final InputStream is) {
+        return run("graphml", new Parser() {
+
+            @Override public void parse() throws Exception {
+                parseGraphML(is);
+            }
+        });
+    }
+
+    public GraphImporter importGraphML(File file) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            return importGraphML(fis);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(fis);
+        }
+    }
+
+    /**
+     * @param separator e.g. ',' for CSV or '\t' for TSV files
+     */
+    public GraphImporter importEdgeList(File file, final char separator) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            return importEdgeList(Channels.newReader(channel, "UTF-8"), separator);
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(fis);
+        }
+    }
+
+    public GraphImporter importEdgeList(final Reader reader, final char separator) {
+        return run("edgelist", new Parser() {
+
+            @Override public void parse() throws Exception {
+                parseEdgeList(new BufferedReader(reader, 1 << 16), separator);
+            }
+        });
+    }
+
+    /**
+     * Loads a file written from GraphExporter.exportSnapshot. The elements keep their ids so only
+     * load it into an empty graph.
+     */
+    public GraphImporter importSnapshot(File file) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            final FileChannel channel = fis.getChannel();
+            maxId = 0;
+            run("snapshot", new Parser() {
+
+                @Override public void parse() throws Exception {
+                    parseSnapshot(channel);
+                }
+            });
+            g.ensureIdAbove(maxId);
+            return this;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close(fis);
+        }
+    }
+
+    private GraphImporter run(final String name, final Parser parser) {
+        ids = new StringLongMap(1 << 16);
+        queue = new ArrayBlockingQueue<Document>(queueSize);
+        failure = null;
+        written.set(0);
+        vertices = 0;
+        edges = 0;
+        start = System.currentTimeMillis();
+
+        Thread[] writers = new Thread[writerThreads];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new WriterThread("import-writer-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+
+        Thread readerThread = new Thread("import-reader") {
+
+            @Override public void run() {
+                try {
+                    parser.parse();
+                    enqueuePending();
+                } catch (Throwable ex) {
+                    failure = ex;
+                } finally {
+                    for (int i = 0; i < writerThreads; i++) {
+                        try {
+                            queue.put(END);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            }
+        };
+        readerThread.start();
+        try {
+            readerThread.join();
+            for (Thread w : writers) {
+                w.join();
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        if (failure != null)
+            throw new RuntimeException("Import of " + name + " failed after " + written.get() + " elements", failure);
+
+        raw.refresh();
+        linkVertices();
+        raw.refresh();
+        // the imported edges bypass the invalidation of addEdge
+        g.getAdjacencyCache().clear();
+        long time = System.currentTimeMillis() - start;
+        logger.info("imported " + name + " with " + vertices + " vertices and " + edges + " edges in "
+                + time / 1000f + " sec, " + perSecond(vertices + edges, time) + " elements/sec");
+        listener.progress(name, vertices + edges, time);
+        return this;
+    }
+
+    void parseGraphML(InputStream is) throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(is, "UTF-8");
+        deferImplicit = true;
+        // key id -> name and type
+        Map<String, String> keyNames = new HashMap<String, String>();
+        Map<String, String> keyTypes = new HashMap<String, String>();
+        Document current = null;
+        Mapping currentMapping = null;
+        String label = null;
+        String dataKey = null;
+        StringBuilder text = new StringBuilder();
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = r.getLocalName();
+                if ("key".equals(name)) {
+                    String id = r.getAttributeValue(null, "id");
+                    String attrName = r.getAttributeValue(null, "attr.name");
+                    keyNames.put(id, attrName == null ? id : attrName);
+                    keyTypes.put(id, r.getAttributeValue(null, "attr.type"));
+                } else if ("node".equals(name)) {
+                    current = createVertex(r.getAttributeValue(null, "id"));
+                    currentMapping = vertexMapping;
+                } else if ("edge".equals(name)) {
+                    current = createEdge(r.getAttributeValue(null, "id"), r.getAttributeValue(null, "source"),
+                            r.getAttributeValue(null, "target"));
+                    currentMapping = edgeMapping;
+                    label = r.getAttributeValue(null, "label");
+                } else if ("data".equals(name)) {
+                    dataKey = r.getAttributeValue(null, "key");
+                    text.setLength(0);
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (dataKey != null)
+                    text.append(r.getText());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = r.getLocalName();
+                if ("data".equals(name)) {
+                    if (current != null) {
+                        String key = keyNames.containsKey(dataKey) ? keyNames.get(dataKey) : dataKey;
+                        if (currentMapping == edgeMapping && label == null && "label".equals(key))
+                            label = text.toString();
+                        else
+                            current.add(currentMapping.createField(key, toValue(text.toString(), keyTypes.get(dataKey))));
+                    }
+                    dataKey = null;
+                } else if ("node".equals(name)) {
+                    enqueue(current);
+                    current = null;
+                } else if ("edge".equals(name)) {
+                    raw.setLabel(current, label == null ? "" : label);
+                    enqueue(current);
+                    current = null;
+                    label = null;
+                }
+            }
+        }
+        r.close();
+    }
+
+    void parseEdgeList(BufferedReader reader, char separator) throws Exception {
+        // every vertex is only an edge endpoint, so write it directly
+        deferImplicit = false;
+        Pattern sep = Pattern.compile(Pattern.quote(String.valueOf(separator)));
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+
+            String[] cols = sep.split(line);
+            if (cols.length < 2)
+                throw new IllegalStateException("Line " + lineNo + " needs at least source and target: " + line);
+
+            Document edge = createEdge(null, cols[0].trim(), cols[1].trim());
+            String label = cols.length > 2 ? cols[2].trim() : "";
+            raw.setLabel(edge, label);
+            enqueue(edge);
+        }
+    }
+
+    void parseSnapshot(FileChannel channel) throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(1 << 16);
+        bb.flip();
+        bb = fill(channel, bb, 8);
+        if (bb == null || bb.getInt() != GraphExporter.MAGIC)
+            throw new IllegalStateException("Not a lumeo snapshot");
+        int version = bb.getInt();
+        if (version != GraphExporter.VERSION)
+            throw new IllegalStateException("Snapshot version " + version + " not supported");
+
+        while ((bb = fill(channel, bb, 4)) != null) {
+            int length = bb.getInt();
+            bb = fill(channel, bb, length);
+            if (bb == null)
+                throw new EOFException("Snapshot is truncated");
+            enqueue(decode(bb));
+        }
+    }
+
+    /**
+     * Makes sure that the buffer contains at least n bytes and grows it if necessary.
+     *
+     * @return the buffer ready for reading or null if the end of the channel was reached
+     */
+    private static ByteBuffer fill(FileChannel channel, ByteBuffer bb, int n) throws Exception {
+        if (bb.remaining() >= n)
+            return bb;
+
+        if (n > bb.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(n);
+            bigger.put(bb);
+            bb = bigger;
+        } else
+            bb.compact();
+
+        while (bb.position() < n) {
+            if (channel.read(bb) < 0) {
+                if (bb.position() == 0)
+                    return null;
+                throw new EOFException("Snapshot is truncated");
+            }
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private Document decode(ByteBuffer bb) {
+        int fields = bb.getShort();
+        String[] names = new String[fields];
+        Object[] values = new Object[fields];
+        String type = null;
+        for (int i = 0; i < fields; i++) {
+            byte[] name = new byte[bb.getShort()];
+            bb.get(name);
+            names[i] = new String(name, GraphExporter.UTF8);
+            byte kind = bb.get();
+            switch (kind) {
+                case GraphExporter.KIND_LONG:
+                case GraphExporter.KIND_INT:
+                    values[i] = bb.getLong();
+                    break;
+                case GraphExporter.KIND_DOUBLE:
+                case GraphExporter.KIND_FLOAT:
+                    values[i] = bb.getDouble();
+                    break;
+                case GraphExporter.KIND_BINARY:
+                case GraphExporter.KIND_STRING:
+                    byte[] bytes = new byte[bb.getInt()];
+                    bb.get(bytes);
+                    values[i] = kind == GraphExporter.KIND_STRING ? new String(bytes, GraphExporter.UTF8) : bytes;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown kind " + kind + " of field " + names[i]);
+            }
+            if (RawLucene.TYPE.equals(names[i]))
+                type = (String) values[i];
+        }
+        if (type == null)
+            throw new IllegalStateException("Document without type in snapshot");
+
+        Mapping m = raw.getMapping(type);
+        Document doc = new Document();
+        String label = null;
+        for (int i = 0; i < fields; i++) {
+            String name = names[i];
+            Object value = values[i];
+            // the ordinals of the exporting graph differ from the ones of this graph
+            if (RawLucene.EDGE_LABEL.equals(name))
+                label = (String) value;
+            else if (RawLucene.EDGE_LABEL_ORD.equals(name))
+                continue;
+            else if (value instanceof byte[])
+                doc.add(new StoredField(name, new BytesRef((byte[]) value)));
+            else if (isIdField(name)) {
+                long id = (Long) value;
+                doc.add(m.newIdField(name, id));
+                if (RawLucene.ID.equals(name) && id > maxId)
+                    maxId = id;
+            } else if (RawLucene.UID.equals(name))
+                doc.add(m.newUIdField(name, (String) value));
+            else
+                doc.add(m.createField(name, value));
+        }
+        if (label != null)
+            raw.setLabel(doc, label);
+        return doc;
+    }
+
+    static boolean isIdField(String name) {
+        return RawLucene.ID.equals(name) || RawLucene.VERTEX_OUT.equals(name) || RawLucene.VERTEX_IN.equals(name)
+                || RawLucene.EDGE_OUT.equals(name) || RawLucene.EDGE_IN.equals(name);
+    }
+
+    /**
+     * @return the document of the new vertex which still needs to be enqueued
+     */
+    private Document createVertex(String uId) {
+        checkVertexUId(uId);
+        long id = ids.get(uId);
+        if (id >= 0)
+            throw new IllegalStateException("Vertex " + uId + " defined twice");
+        if (id < -1) {
+            // referenced from an edge before
+            id = pending(id);
+            ids.put(uId, id);
+            return raw.createDocument(uId, id, Vertex.class);
+        }
+
+        id = resolve(uId);
+        if (id >= 0)
+            throw new IllegalStateException("Vertex " + uId + " already exists in the graph");
+
+        id = g.nextId();
+        ids.put(uId, id);
+        return raw.createDocument(uId, id, Vertex.class);
+    }
+
+    private Document createEdge(String uId, String sourceUId, String targetUId) throws InterruptedException {
+        long id = g.nextId();
+        if (uId == null)
+            uId = GENERATED_EDGE_PREFIX + id;
+        else if (ids.get(uId) != -1)
+            throw new IllegalStateException("Edge " + uId + " has the user id of a vertex");
+        Document doc = raw.createDocument(uId, id, Edge.class);
+        doc.add(edgeMapping.newIdField(RawLucene.VERTEX_OUT, getVertexId(sourceUId)));
+        doc.add(edgeMapping.newIdField(RawLucene.VERTEX_IN, getVertexId(targetUId)));
+        return doc;
+    }
+
+    /**
+     * Returns the internal id of the vertex and creates it if it does not exist yet. If
+     * deferImplicit is true only its id is kept until the end of the import as it could be
+     * defined later with properties.
+     */
+    private long getVertexId(String uId) throws InterruptedException {
+        long id = ids.get(uId);
+        if (id >= 0)
+            return id;
+        if (id < -1)
+            return pending(id);
+
+        checkVertexUId(uId);
+        id = resolve(uId);
+        if (id < 0) {
+            id = g.nextId();
+            if (deferImplicit) {
+                ids.put(uId, pending(id));
+                return id;
+            }
+            enqueue(raw.createDocument(uId, id, Vertex.class));
+        }
+        ids.put(uId, id);
+        return id;
+    }
+
+    /**
+     * Edges and vertices share the user id field, so vertices must not use the generated edge ids
+     */
+    private static void checkVertexUId(String uId) {
+        if (uId.startsWith(GENERATED_EDGE_PREFIX))
+            throw new IllegalStateException("Vertex " + uId + " uses the prefix of generated edge ids "
+                    + GENERATED_EDGE_PREFIX);
+    }
+
+    /**
+     * Encodes the id of a vertex without document as value below -1 and decodes it again
+     */
+    static long pending(long id) {
+        return -id - 2;
+    }
+
+    /**
+     * Writes the vertices which were referenced from edges but never defined
+     */
+    private void enqueuePending() throws InterruptedException {
+        for (int slot = 0; slot < ids.getCapacity(); slot++) {
+            String uId = ids.getKey(slot);
+            long value = ids.getValue(slot);
+            if (uId != null && value < -1)
+                enqueue(raw.createDocument(uId, pending(value), Vertex.class));
+        }
+    }
+
+    /**
+     * The edges were written without touching their vertices, so add the edge references and
+     * degrees to all vertices of the import
+     */
+    private void linkVertices() {
+        long[] batch = new long[LINK_BATCH];
+        int size = 0;
+        for (int slot = 0; slot < ids.getCapacity(); slot++) {
+            if (ids.getKey(slot) == null)
+                continue;
+
+            long value = ids.getValue(slot);
+            batch[size++] = value < -1 ? pending(value) : value;
+            if (size == batch.length) {
+                raw.linkVertices(batch, size);
+                size = 0;
+            }
+        }
+        if (size > 0)
+            raw.linkVertices(batch, size);
+    }
+
+    private long resolve(String uId) {
+        if (!resolveExisting)
+            return -1;
+
+        Document doc = raw.findByUserId(uId);
+        if (doc == null)
+            return -1;
+        return doc.getField(RawLucene.ID).numericValue().longValue();
+    }
+
+    private void enqueue(Document doc) throws InterruptedException {
+        if (failure != null)
+            throw new RuntimeException("Writer failed", failure);
+
+        queue.put(doc);
+        if (Vertex.class.getSimpleName().equals(doc.get(RawLucene.TYPE)))
+            vertices++;
+        else
+            edges++;
+
+        long items = vertices + edges;
+        if (items % reportInterval == 0) {
+            long time = System.currentTimeMillis() - start;
+            logger.info("parsed " + vertices + " vertices, " + edges + " edges, written " + written.get()
+                    + ", " + perSecond(items, time) + " elements/sec");
+            listener.progress("parsing", items, time);
+        }
+    }
+
+    static Object toValue(String str, String type) {
+        if (type == null || "string".equals(type))
+            return str;
+        else if ("int".equals(type) || "long".equals(type))
+            return Long.parseLong(str.trim());
+        else if ("float".equals(type) || "double".equals(type))
+            return Double.parseDouble(str.trim());
+        else if ("boolean".equals(type))
+            return Boolean.valueOf(str.trim()).toString();
+        return str;
+    }
+
+    private static long perSecond(long items, long millis) {
+        return millis <= 0 ? items : items * 1000 / millis;
+    }
+
+    private static void close(InputStream is) {
+        if (is == null)
+            return;
+        try {
+            is.close();
+        } catch (Exception ex) {
+        }
+    }
+
+    private interface Parser {
+
+        void parse() throws Exception;
+    }
+
+    private class WriterThread extends Thread {
+
+        public WriterThread(String name) {
+            super(name);
+        }
+
+        @Override public void run() {
+            while (true) {
+                Document doc;
+                try {
+                    doc = queue.take();
+                } catch (InterruptedException ex) {
+                    failure = ex;
+                    return;
+                }
+                if (doc == END)
+                    break;
+
+                // after a failure only drain the queue so that the reader is not blocked
+                if (failure == null) {
+                    try {
+                        raw.bulkAdd(doc);
+                        written.incrementAndGet();
+                    } catch (Throwable ex) {
+                        failure = ex;
+                    }
+                }
+            }
+        }
+    }
+}
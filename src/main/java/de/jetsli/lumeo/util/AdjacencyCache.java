@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Caches the edge ids, neighbor ids and edge label ordinals of vertices as primitive arrays and is bounded by an estimated size in
+ * bytes. When full a new entry only replaces the least recently used ones if its access frequency
+ * weighted by its degree is higher than theirs (TinyLFU admission), so that a scan over many
+ * rarely used vertices cannot flush the hubs. The frequencies are estimated by a count-min sketch
+ * which is halved periodically to let old popularity fade. Thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class AdjacencyCache {
+
+    // estimated bytes of the map entry, the key, the holder and the array headers
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL,
+        0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+    private final long maxBytes;
+    // access order => the first entries are the least recently used
+    private final LinkedHashMap<Long, Adjacency> entries = new LinkedHashMap<Long, Adjacency>(64, 0.75f, true);
+    private final int[] sketch;
+    private final int mask;
+    private final int sampleSize;
+    private int samples;
+    private long bytes;
+    // incremented on every invalidation to reject values computed before it
+    private long stamp;
+    private long hits;
+    private long misses;
+    private long rejected;
+
+    /**
+     * The edge ids, the neighbor ids at their other end and the label ordinals of the edges
+     */
+    public static final class Adjacency {
+
+        public final long[] edgeIds;
+        public final long[] neighborIds;
+        public final int[] labels;
+
+        public Adjacency(long[] edgeIds, long[] neighborIds, int[] labels) {
+            if (neighborIds.length != labels.length || edgeIds.length != labels.length)
+                throw new IllegalArgumentException("Every edge needs a neighbor and a label");
+            this.edgeIds = edgeIds;
+            this.neighborIds = neighborIds;
+            this.labels = labels;
+        }
+
+        public int size() {
+            return neighborIds.length;
+        }
+
+        /**
+         * @param labelOrds the accepted label ordinals, all labels if empty
+         * @return the ids of the neighbors connected via one of the labels
+         */
+        public long[] getNeighborIds(int... labelOrds) {
+            if (labelOrds.length == 0)
+                return neighborIds;
+
+            long[] ids = new long[neighborIds.length];
+            int size = 0;
+            for (int i = 0; i < labels.length; i++) {
+                for (int ord : labelOrds) {
+                    if (labels[i] == ord) {
+                        ids[size++] = neighborIds[i];
+                        break;
+                    }
+                }
+            }
+            return size == ids.length ? ids : Arrays.copyOf(ids, size);
+        }
+    }
+
+    public AdjacencyCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        this.maxBytes = maxBytes;
+        // one counter per row for every expected entry of an average size
+        int width = Integer.highestOneBit((int) Math.max(64, Math.min(1 << 20, maxBytes / 256)));
+        mask = width - 1;
+        sketch = new int[SEEDS.length * width];
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * @param out true for the neighbors of the out edges, false for the in edges
+     * @return the cached neighbors or null
+     */
+    public synchronized Adjacency get(long vertexId, boolean out) {
+        long key = toKey(vertexId, out);
+        increment(key);
+        Adjacency adj = entries.get(key);
+        if (adj == null)
+            misses++;
+        else
+            hits++;
+        return adj;
+    }
+
+    /**
+     * @return the stamp which needs to be passed to put. Get it before reading the neighbors.
+     */
+    public synchronized long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @param stamp the value of getStamp before the neighbors were read. If a write invalidated
+     * entries in the meantime the neighbors could be outdated and are not cached.
+     * @return true if the neighbors were admitted
+     */
+    public synchronized boolean put(long vertexId, boolean out, Adjacency adj, long stamp) {
+        if (stamp != this.stamp)
+            return false;
+
+        long key = toKey(vertexId, out);
+        long size = getWeight(adj);
+        if (size > maxBytes) {
+            rejected++;
+            return false;
+        }
+
+        Adjacency old = entries.remove(key);
+        if (old != null)
+            bytes -= getWeight(old);
+
+        // pick the least recently used entries until the new one fits, each of them needs to be
+        // less valuable than the new one
+        long candidateScore = getScore(key, adj.size());
+        List<Long> victims = new ArrayList<Long>();
+        long free = maxBytes - bytes;
+        Iterator<Entry<Long, Adjacency>> iter = entries.entrySet().iterator();
+        while (free < size && iter.hasNext()) {
+            Entry<Long, Adjacency> e = iter.next();
+            if (getScore(e.getKey(), e.getValue().size()) >= candidateScore) {
+                rejected++;
+                return false;
+            }
+            victims.add(e.getKey());
+            free += getWeight(e.getValue());
+        }
+        for (Long victim : victims) {
+            bytes -= getWeight(entries.remove(victim));
+        }
+        entries.put(key, adj);
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Removes the neighbors of the vertex in both directions. Call it on every edge change.
+     */
+    public synchronized void invalidate(long vertexId) {
+        stamp++;
+        for (boolean out : new boolean[]{true, false}) {
+            Adjacency old = entries.remove(toKey(vertexId, out));
+            if (old != null)
+                bytes -= getWeight(old);
+        }
+    }
+
+    public synchronized void clear() {
+        stamp++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of neighbor arrays which were not admitted
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override public synchronized String toString() {
+        return "entries:" + entries.size() + ", bytes:" + bytes + "/" + maxBytes
+                + ", hits:" + hits + ", misses:" + misses + ", rejected:" + rejected;
+    }
+
+    static long getWeight(Adjacency adj) {
+        return ENTRY_OVERHEAD + 20L * adj.size();
+    }
+
+    private static long toKey(long vertexId, boolean out) {
+        return out ? vertexId << 1 : (vertexId << 1) | 1;
+    }
+
+    /**
+     * Expanding a vertex costs roughly one read per edge, so the estimated frequency is weighted
+     * with the logarithm of the degree. Otherwise a hub would need as many accesses as the small
+     * vertices it displaces.
+     */
+    private long getScore(long key, int degree) {
+        return (long) getFrequency(key) * (33 - Integer.numberOfLeadingZeros(degree + 1));
+    }
+
+    private int getFrequency(long key) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            min = Math.min(min, sketch[getIndex(key, i)]);
+        }
+        return min;
+    }
+
+    private void increment(long key) {
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = getIndex(key, i);
+            if (sketch[index] < MAX_COUNT)
+                sketch[index]++;
+        }
+        if (++samples >= sampleSize) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>>= 1;
+            }
+            samples /= 2;
+        }
+    }
+
+    private int getIndex(long key, int row) {
+        long h = (key + row) * SEEDS[row];
+        return row * (mask + 1) + ((int) (h >>> 32) & mask);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Keeps the ids of the vertices with the highest degree. An update is only a map lookup as long as
+ * the degree is not higher than the smallest tracked one. If the degree of a tracked vertex shrinks
+ * an untracked vertex could have a higher degree, so the result is only exact for growing graphs.
+ * Thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class HubTracker {
+
+    private final int capacity;
+    private final Map<Long, Long> degrees;
+    // the smallest tracked degree if all places are taken
+    private long minDegree = 0;
+
+    public HubTracker(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        degrees = new HashMap<Long, Long>(capacity * 2);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void update(long id, long degree) {
+        if (degree <= 0) {
+            remove(id);
+            return;
+        }
+
+        boolean tracked = degrees.containsKey(id);
+        if (!tracked && degrees.size() >= capacity) {
+            if (degree <= minDegree)
+                return;
+            degrees.remove(findMin().getKey());
+        }
+        degrees.put(id, degree);
+        if (degrees.size() >= capacity)
+            minDegree = findMin().getValue();
+    }
+
+    public synchronized void remove(long id) {
+        if (degrees.remove(id) != null)
+            minDegree = 0;
+    }
+
+    /**
+     * @return the tracked degree or -1
+     */
+    public synchronized long getDegree(long id) {
+        Long degree = degrees.get(id);
+        return degree == null ? -1 : degree;
+    }
+
+    /**
+     * @return at most k ids, highest degree first
+     */
+    public synchronized long[] getTop(int k) {
+        List<Entry<Long, Long>> list = new ArrayList<Entry<Long, Long>>(degrees.entrySet());
+        Collections.sort(list, new Comparator<Entry<Long, Long>>() {
+
+            @Override public int compare(Entry<Long, Long> o1, Entry<Long, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        long[] ids = new long[Math.min(k, list.size())];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = list.get(i).getKey();
+        }
+        return ids;
+    }
+
+    public synchronized int size() {
+        return degrees.size();
+    }
+
+    public synchronized void clear() {
+        degrees.clear();
+        minDegree = 0;
+    }
+
+    private Entry<Long, Long> findMin() {
+        Entry<Long, Long> min = null;
+        for (Entry<Long, Long> e : degrees.entrySet()) {
+            if (min == null || e.getValue() < min.getValue())
+                min = e;
+        }
+        return min;
+    }
+}
@@ -29,6 +29,8 @@ public class IndexOp {
     }
     public Document document;
     public Type type;
+    // the generation of the writer which contains the operation, set when it is cached
+    public long gen;
     // public long version;
     // public long time = System.currentTimeMillis();
 
@@ -22,7 +22,7 @@ import java.util.LinkedHashMap;
  * @author Peter Karich, info@jetsli.de
  */
 @SuppressWarnings(value = "serial")
-class LRUCache<K, V> extends LinkedHashMap<K, V> {
+public class LRUCache<K, V> extends LinkedHashMap<K, V> {
     private int maxSize;
 
     public LRUCache(int maxSize) {
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns edge labels to int ordinals. The ordinals are stored with every edge, so the dictionary
+ * can be rebuilt from the index and label restrictions compare ints instead of strings. Lookups
+ * are lock free, new labels are added synchronized.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LabelDictionary {
+
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+    private final List<String> labels = new ArrayList<String>();
+
+    /**
+     * @return the ordinal or -1 if the label was never used
+     */
+    public int getOrdinal(String label) {
+        Integer ord = ordinals.get(label);
+        return ord == null ? -1 : ord;
+    }
+
+    public synchronized int getOrCreate(String label) {
+        Integer ord = ordinals.get(label);
+        if (ord != null)
+            return ord;
+
+        int newOrd = labels.size();
+        labels.add(label);
+        ordinals.put(label, newOrd);
+        return newOrd;
+    }
+
+    /**
+     * Registers an ordinal read from the index
+     */
+    public synchronized void put(String label, int ord) {
+        Integer old = ordinals.get(label);
+        if (old != null) {
+            if (old != ord)
+                throw new IllegalStateException("Label " + label + " has the ordinals " + old + " and " + ord);
+            return;
+        }
+        while (labels.size() <= ord) {
+            labels.add(null);
+        }
+        if (labels.get(ord) != null)
+            throw new IllegalStateException("Ordinal " + ord + " is used by " + labels.get(ord) + " and " + label);
+        labels.set(ord, label);
+        ordinals.put(label, ord);
+    }
+
+    /**
+     * @return the label of the ordinal or null
+     */
+    public synchronized String getLabel(int ord) {
+        return ord >= 0 && ord < labels.size() ? labels.get(ord) : null;
+    }
+
+    /**
+     * @return the ordinals of the labels, -1 for unknown ones
+     */
+    public int[] getOrdinals(String... labels) {
+        int[] ords = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            ords[i] = getOrdinal(labels[i]);
+        }
+        return ords;
+    }
+
+    public int size() {
+        return ordinals.size();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations in buckets of powers of two nanoseconds. Cheap enough for hot paths: one
+ * record call is a few atomic increments without locking. Percentiles are reported as the upper
+ * bound of their bucket so they are exact up to a factor of two.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LatencyHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(nanos == 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long c = count.get();
+        return c == 0 ? 0 : totalNanos.get() / 1e6 / c;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * @param p e.g. 0.99 for the 99th percentile
+     */
+    public double getPercentileMillis(double p) {
+        long c = count.get();
+        if (c == 0)
+            return 0;
+
+        long limit = (long) Math.ceil(c * p);
+        long sum = 0;
+        for (int i = 0; i < 64; i++) {
+            sum += buckets.get(i);
+            if (sum >= limit)
+                return Math.min((1L << (i + 1)) - 1, maxNanos.get()) / 1e6;
+        }
+        return getMaxMillis();
+    }
+
+    public void reset() {
+        for (int i = 0; i < 64; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override public String toString() {
+        return "count:" + getCount() + ", mean:" + getMeanMillis() + "ms, p99:" + getPercentileMillis(0.99)
+                + "ms, max:" + getMaxMillis() + "ms";
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs via open addressing, e.g. for the visited vertices of a traversal. Not
+ * thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LongHashSet {
+
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+
+    public LongHashSet(int initialCapacity) {
+        int cap = 16;
+        while (cap < initialCapacity * 2) {
+            cap <<= 1;
+        }
+        keys = new long[cap];
+        used = new boolean[cap];
+    }
+
+    public boolean contains(long key) {
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (used[pos]) {
+            if (keys[pos] == key)
+                return true;
+            pos = (pos + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the key was not contained before
+     */
+    public boolean add(long key) {
+        // keep the load factor below 0.5 to make probing short
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (used[pos]) {
+            if (keys[pos] == key)
+                return false;
+            pos = (pos + 1) & mask;
+        }
+        used[pos] = true;
+        keys[pos] = key;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return the keys in no specific order
+     */
+    public long[] toArray() {
+        long[] result = new long[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i])
+                result[j++] = keys[i];
+        }
+        return result;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new long[newCapacity];
+        used = new boolean[newCapacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i])
+                add(oldKeys[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        // sequential ids should not end up in neighbouring slots
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps primitive longs to primitive ints via open addressing. Compared to a HashMap<Long, Integer>
+ * no entry and no boxed objects are created. Not thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LongIntMap {
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private final int noValue;
+
+    /**
+     * @param noValue will be returned from get if the key does not exist
+     */
+    public LongIntMap(int initialCapacity, int noValue) {
+        int cap = 16;
+        while (cap < initialCapacity * 2) {
+            cap <<= 1;
+        }
+        keys = new long[cap];
+        values = new int[cap];
+        used = new boolean[cap];
+        this.noValue = noValue;
+    }
+
+    public int get(long key) {
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (used[pos]) {
+            if (keys[pos] == key)
+                return values[pos];
+            pos = (pos + 1) & mask;
+        }
+        return noValue;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != noValue;
+    }
+
+    public void put(long key, int value) {
+        // keep the load factor below 0.5 to make probing short
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (used[pos]) {
+            if (keys[pos] == key) {
+                values[pos] = value;
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+        used[pos] = true;
+        keys[pos] = key;
+        values[pos] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[newCapacity];
+        values = new int[newCapacity];
+        used = new boolean[newCapacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i])
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        // sequential ids should not end up in neighbouring slots
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
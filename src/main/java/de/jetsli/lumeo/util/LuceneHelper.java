@@ -23,19 +23,59 @@ import org.apache.lucene.util.NumericUtils;
  */
 public class LuceneHelper {    
 
+    private static final ThreadLocal<BytesRef> SCRATCH = new ThreadLocal<BytesRef>() {
+
+        @Override protected BytesRef initialValue() {
+            return new BytesRef(NumericUtils.BUF_SIZE_LONG);
+        }
+    };
+
+    /**
+     * Use this for everything which keeps a reference to the bytes e.g. Terms passed to the
+     * IndexWriter (it buffers the delete terms) or Filters.
+     */
     public static BytesRef newRefFromInt(int value) {
-        // TODO reuse bytes
-        final BytesRef bytes = new BytesRef();
-        NumericUtils.intToPrefixCoded(value, 0, bytes);
-        return bytes;
+        return intToRef(value, new BytesRef(NumericUtils.BUF_SIZE_INT));
     }
 
     public static BytesRef newRefFromLong(long value) {
-        // TODO reuse bytes
-        final BytesRef bytes = new BytesRef();
-//        copyLong(bytes, value);
-        NumericUtils.longToPrefixCoded(value, 0, bytes);
-        return bytes;
+        return longToRef(value, new BytesRef(NumericUtils.BUF_SIZE_LONG));
+    }
+
+    /**
+     * Encodes the value into the specified bytes without allocating if the bytes are large enough.
+     */
+    public static BytesRef longToRef(long value, BytesRef reuse) {
+        NumericUtils.longToPrefixCoded(value, 0, reuse);
+        return reuse;
+    }
+
+    public static BytesRef intToRef(int value, BytesRef reuse) {
+        NumericUtils.intToPrefixCoded(value, 0, reuse);
+        return reuse;
+    }
+
+    /**
+     * @return the encoded value in bytes which are reused per thread. Only valid until the next
+     * call in the same thread, so use it only for short living lookups like seeking a TermsEnum.
+     */
+    public static BytesRef scratchLong(long value) {
+        return longToRef(value, SCRATCH.get());
+    }
+
+    /**
+     * @see #scratchLong(long)
+     */
+    public static BytesRef scratchInt(int value) {
+        return intToRef(value, SCRATCH.get());
+    }
+
+    /**
+     * @return the bytes which are reused per thread
+     * @see #scratchLong(long)
+     */
+    public static BytesRef scratch() {
+        return SCRATCH.get();
     }
 
     public static BytesRef newRefFromDouble(double value) {
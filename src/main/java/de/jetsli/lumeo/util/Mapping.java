@@ -24,7 +24,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.FieldType;
@@ -36,9 +36,15 @@ import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
 
 /**
  * This class defines how specific field will be indexed and queried (if stored, which analyzers, ...)
@@ -56,9 +62,12 @@ public class Mapping {
 
         DATE, LONG, DOUBLE, STRING, STRING_LC, TEXT
     }
+    // more terms per value make range queries faster but the index larger
+    public static final int PRECISION_STEP = NumericUtils.PRECISION_STEP_DEFAULT;
     private final FieldType storedFieldType;
-    private final FieldType indexedFieldType;
+    private final FieldType idFieldType;
     private final FieldType longFieldTypeSI;
+    private final FieldType doubleFieldTypeSI;
     private final Map<String, Type> fieldToTypeMapping;
     private final LumeoPerFieldAnalyzer analyzer;
     private String type;
@@ -74,15 +83,13 @@ public class Mapping {
         storedFieldType.setIndexed(false);
         storedFieldType.freeze();
 
-        indexedFieldType = new FieldType();
-        indexedFieldType.setIndexOptions(IndexOptions.DOCS_ONLY);
-        indexedFieldType.setOmitNorms(true);    
-        indexedFieldType.setStoreTermVectors(false);        
-        indexedFieldType.setStored(true);
-        indexedFieldType.setIndexed(true);
-        indexedFieldType.freeze();
-        
-        longFieldTypeSI = getLongFieldType(true, true);
+        // ids are only looked up by exact value => one term per id is sufficient
+        idFieldType = getLongFieldType(true, true, Integer.MAX_VALUE);
+        longFieldTypeSI = getLongFieldType(true, true, PRECISION_STEP);
+
+        doubleFieldTypeSI = new FieldType(longFieldTypeSI);
+        doubleFieldTypeSI.setNumericType(FieldType.NumericType.DOUBLE);
+        doubleFieldTypeSI.freeze();
 
         analyzer = new LumeoPerFieldAnalyzer(getDefaultAnalyzer());
         fieldToTypeMapping = new LinkedHashMap<String, Type>(4);
@@ -90,6 +97,8 @@ public class Mapping {
         putField(RawLucene.UID, Type.STRING);
         putField(RawLucene.TYPE, Type.STRING);
         putField(RawLucene.EDGE_LABEL, Type.STRING);
+        putField(RawLucene.OUT_DEGREE, Type.LONG);
+        putField(RawLucene.IN_DEGREE, Type.LONG);
     }
 
     public Mapping(Class cl) {
@@ -126,6 +135,18 @@ public class Mapping {
         return oldType;
     }
 
+    /**
+     * @return the type of the field or null if not indexed
+     */
+    public Type getType(String key) {
+        return fieldToTypeMapping.get(key);
+    }
+
+    public boolean isNumeric(String key) {
+        Type t = fieldToTypeMapping.get(key);
+        return t == Type.LONG || t == Type.DATE || t == Type.DOUBLE;
+    }
+
     public Set<String> getIndexedFields() {
         return fieldToTypeMapping.keySet();
     }
@@ -139,7 +160,7 @@ public class Mapping {
 
         switch (t) {
             case DATE:
-                return newDateField(key, ((Date) value).getTime());
+                return newDateField(key, toLong(value));
             case STRING:
                 if (getAnalyzerFor(key) == KEYWORD_ANALYZER)
                     return newStringField(key, (String) value);
@@ -155,23 +176,32 @@ public class Mapping {
             case TEXT:
                 return newTextField(key, (String) value);
             case LONG:
-                return newLongField(key, ((Number) value).longValue());
+                return newLongField(key, toLong(value));
+            case DOUBLE:
+                return newDoubleField(key, toDouble(value));
             default:
                 throw new IllegalStateException("something went wrong while determining field type");
         }
     }
 
+    /** Dates are stored as milliseconds in a trie encoded long field to make range queries fast */
     public Field newDateField(String name, long value) {
-        // TODO performance shouldn't we round the long and use long instead of string?
-        return new Field(name, DateTools.timeToString(value, DateTools.Resolution.MINUTE), indexedFieldType);
+        return new LongField(name, value, longFieldTypeSI);
     }
 
     public static FieldType getLongFieldType(boolean indexed, boolean stored) {
+        return getLongFieldType(indexed, stored, PRECISION_STEP);
+    }
+
+    public static FieldType getLongFieldType(boolean indexed, boolean stored, int precisionStep) {
         FieldType ft = new FieldType();
         ft.setNumericType(FieldType.NumericType.LONG);
+        ft.setNumericPrecisionStep(precisionStep);
         ft.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
+        ft.setOmitNorms(true);
         ft.setIndexed(indexed);
         ft.setStored(stored);
+        ft.freeze();
         return ft;
     }
     
@@ -180,9 +210,13 @@ public class Mapping {
         return idField;
     }        
 
+    public Field newDoubleField(String name, double value) {
+        return new DoubleField(name, value, doubleFieldTypeSI);
+    }
+
     /** Creates a numerical identification */
     public Field newIdField(String name, long id) {
-        LongField idField = new LongField(name, id, longFieldTypeSI);
+        LongField idField = new LongField(name, id, idFieldType);
         return idField;
     }
 
@@ -219,25 +253,49 @@ public class Mapping {
     }
 
     public BytesRef toBytes(String fieldName, Object o) {
+        return toBytes(fieldName, o, new BytesRef());
+    }
+
+    /**
+     * Encodes the object into the specified bytes which will be grown if necessary.
+     */
+    public BytesRef toBytes(String fieldName, Object o, BytesRef reuse) {
+        Type t = fieldToTypeMapping.get(fieldName);
+        if (t == Type.LONG || t == Type.DATE)
+            return LuceneHelper.longToRef(toLong(o), reuse);
+        else if (t == Type.DOUBLE)
+            return LuceneHelper.longToRef(NumericUtils.doubleToSortableLong(toDouble(o)), reuse);
+
         if (o instanceof String) {
             if (getAnalyzerFor(fieldName) == KEYWORD_ANALYZER_LC)
-                return new BytesRef(((String) o).toLowerCase());
+                reuse.copyChars(KeywordAnalyzerLowerCase.transform((String) o));
             else
-                return new BytesRef((String) o);
+                reuse.copyChars((String) o);
+            return reuse;
         } else if (o instanceof Integer)
-            return LuceneHelper.newRefFromInt((Integer) o);
+            return LuceneHelper.intToRef((Integer) o, reuse);
         else if (o instanceof Long)
-            return LuceneHelper.newRefFromLong((Long) o);
+            return LuceneHelper.longToRef((Long) o, reuse);
         else if (o instanceof Double)
-            return LuceneHelper.newRefFromDouble((Double) o);
+            return LuceneHelper.longToRef(NumericUtils.doubleToSortableLong((Double) o), reuse);
         else if (o instanceof Date)
-            return new BytesRef(DateTools.timeToString(((Date) o).getTime(), DateTools.Resolution.MINUTE));
+            return LuceneHelper.longToRef(((Date) o).getTime(), reuse);
         else
             throw new UnsupportedOperationException(
                     "Couldn't find bytesRef usage for object  " + o);
     }
 
     public Query getQuery(String field, Object o) {
+        if (isNumeric(field)) {
+            if (o instanceof String) {
+                String str = ((String) o).trim();
+                if (str.startsWith("[") || str.startsWith("{"))
+                    return parseRange(field, str);
+            }
+            // exact matches only need the full precision term
+            return new TermQuery(new Term(field, toBytes(field, o)));
+        }
+
         Analyzer a = getAnalyzerFor(field);
         if (a == KEYWORD_ANALYZER_LC)
             return new TermQuery(new Term(field, ((String) o).toLowerCase()));
@@ -250,4 +308,99 @@ public class Mapping {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Creates a range query for a LONG, DATE or DOUBLE field. A null bound means open ended.
+     */
+    public Query getRangeQuery(String field, Object from, Object to, boolean fromInclusive, boolean toInclusive) {
+        Type t = getNumericType(field);
+        if (t == Type.DOUBLE)
+            return NumericRangeQuery.newDoubleRange(field, PRECISION_STEP,
+                    from == null ? null : toDouble(from), to == null ? null : toDouble(to),
+                    fromInclusive, toInclusive);
+
+        return NumericRangeQuery.newLongRange(field, PRECISION_STEP,
+                from == null ? null : toLong(from), to == null ? null : toLong(to),
+                fromInclusive, toInclusive);
+    }
+
+    /**
+     * Same as getRangeQuery but as non-scoring filter
+     */
+    public Filter getRangeFilter(String field, Object from, Object to, boolean fromInclusive, boolean toInclusive) {
+        Type t = getNumericType(field);
+        if (t == Type.DOUBLE)
+            return NumericRangeFilter.newDoubleRange(field, PRECISION_STEP,
+                    from == null ? null : toDouble(from), to == null ? null : toDouble(to),
+                    fromInclusive, toInclusive);
+
+        return NumericRangeFilter.newLongRange(field, PRECISION_STEP,
+                from == null ? null : toLong(from), to == null ? null : toLong(to),
+                fromInclusive, toInclusive);
+    }
+
+    /**
+     * @return the sort field which parses the values of the specified field into the field cache
+     */
+    public SortField getSortField(String field, boolean reverse) {
+        Type t = fieldToTypeMapping.get(field);
+        if (t == null)
+            throw new UnsupportedOperationException("Cannot sort by unindexed field " + field);
+
+        switch (t) {
+            case LONG:
+            case DATE:
+                return new SortField(field, FieldCache.NUMERIC_UTILS_LONG_PARSER, reverse);
+            case DOUBLE:
+                return new SortField(field, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, reverse);
+            case STRING:
+            case STRING_LC:
+                return new SortField(field, SortField.Type.STRING, reverse);
+            default:
+                throw new UnsupportedOperationException("Cannot sort by field " + field + " of type " + t);
+        }
+    }
+
+    private Type getNumericType(String field) {
+        if (!isNumeric(field))
+            throw new UnsupportedOperationException("Range queries are only supported for numeric fields but "
+                    + field + " is " + fieldToTypeMapping.get(field));
+        return fieldToTypeMapping.get(field);
+    }
+
+    /**
+     * Parses [from TO to] where a square bracket means inclusive, a curly bracket exclusive and *
+     * means open ended
+     */
+    Query parseRange(String field, String str) {
+        int toIndex = str.indexOf(" TO ");
+        char last = str.charAt(str.length() - 1);
+        if (toIndex < 0 || (last != ']' && last != '}'))
+            throw new IllegalArgumentException("Cannot parse range " + str + " for field " + field);
+
+        String from = str.substring(1, toIndex).trim();
+        String to = str.substring(toIndex + 4, str.length() - 1).trim();
+        return getRangeQuery(field, "*".equals(from) ? null : from, "*".equals(to) ? null : to,
+                str.charAt(0) == '[', last == ']');
+    }
+
+    static long toLong(Object o) {
+        if (o instanceof Date)
+            return ((Date) o).getTime();
+        else if (o instanceof Number)
+            return ((Number) o).longValue();
+        else if (o instanceof String)
+            return Long.parseLong((String) o);
+
+        throw new UnsupportedOperationException("Cannot convert " + o + " into a long");
+    }
+
+    static double toDouble(Object o) {
+        if (o instanceof Number)
+            return ((Number) o).doubleValue();
+        else if (o instanceof String)
+            return Double.parseDouble((String) o);
+
+        throw new UnsupportedOperationException("Cannot convert " + o + " into a double");
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Merge policies for RawLucene.setMergePolicy. Every id lookup has to visit all segments, so
+ * fewer segments mean faster lookups at the cost of more merging while writing.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class MergePolicies {
+
+    public enum Type {
+
+        LOG_BYTE_SIZE, TIERED, LOOKUP
+    }
+
+    public static MergePolicy create(Type type, int maxMergeMB) {
+        switch (type) {
+            case LOG_BYTE_SIZE:
+                return logByteSize(maxMergeMB);
+            case TIERED:
+                return tiered(maxMergeMB);
+            case LOOKUP:
+                return lookup(maxMergeMB);
+            default:
+                throw new IllegalArgumentException("Unknown merge policy " + type);
+        }
+    }
+
+    /**
+     * The former default of RawLucene
+     */
+    public static MergePolicy logByteSize(int maxMergeMB) {
+        LogByteSizeMergePolicy mp = new LogByteSizeMergePolicy();
+        mp.setMaxMergeMB(maxMergeMB);
+        return mp;
+    }
+
+    /**
+     * Merges segments of similar size and prefers merges reclaiming many deletes
+     */
+    public static MergePolicy tiered(int maxMergeMB) {
+        TieredMergePolicy mp = new TieredMergePolicy();
+        mp.setMaxMergedSegmentMB(maxMergeMB);
+        return mp;
+    }
+
+    /**
+     * Keeps the segment count low for read heavy workloads: fewer segments per tier, small
+     * segments are merged early and deletes are reclaimed aggressively as every update of an
+     * element deletes its old document.
+     */
+    public static MergePolicy lookup(int maxMergeMB) {
+        TieredMergePolicy mp = new TieredMergePolicy();
+        mp.setMaxMergedSegmentMB(maxMergeMB);
+        mp.setSegmentsPerTier(4);
+        mp.setMaxMergeAtOnce(4);
+        mp.setFloorSegmentMB(16);
+        mp.setReclaimDeletesWeight(3);
+        return mp;
+    }
+}
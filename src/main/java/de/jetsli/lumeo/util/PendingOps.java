@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import de.jetsli.lumeo.RawLucene;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+
+/**
+ * Buffers index operations which are not yet sent to the IndexWriter. Only the latest operation
+ * per id is kept, so several updates of the same element end up in one reindex.
+ *
+ * Not thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class PendingOps {
+
+    // id -> indexOp, keeps insertion order to apply the operations in a deterministic order
+    private final Map<Long, IndexOp> ops = new LinkedHashMap<Long, IndexOp>();
+
+    public void put(long id, Document doc) {
+        ops.put(id, new IndexOp(doc, IndexOp.Type.UPDATE));
+    }
+
+    public void delete(long id) {
+        ops.put(id, new IndexOp(IndexOp.Type.DELETE));
+    }
+
+    /**
+     * @return the latest pending operation for the specified id or null if none
+     */
+    public IndexOp get(long id) {
+        return ops.get(id);
+    }
+
+    /**
+     * @return the pending document with the specified user id or null if none
+     */
+    public Document findByUserId(String uId) {
+        for (IndexOp op : ops.values()) {
+            if (op.type != IndexOp.Type.DELETE && uId.equals(op.document.get(RawLucene.UID)))
+                return op.document;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the operation for the specified id only if it wasn't replaced in the meantime.
+     */
+    public boolean remove(long id, IndexOp expected) {
+        if (ops.get(id) != expected)
+            return false;
+
+        ops.remove(id);
+        return true;
+    }
+
+    public IndexOp remove(long id) {
+        return ops.remove(id);
+    }
+
+    public Set<Entry<Long, IndexOp>> entries() {
+        return ops.entrySet();
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    public void clear() {
+        ops.clear();
+    }
+
+    @Override public String toString() {
+        return "pending:" + ops.size();
+    }
+}
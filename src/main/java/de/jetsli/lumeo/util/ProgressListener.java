@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+/**
+ * Gets notified about the progress of long running tasks like imports.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public interface ProgressListener {
+
+    public static ProgressListener EMPTY = new ProgressListener() {
+
+        @Override
+        public void progress(String task, long done, long elapsedMillis) {
+        }
+    };
+
+    /**
+     * @param task the name of the task or the current phase of it
+     * @param done the number of items processed so far
+     * @param elapsedMillis the time since the task was started
+     */
+    public void progress(String task, long done, long elapsedMillis);
+}
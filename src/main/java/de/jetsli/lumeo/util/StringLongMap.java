@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+/**
+ * Maps strings to primitive longs via open addressing. Compared to a HashMap<String, Long> no
+ * entry and no Long objects are created. Not thread safe.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class StringLongMap {
+
+    private String[] keys;
+    private long[] values;
+    private int size;
+    private final long noValue;
+
+    public StringLongMap(int initialCapacity) {
+        this(initialCapacity, -1);
+    }
+
+    /**
+     * @param noValue will be returned from get if the key does not exist
+     */
+    public StringLongMap(int initialCapacity, long noValue) {
+        int cap = 16;
+        while (cap < initialCapacity * 2) {
+            cap <<= 1;
+        }
+        keys = new String[cap];
+        values = new long[cap];
+        this.noValue = noValue;
+    }
+
+    public long get(String key) {
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (true) {
+            String k = keys[pos];
+            if (k == null)
+                return noValue;
+            if (k.equals(key))
+                return values[pos];
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != noValue;
+    }
+
+    public void put(String key, long value) {
+        if (key == null)
+            throw new NullPointerException("Key must not be null");
+
+        // keep the load factor below 0.5 to make probing short
+        if ((size + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int pos = hash(key) & mask;
+        while (true) {
+            String k = keys[pos];
+            if (k == null) {
+                keys[pos] = key;
+                values[pos] = value;
+                size++;
+                return;
+            }
+            if (k.equals(key)) {
+                values[pos] = value;
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, use it with getKey and getValue to iterate over all entries
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key at the specified slot or null if the slot is empty
+     */
+    public String getKey(int slot) {
+        return keys[slot];
+    }
+
+    public long getValue(int slot) {
+        return values[slot];
+    }
+
+    private void rehash(int newCapacity) {
+        String[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new String[newCapacity];
+        values = new long[newCapacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(String key) {
+        // spread the bits as String.hashCode is weak in the lower bits for similar keys
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
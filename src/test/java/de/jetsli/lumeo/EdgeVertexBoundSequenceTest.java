@@ -15,6 +15,7 @@
  */
 package de.jetsli.lumeo;
 
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
 import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.Vertex;
 import de.jetsli.lumeo.util.Helper;
@@ -76,6 +77,23 @@ public class EdgeVertexBoundSequenceTest extends SimpleLuceneTestBase {
         assertCount(1, eSeq);
     }
     
+    @Test public void testBothDirections() {
+        Vertex v1 = g.addVertex("peter");
+        Vertex v2 = g.addVertex("timetabling");
+        Vertex v3 = g.addVertex("jetslideapp");
+        g.addEdge(null, v1, v2, "twitteraccount");
+        g.addEdge(null, v3, v1, "follows");
+        g.addEdge(null, v1, v1, "follows");
+        // not connected to v1
+        g.addEdge(null, v2, v3, "follows");
+        refresh();
+
+        assertCount(3, new EdgeVertexBoundSequence(g, (LuceneVertex) v1));
+        assertCount(3, new EdgeVertexBoundSequence(g, (LuceneVertex) v1, RawLucene.EDGE_OUT, RawLucene.EDGE_IN));
+        assertCount(2, (CloseableSequence) ((LuceneVertex) v1).getBothEdges("follows"));
+        assertCount(2, (CloseableSequence) ((LuceneVertex) v2).getBothEdges());
+    }
+
     @Test public void testCaseInsensitive() {
         g.createAutomaticIndex("tmp", Edge.class, Helper.set("name"));
         Vertex v1 = g.addVertex("peter");
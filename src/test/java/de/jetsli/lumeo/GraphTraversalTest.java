@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphTraversalTest extends SimpleLuceneTestBase {
+
+    private long[] chain(int length, String label) {
+        long[] ids = new long[length];
+        Vertex last = null;
+        for (int i = 0; i < length; i++) {
+            Vertex v = g.addVertex(label + i);
+            ids[i] = (Long) v.getId();
+            if (last != null)
+                g.addEdge(null, last, v, label);
+            last = v;
+        }
+        return ids;
+    }
+
+    @Test public void testShortestPath() {
+        long[] ids = chain(6, "next");
+        // a shortcut from 1 to 4 with another label
+        g.addEdge(null, g.getVertex("next1"), g.getVertex("next4"), "jump");
+        refresh();
+
+        assertArrayEquals(new long[]{ids[0], ids[1], ids[4], ids[5]}, g.shortestPath(ids[0], ids[5], null, 10));
+        assertArrayEquals(ids, g.shortestPath(ids[0], ids[5], new String[]{"next"}, 10));
+        assertEquals(0, g.shortestPath(ids[0], ids[5], new String[]{"next"}, 4).length);
+        // only along out edges
+        assertEquals(0, g.shortestPath(ids[5], ids[0], null, 10).length);
+        assertArrayEquals(new long[]{ids[2]}, g.shortestPath(ids[2], ids[2], null, 10));
+    }
+
+    @Test public void testUnflushedEdges() {
+        long[] ids = chain(3, "next");
+        // not searchable yet
+        assertArrayEquals(ids, g.shortestPath(ids[0], ids[2], null, 5));
+    }
+
+    @Test public void testKHop() {
+        long[] ids = chain(5, "next");
+        refresh();
+
+        long[] hops = g.kHop(ids[2], 1, RawLucene.EDGE_OUT);
+        assertArrayEquals(new long[]{ids[3]}, hops);
+        hops = g.kHop(ids[2], 2, null);
+        Arrays.sort(hops);
+        assertArrayEquals(new long[]{ids[0], ids[1], ids[3], ids[4]}, hops);
+        assertEquals(2, g.kHop(ids[2], 10, RawLucene.EDGE_IN).length);
+    }
+}
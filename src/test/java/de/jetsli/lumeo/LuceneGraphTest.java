@@ -15,10 +15,14 @@
  */
 package de.jetsli.lumeo;
 
+import java.io.File;
+import java.util.Date;
 import org.apache.lucene.document.Document;
 import de.jetsli.lumeo.util.Helper;
 import com.tinkerpop.blueprints.pgm.AutomaticIndex;
 import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.TransactionalGraph;
 import com.tinkerpop.blueprints.pgm.Vertex;
 import org.apache.lucene.document.TextField;
 import org.junit.Test;
@@ -121,18 +125,312 @@ public class LuceneGraphTest extends SimpleLuceneTestBase {
         assertCount(0, new VertexFilterSequence(g));
     }
 
-//    @Test public void testRangeQueries() {
-//        AutomaticIndex<Vertex> index = g.createAutomaticIndex("vertex", Vertex.class, Helper.set("time,LONG"));
-//        Vertex v = g.addVertex("peter");
-//        v.setProperty("time", 1);
-//
-//        v = g.addVertex("peter2");
-//        v.setProperty("time", 2);
-//
-//        v = g.addVertex("peter3");
-//        v.setProperty("time", 3);
-//        refresh();
-//
-//        assertCount(2, index.get("time", "[2 TO *]"));
-//    }
+    @Test public void testTransactionSuccess() {
+        g.startTransaction();
+        Vertex v = g.addVertex("peter");
+        v.setProperty("name", "peter");
+        // visible for the current thread
+        assertNotNull(g.getRaw().findById((Long) v.getId()));
+        assertNotNull(g.getVertex("peter"));
+        g.stopTransaction(TransactionalGraph.Conclusion.SUCCESS);
+        refresh();
+
+        assertNotNull(g.getVertex("peter"));
+        assertCount(1, g.getVertices());
+    }
+
+    @Test public void testTransactionFailure() {
+        Vertex v1 = g.addVertex("peter");
+        refresh();
+
+        g.startTransaction();
+        Vertex v2 = g.addVertex("peter2");
+        g.addEdge(null, v1, v2, "knows");
+        g.removeVertex(v1);
+        assertNull(g.getVertex("peter"));
+        g.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+        refresh();
+
+        assertNotNull(g.getVertex("peter"));
+        assertNull(g.getVertex("peter2"));
+        assertCount(0, new EdgeFilterSequence(g));
+    }
+
+    @Test public void testWriteBehind() {
+        AutomaticIndex<Vertex> index = g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name", "city"));
+        g.setWriteBehind(true);
+        Vertex v = g.addVertex("peter");
+        v.setProperty("name", "peter");
+        v.setProperty("city", "leipzig");
+        v.setProperty("city", "dresden");
+        assertEquals(1, g.getRaw().getDeferredCount());
+
+        // realtime get still sees the changes
+        Document doc = g.getRaw().findById((Long) v.getId());
+        assertEquals("dresden", doc.get("city"));
+
+        ((LuceneVertex) v).flush();
+        assertEquals(0, g.getRaw().getDeferredCount());
+        refresh();
+        assertCount(1, index.get("city", "dresden"));
+        assertCount(0, index.get("city", "leipzig"));
+
+        // dirty documents must not come back after a clear
+        v.setProperty("city", "berlin");
+        assertEquals(1, g.getRaw().getDeferredCount());
+        g.clear();
+        assertEquals(0, g.getRaw().getDeferredCount());
+        refresh();
+        assertCount(0, g.getVertices());
+    }
+
+    @Test public void testClear() {
+        g.addVertex("peter");
+        g.addVertex("peter2");
+        refresh();
+        assertCount(2, g.getVertices());
+
+        g.clear();
+        refresh();
+        assertCount(0, g.getVertices());
+        assertNull(g.getVertex("peter"));
+    }
+
+    @Test public void testRangeQueries() {
+        LuceneAutomaticIndex<Vertex> index = (LuceneAutomaticIndex<Vertex>) g.createAutomaticIndex("vertex",
+                Vertex.class, Helper.set("time,LONG", "created,DATE", "weight,DOUBLE"));
+        Vertex v = g.addVertex("peter");
+        v.setProperty("time", 1);
+        v.setProperty("created", new Date(1000));
+        v.setProperty("weight", 0.2);
+
+        v = g.addVertex("peter2");
+        v.setProperty("time", 2);
+        v.setProperty("created", new Date(2000));
+        v.setProperty("weight", 0.75);
+
+        v = g.addVertex("peter3");
+        v.setProperty("time", 3);
+        v.setProperty("created", new Date(3000));
+        v.setProperty("weight", 1.5);
+        refresh();
+
+        assertCount(2, index.get("time", "[2 TO *]"));
+        assertCount(1, index.get("time", "{1 TO 3}"));
+        assertCount(1, index.get("time", 3L));
+        assertCount(2, index.getRange("time", null, 2));
+        assertCount(2, index.getRange("created", new Date(1500), new Date(3000)));
+        assertCount(1, index.getRange("weight", 0.5, 1.0));
+        assertEquals(1, index.count("time", 2L));
+
+        v = g.getVertex("peter3");
+        assertEquals(3L, v.getProperty("time"));
+        assertEquals(new Date(3000), v.getProperty("created"));
+        assertEquals(1.5, v.getProperty("weight"));
+    }
+
+    @Test public void testSnapshot() {
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        Vertex v = g.addVertex("peter");
+        v.setProperty("name", "a");
+        g.addVertex("karl");
+        refresh();
+        v.setProperty("name", "b");
+
+        GraphSnapshot snapshot = g.openSnapshot();
+        try {
+            g.getVertex("peter").setProperty("name", "c");
+            g.removeVertex(g.getVertex("karl"));
+            g.addVertex("new");
+            refresh();
+
+            // the not yet searchable write before opening is visible, the later ones not
+            assertEquals("b", snapshot.getVertex("peter").getProperty("name"));
+            assertNotNull(snapshot.getVertex("karl"));
+            assertNull(snapshot.getVertex("new"));
+            assertCount(2, snapshot.getVertices());
+            assertEquals("c", g.getVertex("peter").getProperty("name"));
+        } finally {
+            snapshot.close();
+        }
+        assertTrue(snapshot.isClosed());
+    }
+
+    @Test public void testSnapshotIsolatedFromElements() {
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        Vertex v = g.addVertex("peter");
+        v.setProperty("name", "a");
+
+        GraphSnapshot snapshot = g.openSnapshot();
+        try {
+            // changes the document which is in the realtime cache
+            v.setProperty("name", "b");
+            assertEquals("a", snapshot.getVertex("peter").getProperty("name"));
+
+            snapshot.getVertex("peter").setProperty("name", "c");
+            assertEquals("a", snapshot.findById((Long) v.getId()).get("name"));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test public void testSnapshotFreezesDeferredAndTransactionOps() {
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        g.setWriteBehind(true);
+        Vertex v = g.addVertex("peter");
+        v.setProperty("name", "a");
+        assertEquals(1, g.getRaw().getDeferredCount());
+
+        g.startTransaction();
+        g.addVertex("karl");
+        GraphSnapshot snapshot = g.openSnapshot();
+        try {
+            g.stopTransaction(TransactionalGraph.Conclusion.FAILURE);
+            ((LuceneVertex) v).flush();
+            v.setProperty("name", "b");
+
+            assertEquals("a", snapshot.getVertex("peter").getProperty("name"));
+            assertNotNull(snapshot.getVertex("karl"));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test public void testHybridDirectory() {
+        g.shutdown();
+        Helper.deleteDir(new File("test-lumeo"));
+        g = new LuceneGraph(new LumeoConfig("test-lumeo").setDirectoryType(LumeoConfig.DirectoryType.HYBRID));
+        Vertex a = g.addVertex("a");
+        g.addEdge(null, a, g.addVertex("b"), "knows");
+        refresh();
+
+        assertNotNull(g.getRaw().findById((Long) a.getId()));
+        assertCount(1, (CloseableSequence) g.getVertex("a").getOutEdges());
+    }
+
+    @Test public void testDegree() {
+        Vertex hub = g.addVertex("hub");
+        Vertex v0 = g.addVertex("v0");
+        Edge first = g.addEdge(null, hub, v0, "knows");
+        for (int i = 1; i < 5; i++) {
+            g.addEdge(null, hub, g.addVertex("v" + i), "knows");
+        }
+        g.addEdge(null, v0, hub, "knows");
+        refresh();
+
+        LuceneVertex v = (LuceneVertex) g.getVertex("hub");
+        assertEquals(5, v.getOutDegree());
+        assertEquals(1, v.getInDegree());
+        assertEquals(hub.getId(), g.getHubs(1).get(0).getId());
+        assertEquals(2, ((LuceneVertex) g.getVertex("v0")).getDegree());
+
+        g.removeEdge(first);
+        refresh();
+        v = (LuceneVertex) g.getVertex("hub");
+        assertEquals(4, v.getOutDegree());
+        assertCount(4, (CloseableSequence) v.getOutEdges());
+        assertEquals(0, ((LuceneVertex) g.getVertex("v0")).getInDegree());
+        assertCount(5, (CloseableSequence) g.getEdges());
+    }
+
+    @Test public void testNeighborIds() {
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        Vertex c = g.addVertex("c");
+        g.addEdge(null, a, b, "knows");
+        refresh();
+
+        long aId = (Long) a.getId();
+        assertArrayEquals(new long[]{(Long) b.getId()}, g.getNeighborIds(aId, RawLucene.EDGE_OUT));
+        assertEquals(1, g.getAdjacencyCache().size());
+        g.getNeighborIds(aId, RawLucene.EDGE_OUT);
+        assertEquals(1, g.getAdjacencyCache().getHits());
+
+        g.addEdge(null, a, c, "likes");
+        refresh();
+        assertEquals(2, g.getNeighborIds(aId, RawLucene.EDGE_OUT).length);
+        assertArrayEquals(new long[]{aId}, g.getNeighborIds((Long) c.getId(), RawLucene.EDGE_IN));
+        assertEquals(0, g.getNeighborIds(aId, RawLucene.EDGE_IN).length);
+
+        assertArrayEquals(new long[]{(Long) c.getId()}, g.getNeighborIds(aId, RawLucene.EDGE_OUT, "likes"));
+        assertEquals(2, g.getNeighborIds(aId, RawLucene.EDGE_OUT, "likes", "knows").length);
+        assertEquals(0, g.getNeighborIds(aId, RawLucene.EDGE_OUT, "hates").length);
+    }
+
+    @Test public void testEdgesFromAdjacencyCache() {
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        g.addEdge(null, a, b, "knows");
+        g.addEdge(null, a, g.addVertex("c"), "likes");
+        refresh();
+
+        assertCount(2, (CloseableSequence) a.getOutEdges());
+        assertEquals(0, g.getAdjacencyCache().getHits());
+        Edge e = a.getOutEdges("knows").iterator().next();
+        assertEquals(1, g.getAdjacencyCache().getHits());
+        // label and vertices are known from the adjacency
+        assertEquals("knows", e.getLabel());
+        assertEquals(b.getId(), e.getInVertex().getId());
+        assertFalse(((LuceneEdge) e).isLoaded());
+        assertCount(0, (CloseableSequence) a.getOutEdges("hates"));
+
+        // traversals read through the cache as well
+        g.kHop((Long) a.getId(), 1, RawLucene.EDGE_OUT);
+        assertEquals(2, g.getAdjacencyCache().getHits());
+    }
+
+    @Test public void testNeighborIdsBeforeRefresh() {
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        g.addEdge(null, a, b, "knows");
+
+        long aId = (Long) a.getId();
+        long[] expected = {(Long) b.getId()};
+        // the edge is not yet searchable but must be visible and cached
+        assertArrayEquals(expected, g.getNeighborIds(aId, RawLucene.EDGE_OUT));
+        assertArrayEquals(new long[]{aId}, g.getNeighborIds((Long) b.getId(), RawLucene.EDGE_IN));
+        refresh();
+        assertArrayEquals(expected, g.getNeighborIds(aId, RawLucene.EDGE_OUT));
+        assertEquals(1, g.getAdjacencyCache().getHits());
+        assertEquals(((LuceneVertex) g.getVertex("a")).getOutDegree(),
+                g.getNeighborIds(aId, RawLucene.EDGE_OUT).length);
+    }
+
+    @Test public void testLabelDictionary() {
+        reinitFileBasedGraph();
+        Vertex a = g.addVertex("a");
+        g.addEdge(null, a, g.addVertex("b"), "knows");
+        g.addEdge(null, a, g.addVertex("c"), "likes");
+        refresh();
+        int knows = g.getRaw().getLabels().getOrdinal("knows");
+        int likes = g.getRaw().getLabels().getOrdinal("likes");
+        assertTrue(knows >= 0 && likes >= 0 && knows != likes);
+
+        // the dictionary is rebuilt from the stored ordinals
+        g.shutdown();
+        g = new LuceneGraph("test-lumeo");
+        assertEquals(knows, g.getRaw().getLabels().getOrdinal("knows"));
+        assertEquals(likes, g.getRaw().getLabels().getOrdinal("likes"));
+        assertEquals(2, g.getRaw().getLabels().getOrCreate("hates"));
+        assertCount(1, new EdgeVertexBoundSequence(g, (LuceneVertex) g.getVertex("a"), RawLucene.EDGE_OUT).setLabels("likes"));
+    }
+
+    @Test public void testLazyEdgeVertices() {
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        b.setProperty("name", "peter");
+        g.addEdge(null, a, b, "knows");
+        refresh();
+
+        Edge e = g.getVertex("a").getOutEdges().iterator().next();
+        LuceneVertex out = (LuceneVertex) e.getOutVertex();
+        LuceneVertex in = (LuceneVertex) e.getInVertex();
+        assertEquals(a.getId(), out.getId());
+        assertEquals(b, in);
+        assertFalse(in.isLoaded());
+
+        assertEquals("peter", in.getProperty("name"));
+        assertTrue(in.isLoaded());
+        assertFalse(out.isLoaded());
+    }
 }
@@ -20,6 +20,7 @@ import com.tinkerpop.blueprints.pgm.Edge;
 import com.tinkerpop.blueprints.pgm.CloseableSequence;
 import com.tinkerpop.blueprints.pgm.Index;
 import com.tinkerpop.blueprints.pgm.Vertex;
+import java.util.Date;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -54,5 +55,94 @@ public class LuceneIndexTest extends SimpleLuceneTestBase {
         seq.next();
         assertFalse(seq.hasNext());
         seq.close();
-    }    
+    }
+
+    @Test public void testQuery() {
+        LuceneAutomaticIndex<Vertex> index = (LuceneAutomaticIndex<Vertex>) g.createAutomaticIndex(
+                "keyword", Vertex.class, Helper.set("name", "age,LONG", "bio,TEXT"));
+        String[] names = {"peter", "paul", "mary", "pat", "tim"};
+        String[] bios = {"likes graph databases", "writes lucene code", "likes lucene",
+            "reads books", "likes graphs and books"};
+        for (int i = 0; i < names.length; i++) {
+            Vertex v = g.addVertex(names[i]);
+            v.setProperty("name", names[i]);
+            v.setProperty("age", 20 + i * 10);
+            v.setProperty("bio", bios[i]);
+        }
+        refresh();
+
+        assertCount(3, index.query(GraphQuery.prefix("name", "P")));
+        assertCount(2, index.query(GraphQuery.and(GraphQuery.prefix("name", "p"),
+                GraphQuery.range("age", 25, null))));
+        assertCount(2, index.query(GraphQuery.and(GraphQuery.text("bio", "lucene"),
+                GraphQuery.not(GraphQuery.eq("name", "tim")))));
+        assertCount(3, index.query(GraphQuery.or(GraphQuery.eq("age", 20),
+                GraphQuery.text("bio", "books"))));
+        assertCount(2, index.query(GraphQuery.not(GraphQuery.range("age", null, 40))));
+
+        long[] ids = index.queryIds(GraphQuery.eq("name", "mary"));
+        assertEquals(1, ids.length);
+        assertEquals(g.getVertex("mary").getId(), ids[0]);
+        // served from the cached filter
+        assertEquals(1, index.queryIds(GraphQuery.eq("name", "mary")).length);
+        assertEquals(5, index.queryIds(GraphQuery.type("Vertex", "Edge")).length);
+        assertEquals(0, index.queryIds(GraphQuery.type("Vertex, Edge")).length);
+
+        // the cache key must not mix up different queries with the same string form
+        assertEquals(GraphQuery.label("a", "b"), GraphQuery.label("a", "b"));
+        assertEquals(GraphQuery.label("a", "b").hashCode(), GraphQuery.label("a", "b").hashCode());
+        assertFalse(GraphQuery.label("a, b").equals(GraphQuery.label("a", "b")));
+        assertFalse(GraphQuery.eq("a", "b,c").equals(GraphQuery.eq("a,b", "c")));
+        assertFalse(GraphQuery.and(GraphQuery.eq("a", 1)).equals(GraphQuery.or(GraphQuery.eq("a", 1))));
+
+        try {
+            index.query(GraphQuery.eq("unknown", "x"));
+            assertTrue(false);
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
+
+    @Test public void testSorted() {
+        LuceneAutomaticIndex<Edge> index = (LuceneAutomaticIndex<Edge>) g.createAutomaticIndex(
+                "keyword", Edge.class, Helper.set("created,DATE"));
+        Vertex a = g.addVertex("a");
+        for (int i = 0; i < 30; i++) {
+            Edge e = g.addEdge(null, a, g.addVertex("v" + i), i % 3 == 0 ? "follows" : "knows");
+            e.setProperty("created", 1000L + (i * 7) % 30);
+        }
+        refresh();
+
+        CloseableSequence<Edge> seq = index.getSorted("created", true, 15);
+        long last = Long.MAX_VALUE;
+        int count = 0;
+        while (seq.hasNext()) {
+            long created = ((Date) seq.next().getProperty("created")).getTime();
+            assertTrue(created <= last);
+            last = created;
+            count++;
+        }
+        seq.close();
+        assertEquals(15, count);
+        assertEquals(1015L, last);
+
+        seq = index.getSorted(GraphQuery.label("follows"), "created", false, 3);
+        last = Long.MIN_VALUE;
+        count = 0;
+        while (seq.hasNext()) {
+            Edge e = seq.next();
+            assertEquals("follows", e.getLabel());
+            long created = ((Date) e.getProperty("created")).getTime();
+            assertTrue(created >= last);
+            last = created;
+            count++;
+        }
+        seq.close();
+        assertEquals(3, count);
+
+        try {
+            index.getSorted("unknown", true, 10);
+            assertTrue(false);
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import de.jetsli.lumeo.util.MergePolicies;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LumeoConfigTest {
+
+    @Test public void testFromProperties() {
+        Properties p = new Properties();
+        p.setProperty("lumeo.path", "test-lumeo");
+        p.setProperty("lumeo.directory", "hybrid");
+        p.setProperty("lumeo.ramBufferSizeMB", "64");
+        p.setProperty("lumeo.mergePolicy", "LOOKUP");
+        p.setProperty("lumeo.writeBehind", "true");
+        p.setProperty("lumeo.postingsFormat._id", "Pulsing40");
+        LumeoConfig c = LumeoConfig.fromProperties(p);
+        assertEquals("test-lumeo", c.getPath());
+        assertEquals(LumeoConfig.DirectoryType.HYBRID, c.getDirectoryType());
+        assertEquals(64, c.getRamBufferSizeMB(), 1e-6);
+        assertEquals(MergePolicies.Type.LOOKUP, c.getMergePolicy());
+        assertTrue(c.isWriteBehind());
+        assertEquals("Pulsing40", c.getPostingsFormats().get(RawLucene.ID));
+        assertEquals("Memory", c.getPostingsFormats().get(RawLucene.VERTEX_OUT));
+
+        // defaults of the properties apply to all settings
+        Properties withDefaults = new Properties(p);
+        c = LumeoConfig.fromProperties(withDefaults);
+        assertEquals(64, c.getRamBufferSizeMB(), 1e-6);
+        assertEquals("Pulsing40", c.getPostingsFormats().get(RawLucene.ID));
+    }
+
+    @Test public void testValidate() {
+        try {
+            new LumeoConfig().setDirectoryType(LumeoConfig.DirectoryType.MMAP).validate();
+            assertTrue("a path is necessary", false);
+        } catch (IllegalArgumentException ex) {
+        }
+
+        try {
+            new LumeoConfig().setReopen(0.01, 1).validate();
+            assertTrue("max must not be smaller than min", false);
+        } catch (IllegalArgumentException ex) {
+        }
+
+        Properties p = new Properties();
+        p.setProperty("lumeo.maxMergeMB", "abc");
+        try {
+            LumeoConfig.fromProperties(p);
+            assertTrue("maxMergeMB is no number", false);
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test public void testBufferSize() {
+        LuceneGraph g = new LuceneGraph(new LumeoConfig().setRamBufferSizeMB(1));
+        try {
+            assertEquals(1024 * 1024, g.getMaxBufferSize());
+            g.addVertex("a");
+            assertTrue(g.getCurrentBufferSize() > 0);
+            g.setMaxBufferSize(2 * 1024 * 1024);
+            assertEquals(2 * 1024 * 1024, g.getMaxBufferSize());
+        } finally {
+            g.shutdown();
+        }
+    }
+}
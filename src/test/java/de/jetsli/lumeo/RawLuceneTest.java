@@ -16,12 +16,21 @@
 package de.jetsli.lumeo;
 
 import de.jetsli.lumeo.util.Mapping;
+import de.jetsli.lumeo.util.MergePolicies;
 import de.jetsli.lumeo.util.SearchExecutor;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
 import java.io.IOException;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -131,6 +140,32 @@ public class RawLuceneTest extends SimpleLuceneTestBase {
         assertEquals(1, rl.count(Tmp.class, "name", "peter"));
     }
 
+    @Test public void testCountWithoutRefresh() {
+        RawLucene rl = g.getRaw();
+        Document doc = rl.createDocument("tmp1", 1, Tmp.class);
+        doc.add(m.createField("xy", 12L));
+        doc.add(m.createField("name", "peter"));
+        rl.put("tmp1", 1, doc);
+        assertEquals(1, rl.count(Tmp.class, "xy", 12L));
+        assertEquals(1, rl.count(Tmp.class, "name", "peter"));
+
+        refresh();
+        doc = rl.createDocument("tmp1", 1, Tmp.class);
+        doc.add(m.createField("xy", 13L));
+        doc.add(m.createField("name", "peter"));
+        rl.put("tmp1", 1, doc);
+        doc = rl.createDocument("tmp2", 2, Tmp.class);
+        doc.add(m.createField("name", "peter"));
+        rl.put("tmp2", 2, doc);
+        assertEquals(0, rl.count(Tmp.class, "xy", 12L));
+        assertEquals(1, rl.count(Tmp.class, "xy", 13L));
+        assertEquals(2, rl.count(Tmp.class, "name", "peter"));
+
+        rl.removeById(1);
+        assertEquals(0, rl.count(Tmp.class, "xy", 13L));
+        assertEquals(1, rl.count(Tmp.class, "name", "peter"));
+    }
+
     @Test public void testNoMatchAfterDelete() {
         RawLucene rl = g.getRaw();        
         Document doc = rl.createDocument("test", 123, Tmp.class);
@@ -139,6 +174,31 @@ public class RawLuceneTest extends SimpleLuceneTestBase {
         assertNull(rl.findById(123));
     }
 
+    @Test public void testRemoveWinsOverConcurrentFlush() throws Exception {
+        final RawLucene rl = g.getRaw();
+        rl.setWriteBehind(true);
+        for (int i = 1; i <= 200; i++) {
+            final long id = i;
+            Document doc = rl.createDocument("tmp" + id, id, Tmp.class);
+            doc.add(m.createField("name", "peter"));
+            rl.fastPut(id, doc);
+            rl.putDeferred(id, doc);
+
+            Thread flusher = new Thread() {
+
+                @Override public void run() {
+                    rl.flushDeferred();
+                }
+            };
+            flusher.start();
+            rl.removeById(id);
+            flusher.join();
+            assertNull("resurrected " + id, rl.findById(id));
+        }
+        refresh();
+        assertEquals(0, rl.count(Tmp.class, "name", "peter"));
+    }
+
     @Test public void testFindByIdWithoutRefresh() {
         RawLucene rl = g.getRaw();
         Document doc = rl.createDocument("test", 123, Tmp.class);
@@ -151,4 +211,94 @@ public class RawLuceneTest extends SimpleLuceneTestBase {
         assertEquals(0, rl.count(Tmp.class, "name", "peter"));
         assertNotNull("UserId 'test' should be available", rl.findByUserId("test"));
     }
+
+    @Test public void testMetrics() throws Exception {
+        RawLucene rl = g.getRaw();
+        LumeoMetrics metrics = rl.getMetrics();
+        rl.put("tmp1", 1, rl.createDocument("tmp1", 1, Tmp.class));
+        assertNotNull(rl.findById(1));
+        refresh();
+        assertNull(rl.findById(2));
+
+        assertEquals(1, metrics.getLatency(LumeoMetrics.Op.PUT).getCount());
+        assertEquals(2, metrics.getLatency(LumeoMetrics.Op.FIND_BY_ID).getCount());
+        assertEquals(1, rl.getFailedLuceneReads());
+        assertEquals(0.5, metrics.getCacheHitRate(), 1e-6);
+        assertEquals(1L, metrics.getSnapshot().get("refresh.count"));
+
+        ObjectName name = new ObjectName("de.jetsli.lumeo:type=RawLucene,name=" + ObjectName.quote(rl.toString()));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2L, server.getAttribute(name, "findById.count"));
+        assertEquals(name, metrics.getObjectName());
+        assertEquals(metrics.getSnapshot().get("cache.misses"), metrics.getValue("cache.misses"));
+        assertEquals(metrics.getSnapshot().get("merge.running"), metrics.getValue("merge.running"));
+        assertNull(metrics.getValue("unknown.count"));
+
+        // a second graph of the same name gets its own MBean
+        LumeoMetrics other = new LumeoMetrics(rl);
+        other.register(rl.toString());
+        assertEquals(new ObjectName("de.jetsli.lumeo:type=RawLucene,name=" + ObjectName.quote(rl + "-2")),
+                other.getObjectName());
+        other.unregister();
+        g.shutdown();
+        g = null;
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test public void testMigrateEdgesWithoutLabelOrdinal() throws Exception {
+        // an index of the old format where edges only store their label
+        RAMDirectory dir = new RAMDirectory();
+        Mapping vm = new Mapping("Vertex");
+        Mapping em = new Mapping("Edge");
+        IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(RawLucene.VERSION, em.getCombinedAnalyzer()));
+        for (long id = 1; id <= 2; id++) {
+            Document v = new Document();
+            v.add(vm.createField(RawLucene.TYPE, "Vertex"));
+            v.add(vm.newUIdField(RawLucene.UID, "v" + id));
+            v.add(vm.newIdField(RawLucene.ID, id));
+            w.addDocument(v);
+        }
+        Document e = new Document();
+        e.add(em.createField(RawLucene.TYPE, "Edge"));
+        e.add(em.newUIdField(RawLucene.UID, "e3"));
+        e.add(em.newIdField(RawLucene.ID, 3));
+        e.add(em.newIdField(RawLucene.VERTEX_OUT, 1));
+        e.add(em.newIdField(RawLucene.VERTEX_IN, 2));
+        e.add(em.createField(RawLucene.EDGE_LABEL, "knows"));
+        w.addDocument(e);
+        w.close();
+
+        g.shutdown();
+        g = new LuceneGraph(new RawLucene(dir).init());
+        assertTrue(g.getRaw().getLabels().getOrdinal("knows") >= 0);
+        assertNotNull(g.getRaw().findById(3).getField(RawLucene.EDGE_LABEL_ORD));
+
+        Vertex v1 = g.getVertex("v1");
+        int count = 0;
+        for (Edge edge : v1.getOutEdges("knows")) {
+            assertEquals("knows", edge.getLabel());
+            count++;
+        }
+        assertEquals(1, count);
+        // the migration is only necessary once
+        assertEquals(0, g.getRaw().migrateLabels());
+    }
+
+    @Test public void testOptimize() {
+        g.shutdown();
+        RawLucene rl = new RawLucene(new RAMDirectory());
+        rl.setMergePolicy(MergePolicies.lookup(100));
+        g = new LuceneGraph(rl.init());
+        for (int i = 1; i <= 3; i++) {
+            rl.put("tmp" + i, i, rl.createDocument("tmp" + i, i, Tmp.class));
+            refresh();
+        }
+        assertEquals(3, rl.getSegmentCount());
+
+        rl.optimize(1);
+        refresh();
+        assertEquals(1, rl.getSegmentCount());
+        assertNotNull(rl.findById(2));
+        assertEquals(1L, rl.getMetrics().getSnapshot().get("optimize.count"));
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.util.Helper;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ReplicaRawLuceneTest {
+
+    private RAMDirectory primaryDir;
+    private LuceneGraph primary;
+    private ReplicationPublisher publisher;
+    private ReplicaRawLucene replica;
+
+    @Before public void setUp() {
+        primaryDir = new RAMDirectory();
+        primary = new LuceneGraph(new RawLucene(primaryDir).init());
+        primary.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        publisher = new ReplicationPublisher(primary.getRaw(), 2);
+    }
+
+    @After public void tearDown() {
+        if (replica != null)
+            replica.close();
+        publisher.close();
+        primary.shutdown();
+    }
+
+    @Test public void testSync() {
+        Vertex a = primary.addVertex("a");
+        a.setProperty("name", "peter");
+        primary.addEdge(null, a, primary.addVertex("b"), "knows");
+        primary.flush();
+        long gen = publisher.publish();
+
+        replica = new ReplicaRawLucene(primaryDir, new RAMDirectory()).init();
+        assertEquals(gen, replica.getVersion());
+        LuceneGraph g = new LuceneGraph(replica);
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        assertNotNull(g.getVertex("a"));
+        assertEquals(1, g.count(Vertex.class, "name", "peter"));
+        assertCount(1, (CloseableSequence) g.getVertex("a").getOutEdges());
+        assertFalse("nothing new was published", replica.sync());
+
+        primary.addVertex("c");
+        assertNull(g.getVertex("c"));
+        publisher.publish();
+        assertTrue(replica.sync());
+        assertNotNull(g.getVertex("c"));
+        assertCount(3, g.getVertices());
+
+        // the replica can fall behind more than the retained commits
+        primary.addVertex("d");
+        publisher.publish();
+        primary.addVertex("e");
+        publisher.publish();
+        primary.addVertex("f");
+        publisher.publish();
+        assertTrue(replica.sync());
+        assertCount(6, g.getVertices());
+
+        try {
+            g.addVertex("x");
+            assertTrue("replica must be read only", false);
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
+
+    static void assertCount(int exp, CloseableSequence seq) {
+        int c = 0;
+        while (seq.hasNext()) {
+            seq.next();
+            c++;
+        }
+        seq.close();
+        assertEquals(exp, c);
+    }
+}
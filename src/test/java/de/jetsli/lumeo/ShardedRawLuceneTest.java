@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo;
+
+import com.tinkerpop.blueprints.pgm.CloseableSequence;
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.TransactionalGraph.Conclusion;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.util.Helper;
+import de.jetsli.lumeo.util.PendingOps;
+import de.jetsli.lumeo.util.SearchExecutor;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ShardedRawLuceneTest extends SimpleLuceneTestBase {
+
+    @Override public void setUp() {
+        g = new LuceneGraph(new LumeoConfig().setShards(3));
+    }
+
+    @Test public void testRouting() {
+        ShardedRawLucene rl = (ShardedRawLucene) g.getRaw();
+        assertEquals(3, rl.getShardCount());
+        for (int i = 0; i < 30; i++) {
+            g.addVertex("v" + i);
+        }
+        refresh();
+
+        int sum = 0;
+        for (int i = 0; i < rl.getShardCount(); i++) {
+            int count = rl.getShard(i).searchSomething(new SearchExecutor<Integer>() {
+
+                @Override public Integer execute(IndexSearcher searcher) {
+                    return searcher.getIndexReader().numDocs();
+                }
+            });
+            assertTrue("every shard should get some vertices", count > 0);
+            sum += count;
+        }
+        assertEquals(30, sum);
+
+        Vertex v = g.getVertex("v7");
+        long id = (Long) v.getId();
+        assertNotNull(rl.getShardFor(id).findById(id));
+        assertEquals("v7", rl.findById(id).get(RawLucene.UID));
+    }
+
+    @Test public void testSequencesAndCount() {
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        Vertex last = null;
+        for (int i = 0; i < 20; i++) {
+            Vertex v = g.addVertex("v" + i);
+            v.setProperty("name", i % 2 == 0 ? "even" : "odd");
+            if (last != null)
+                g.addEdge(null, last, v, "next");
+            last = v;
+        }
+        refresh();
+
+        assertCount(20, g.getVertices());
+        assertCount(19, (CloseableSequence) g.getEdges());
+        assertEquals(10, g.count(Vertex.class, "name", "even"));
+        assertCount(1, (CloseableSequence) g.getVertex("v3").getOutEdges());
+        Edge e = g.getVertex("v3").getOutEdges().iterator().next();
+        assertEquals(g.getVertex("v4").getId(), e.getInVertex().getId());
+
+        // counts include writes which are not yet searchable
+        g.getVertex("v1").setProperty("name", "even");
+        assertEquals(11, g.count(Vertex.class, "name", "even"));
+    }
+
+    @Test public void testCoPartitioning() {
+        ShardedRawLucene rl = (ShardedRawLucene) g.getRaw();
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        Vertex c = g.addVertex("c");
+        Edge ab = g.addEdge(null, a, b, "knows");
+        Edge cb = g.addEdge(null, c, b, "knows");
+        refresh();
+
+        long aId = (Long) a.getId();
+        long cId = (Long) c.getId();
+        assertSame(rl.getShardFor(aId), rl.getShardFor((Long) ab.getId()));
+        assertSame(rl.getShardFor(cId), rl.getShardFor((Long) cb.getId()));
+        assertNotNull(rl.getShardFor(aId).findById((Long) ab.getId()));
+        assertCount(1, (CloseableSequence) g.getVertex("a").getOutEdges());
+        assertCount(2, (CloseableSequence) g.getVertex("b").getInEdges());
+        assertCount(0, (CloseableSequence) g.getVertex("b").getOutEdges());
+        assertNotNull(g.getEdge(ab.getId().toString()));
+
+        // edges are located without a route per edge
+        assertEquals(0, rl.getRoutedCount());
+        g.removeEdge(g.getEdge(cb.getId().toString()));
+        refresh();
+        assertNull(rl.findById((Long) cb.getId()));
+        assertCount(1, (CloseableSequence) g.getVertex("b").getInEdges());
+    }
+
+    @Test public void testApplyDeletesEdgeInItsShard() {
+        ShardedRawLucene rl = (ShardedRawLucene) g.getRaw();
+        Vertex a = g.addVertex("a");
+        Vertex b = g.addVertex("b");
+        long aId = (Long) a.getId();
+        // find an edge which is not stored in the shard its id hashes to
+        long edgeId = -1;
+        for (int i = 0; i < 20 && edgeId < 0; i++) {
+            long id = (Long) g.addEdge(null, a, b, "knows").getId();
+            if (rl.getShard(rl.getHashShard(id)) != rl.getShardFor(aId))
+                edgeId = id;
+        }
+        assertTrue(edgeId >= 0);
+        refresh();
+
+        PendingOps ops = new PendingOps();
+        ops.delete(edgeId);
+        rl.apply(ops);
+        refresh();
+        assertNull(rl.findById(edgeId));
+    }
+
+    @Test public void testRebalance() {
+        ShardedRawLucene rl = (ShardedRawLucene) g.getRaw();
+        Vertex[] vertices = new Vertex[40];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = g.addVertex("v" + i);
+        }
+        // two hubs in the same shard make it hot
+        Vertex hub1 = vertices[0];
+        Vertex hub2 = null;
+        for (int i = 1; i < vertices.length; i++) {
+            if (rl.getShardFor((Long) vertices[i].getId()) == rl.getShardFor((Long) hub1.getId())) {
+                hub2 = vertices[i];
+                break;
+            }
+        }
+        assertNotNull(hub2);
+        for (int i = 0; i < 20; i++) {
+            g.addEdge(null, hub1, vertices[(i + 2) % vertices.length], "knows");
+            g.addEdge(null, hub2, vertices[(i + 3) % vertices.length], "knows");
+        }
+        refresh();
+        RawLucene hotShard = rl.getShardFor((Long) hub1.getId());
+
+        assertEquals(1, rl.rebalance(0.2, 5));
+        assertEquals(1, rl.getRoutedCount());
+        Vertex moved = rl.getShardFor((Long) hub1.getId()) != hotShard ? hub1 : hub2;
+        assertNotSame(hotShard, rl.getShardFor((Long) moved.getId()));
+        assertCount(20, (CloseableSequence) g.getVertex(moved.getProperty(RawLucene.UID)).getOutEdges());
+        CloseableSequence<Edge> seq = (CloseableSequence<Edge>) g.getVertex(moved.getProperty(RawLucene.UID)).getOutEdges();
+        while (seq.hasNext()) {
+            assertSame(rl.getShardFor((Long) moved.getId()), rl.getShardFor((Long) seq.next().getId()));
+        }
+        seq.close();
+        assertCount(40, g.getVertices());
+        assertCount(40, (CloseableSequence) g.getEdges());
+
+        g.removeVertex(g.getVertex(moved.getProperty(RawLucene.UID)));
+        assertEquals(0, rl.getRoutedCount());
+    }
+
+    @Test public void testReplicationPerShard() {
+        ShardedRawLucene rl = (ShardedRawLucene) g.getRaw();
+        try {
+            new ReplicationPublisher(rl);
+            assertTrue(false);
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            rl.snapshotCommit("test");
+            assertTrue(false);
+        } catch (UnsupportedOperationException ex) {
+        }
+
+        g.addVertex("a");
+        ReplicationPublisher publisher = new ReplicationPublisher(rl.getShard(0));
+        try {
+            assertTrue(publisher.publish() > 0);
+        } finally {
+            publisher.close();
+        }
+    }
+
+    @Test public void testTransactionAndSnapshot() {
+        g.startTransaction();
+        g.addVertex("a");
+        g.addVertex("b");
+        assertNotNull(g.getVertex("a"));
+        g.stopTransaction(Conclusion.SUCCESS);
+        assertNotNull(g.getVertex("b"));
+        refresh();
+
+        g.removeVertex(g.getVertex("a"));
+        GraphSnapshot snapshot = g.openSnapshot();
+        try {
+            assertNull(snapshot.getVertex("a"));
+            assertNotNull(snapshot.getVertex("b"));
+            assertCount(1, snapshot.getVertices());
+        } finally {
+            snapshot.close();
+        }
+    }
+}
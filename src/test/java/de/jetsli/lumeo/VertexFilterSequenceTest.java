@@ -22,7 +22,7 @@ import static org.junit.Assert.*;
  *
  * @author Peter Karich, info@jetsli.de
  */
-public class VertexFilterSequenceTest {
+public class VertexFilterSequenceTest extends SimpleLuceneTestBase {
     
     @Test public void testSetFilter() {
     }
@@ -32,6 +32,14 @@ public class VertexFilterSequenceTest {
     }
     
     @Test public void testSearchAfter() {
-        // TODO test!
+        for (int i = 0; i < 25; i++) {
+            g.addVertex("v" + i);
+        }
+        refresh();
+
+        assertCount(25, new VertexFilterSequence(g));
+        assertCount(25, new VertexFilterSequence(g).setN(3));
+        assertCount(7, new VertexFilterSequence(g).setN(3).setLimit(7));
+        assertCount(0, new VertexFilterSequence(g).setValue(RawLucene.UID, "none"));
     }
 }
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.RawLucene;
+import de.jetsli.lumeo.SimpleLuceneTestBase;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class AnalyticsTest extends SimpleLuceneTestBase {
+
+    private Analytics analytics;
+
+    @After @Override public void tearDown() {
+        if (analytics != null)
+            analytics.close();
+        super.tearDown();
+    }
+
+    /**
+     * Two separate triangles a->b->c->a and d->e->f->d plus an edge a->d which joins them
+     */
+    private CsrGraph createTriangles(boolean join) {
+        Vertex[] v = new Vertex[6];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = g.addVertex("v" + i);
+        }
+        for (int t = 0; t < 2; t++) {
+            for (int i = 0; i < 3; i++) {
+                g.addEdge(null, v[t * 3 + i], v[t * 3 + (i + 1) % 3], "knows");
+            }
+        }
+        if (join)
+            g.addEdge(null, v[0], v[3], "knows");
+        refresh();
+        analytics = new Analytics(g, 2);
+        return analytics.snapshot();
+    }
+
+    @Test public void testSnapshot() {
+        CsrGraph csr = createTriangles(true);
+        assertEquals(6, csr.getVertexCount());
+        assertEquals(7, csr.getEdgeCount());
+        int v0 = csr.getVertex((Long) g.getVertex("v0").getId());
+        assertEquals(2, csr.getOutDegree(v0));
+        assertEquals(1, csr.getInDegree(v0));
+    }
+
+    @Test public void testPageRank() {
+        CsrGraph csr = createTriangles(true);
+        double[] ranks = analytics.pageRank(csr, 0.85, 100, 1e-9);
+        double sum = 0;
+        for (double r : ranks) {
+            sum += r;
+        }
+        assertEquals(1, sum, 1e-6);
+        // v3 gets rank from two vertices
+        int v3 = csr.getVertex((Long) g.getVertex("v3").getId());
+        int v1 = csr.getVertex((Long) g.getVertex("v1").getId());
+        assertTrue(ranks[v3] > ranks[v1]);
+    }
+
+    @Test public void testConnectedComponents() {
+        CsrGraph csr = createTriangles(false);
+        int[] components = analytics.connectedComponents(csr);
+        int v0 = csr.getVertex((Long) g.getVertex("v0").getId());
+        int v2 = csr.getVertex((Long) g.getVertex("v2").getId());
+        int v4 = csr.getVertex((Long) g.getVertex("v4").getId());
+        assertEquals(components[v0], components[v2]);
+        assertFalse(components[v0] == components[v4]);
+
+        int[] communities = analytics.labelPropagation(csr, 10);
+        assertEquals(communities[v0], communities[v2]);
+        assertFalse(communities[v0] == communities[v4]);
+    }
+
+    @Test public void testWriteBack() {
+        CsrGraph csr = createTriangles(false);
+        analytics.writeBackIds(csr, "component", analytics.connectedComponents(csr));
+        refresh();
+        assertEquals(g.getVertex("v0").getProperty("component"), g.getVertex("v1").getProperty("component"));
+        assertNotNull(g.getVertex("v5").getProperty("component"));
+        // the relationships stay intact
+        assertEquals(1, g.getNeighborIds((Long) g.getVertex("v0").getId(), RawLucene.EDGE_OUT).length);
+    }
+}
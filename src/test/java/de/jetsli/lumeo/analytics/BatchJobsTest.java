@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.analytics;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.SimpleLuceneTestBase;
+import de.jetsli.lumeo.util.ProgressListener;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class BatchJobsTest extends SimpleLuceneTestBase {
+
+    private Vertex[] createVertices(int count) {
+        Vertex[] v = new Vertex[count];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = g.addVertex("v" + i);
+        }
+        return v;
+    }
+
+    @Test public void testConnectedComponents() {
+        Vertex[] v = createVertices(7);
+        g.addEdge(null, v[0], v[1], "knows");
+        g.addEdge(null, v[2], v[1], "knows");
+        g.addEdge(null, v[4], v[3], "knows");
+        g.addEdge(null, v[5], v[5], "knows");
+        refresh();
+
+        final AtomicInteger calls = new AtomicInteger();
+        Components c = g.getConnectedComponents(new ProgressListener() {
+
+            @Override public void progress(String task, long done, long elapsedMillis) {
+                calls.incrementAndGet();
+            }
+        });
+        assertTrue(calls.get() > 0);
+        assertEquals(7, c.getVertexCount());
+        // {0, 1, 2}, {3, 4}, {5}, {6}
+        assertEquals(4, c.getCount());
+        long first = (Long) v[0].getId();
+        assertEquals(first, c.getComponent((Long) v[2].getId()));
+        assertEquals(c.getComponent((Long) v[3].getId()), c.getComponent((Long) v[4].getId()));
+        assertEquals(-1, c.getComponent(-5));
+    }
+
+    @Test public void testTriangles() {
+        Vertex[] v = createVertices(5);
+        // two triangles sharing the edge 0-1, with a parallel edge and a reversed one
+        g.addEdge(null, v[0], v[1], "knows");
+        g.addEdge(null, v[1], v[0], "knows");
+        g.addEdge(null, v[1], v[2], "knows");
+        g.addEdge(null, v[2], v[0], "knows");
+        g.addEdge(null, v[0], v[3], "knows");
+        g.addEdge(null, v[3], v[1], "knows");
+        g.addEdge(null, v[3], v[4], "knows");
+        refresh();
+
+        assertEquals(2, g.countTriangles(ProgressListener.EMPTY));
+    }
+
+    @Test public void testUnion() {
+        AtomicIntegerArray parents = new AtomicIntegerArray(4);
+        for (int i = 0; i < 4; i++) {
+            parents.set(i, i);
+        }
+        UnionFindComponents.union(parents, 3, 2);
+        UnionFindComponents.union(parents, 2, 1);
+        assertEquals(1, UnionFindComponents.find(parents, 3));
+        assertEquals(0, UnionFindComponents.find(parents, 0));
+    }
+}
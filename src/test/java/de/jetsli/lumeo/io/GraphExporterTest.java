@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.io;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.LuceneGraph;
+import de.jetsli.lumeo.SimpleLuceneTestBase;
+import de.jetsli.lumeo.util.Helper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphExporterTest extends SimpleLuceneTestBase {
+
+    private void createGraph() {
+        // properties are only stored for automatic indices
+        g.createAutomaticIndex("vertex", Vertex.class, Helper.set("name"));
+        Vertex a = g.addVertex("a");
+        a.setProperty("name", "peter");
+        Vertex b = g.addVertex("b");
+        g.addEdge("e1", a, b, "knows");
+        g.removeVertex(g.addVertex("c"));
+    }
+
+    private void assertGraph(LuceneGraph copy) {
+        assertCount(2, copy.getVertices());
+        Vertex a = copy.getVertex("a");
+        assertEquals("peter", a.getProperty("name"));
+        int edges = 0;
+        for (Edge e : a.getOutEdges()) {
+            assertEquals("knows", e.getLabel());
+            edges++;
+        }
+        assertEquals(1, edges);
+    }
+
+    @Test public void testSnapshot() throws Exception {
+        createGraph();
+        File file = File.createTempFile("lumeo", ".snapshot");
+        try {
+            assertEquals(3, new GraphExporter(g).setBufferSize(32).exportSnapshot(file));
+
+            LuceneGraph copy = new LuceneGraph();
+            try {
+                GraphImporter importer = new GraphImporter(copy).importSnapshot(file);
+                assertEquals(2, importer.getVertexCount());
+                assertEquals(1, importer.getEdgeCount());
+                assertGraph(copy);
+                // new ids must not collide with the loaded ones
+                assertNull(copy.getRaw().findById(copy.nextId()));
+            } finally {
+                copy.shutdown();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test public void testGraphML() throws Exception {
+        createGraph();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(3, new GraphExporter(g).exportGraphML(os));
+
+        LuceneGraph copy = new LuceneGraph();
+        try {
+            new GraphImporter(copy).importGraphML(new ByteArrayInputStream(os.toByteArray()));
+            assertGraph(copy);
+        } finally {
+            copy.shutdown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.io;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.LuceneVertex;
+import de.jetsli.lumeo.SimpleLuceneTestBase;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class GraphImporterTest extends SimpleLuceneTestBase {
+
+    @Test public void testImportGraphML() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<graphml><key id=\"k0\" for=\"node\" attr.name=\"name\" attr.type=\"string\"/>"
+                + "<graph edgedefault=\"directed\">"
+                + "<node id=\"1\"><data key=\"k0\">peter</data></node>"
+                + "<node id=\"2\"><data key=\"k0\">karl</data></node>"
+                + "<edge id=\"7\" source=\"1\" target=\"2\" label=\"knows\"/>"
+                + "<edge id=\"8\" source=\"2\" target=\"3\" label=\"knows\"/>"
+                + "<edge id=\"9\" source=\"4\" target=\"1\" label=\"knows\"/>"
+                + "<node id=\"4\"><data key=\"k0\">tim</data></node>"
+                + "</graph></graphml>";
+        GraphImporter importer = new GraphImporter(g).setWriterThreads(2);
+        importer.importGraphML(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        assertEquals(4, importer.getVertexCount());
+        assertEquals(3, importer.getEdgeCount());
+
+        assertCount(4, g.getVertices());
+        Vertex v = g.getVertex("1");
+        assertEquals("peter", v.getProperty("name"));
+        int edges = 0;
+        for (Edge e : v.getOutEdges()) {
+            assertEquals("knows", e.getLabel());
+            edges++;
+        }
+        assertEquals(1, edges);
+        // the vertices were linked to their edges after the import
+        assertEquals(1, ((LuceneVertex) v).getOutDegree());
+        assertEquals(1, ((LuceneVertex) v).getInDegree());
+        assertEquals(1, ((LuceneVertex) g.getVertex("3")).getInDegree());
+        assertNotNull(g.getVertex("3"));
+        // the node was defined after an edge referenced it
+        assertEquals("tim", g.getVertex("4").getProperty("name"));
+        assertEquals(g.getVertex("4").getId(), v.getInEdges().iterator().next().getOutVertex().getId());
+    }
+
+    @Test public void testImportEdgeList() {
+        GraphImporter importer = new GraphImporter(g).setWriterThreads(1).setQueueSize(2);
+        importer.importEdgeList(new StringReader("# comment\na\tb\tknows\nb\tc\na\tc\n"), '\t');
+        assertEquals(3, importer.getVertexCount());
+        assertEquals(3, importer.getEdgeCount());
+        assertCount(3, g.getVertices());
+
+        // resolve already existing vertices
+        importer = new GraphImporter(g).setResolveExisting(true);
+        importer.importEdgeList(new StringReader("a,d\n"), ',');
+        assertEquals(1, importer.getVertexCount());
+        assertCount(4, g.getVertices());
+
+        // the separator is no regular expression
+        importer = new GraphImporter(g).setResolveExisting(true);
+        importer.importEdgeList(new StringReader("a|e|likes\n"), '|');
+        assertEquals(1, importer.getVertexCount());
+        assertEquals(1, importer.getEdgeCount());
+        assertNotNull(g.getVertex("e"));
+        assertEquals(4, ((LuceneVertex) g.getVertex("a")).getOutDegree());
+    }
+
+    @Test public void testGeneratedEdgeIdsDoNotCollide() {
+        GraphImporter importer = new GraphImporter(g);
+        // the internal ids of the edges are numbers like the user ids of the vertices
+        importer.importEdgeList(new StringReader("1,2\n2,3\n3,4\n4,5\n5,6\n"), ',');
+        for (int i = 1; i <= 6; i++) {
+            Vertex v = g.getVertex(Integer.toString(i));
+            assertNotNull(v);
+            assertEquals(i == 1 || i == 6 ? 1 : 2, ((LuceneVertex) v).getDegree());
+        }
+    }
+}
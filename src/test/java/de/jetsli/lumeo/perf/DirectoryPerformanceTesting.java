@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.perf;
+
+import com.tinkerpop.blueprints.pgm.Edge;
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.LumeoConfig;
+import de.jetsli.lumeo.LumeoConfig.DirectoryType;
+import de.jetsli.lumeo.LuceneGraph;
+import de.jetsli.lumeo.util.Helper;
+import de.jetsli.lumeo.util.StopWatch;
+import java.io.File;
+import java.util.Random;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the directory types for a traversal workload: id lookups and out edge iterations of
+ * random vertices.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class DirectoryPerformanceTesting {
+
+    private static final int VERTICES = 100000;
+    private static final int EDGES_PER_VERTEX = 3;
+    private static final int LOOKUPS = 200000;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Test public void testDirectories() {
+        for (DirectoryType type : DirectoryType.values()) {
+            String path = "test-lumeo-" + type.name().toLowerCase();
+            Helper.deleteDir(new File(path));
+            LuceneGraph g = new LuceneGraph(new LumeoConfig(path).setDirectoryType(type));
+            try {
+                run(type, g);
+            } finally {
+                g.shutdown();
+                Helper.deleteDir(new File(path));
+            }
+        }
+    }
+
+    void run(DirectoryType type, LuceneGraph g) {
+        Random rand = new Random(0);
+        StopWatch swWrite = new StopWatch("write").start();
+        for (int i = 0; i < VERTICES; i++) {
+            g.addVertex("v" + i);
+        }
+        for (int i = 0; i < VERTICES; i++) {
+            Vertex out = g.getVertex("v" + i);
+            for (int j = 0; j < EDGES_PER_VERTEX; j++) {
+                g.addEdge(null, out, g.getVertex("v" + rand.nextInt(VERTICES)), "knows");
+            }
+        }
+        g.getRaw().refresh();
+        swWrite.stop();
+
+        StopWatch swLookup = new StopWatch("lookup").start();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertNotNull(g.getRaw().findById(2 + rand.nextInt(VERTICES)));
+        }
+        swLookup.stop();
+
+        StopWatch swTraverse = new StopWatch("traverse").start();
+        long edges = 0;
+        for (int i = 0; i < LOOKUPS / 10; i++) {
+            for (Edge e : g.getVertex("v" + rand.nextInt(VERTICES)).getOutEdges()) {
+                edges++;
+            }
+        }
+        swTraverse.stop();
+        logger.info(type + " " + swWrite + " " + swLookup + " " + swTraverse + " edges:" + edges
+                + " segments:" + g.getRaw().getSegmentCount());
+    }
+}
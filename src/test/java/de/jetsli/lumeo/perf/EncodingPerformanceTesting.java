@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.perf;
+
+import com.tinkerpop.blueprints.pgm.Vertex;
+import de.jetsli.lumeo.SimpleLuceneTestBase;
+import de.jetsli.lumeo.util.LuceneHelper;
+import de.jetsli.lumeo.util.StopWatch;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the allocating and the reusing numeric encoding used for id lookups.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class EncodingPerformanceTesting extends SimpleLuceneTestBase {
+
+    private static final int ITEMS = 10000000;
+    private static final int ROUNDS = 5;
+
+    @Test public void testEncoding() {
+        // warm jvm
+        encodeNew(ITEMS);
+        encodeScratch(ITEMS);
+
+        StopWatch swNew = new StopWatch("new");
+        StopWatch swScratch = new StopWatch("scratch");
+        long sum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            swNew.start();
+            sum += encodeNew(ITEMS);
+            swNew.stop();
+
+            swScratch.start();
+            sum -= encodeScratch(ITEMS);
+            swScratch.stop();
+        }
+        assertEquals(0, sum);
+        // wall clock times depend on jit, gc and load so they are only reported
+        logger.info(swNew + " " + swScratch);
+    }
+
+    @Test public void testFindById() {
+        int items = 100000;
+        for (int i = 0; i < items; i++) {
+            String uId = "" + i;
+            Document doc = g.getRaw().createDocument(uId, i, Vertex.class);
+            g.getRaw().put(uId, i, doc);
+        }
+        refresh();
+
+        StopWatch sw = new StopWatch("findById").start();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < items; i++) {
+                assertNotNull(g.getRaw().findById(i));
+            }
+        }
+        logger.info(sw.stop() + " for " + ROUNDS * items + " lookups");
+    }
+
+    long encodeNew(int items) {
+        long sum = 0;
+        for (int i = 0; i < items; i++) {
+            BytesRef ref = LuceneHelper.newRefFromLong(i);
+            sum += ref.bytes[ref.offset + ref.length - 1];
+        }
+        return sum;
+    }
+
+    long encodeScratch(int items) {
+        long sum = 0;
+        for (int i = 0; i < items; i++) {
+            BytesRef ref = LuceneHelper.scratchLong(i);
+            sum += ref.bytes[ref.offset + ref.length - 1];
+        }
+        return sum;
+    }
+}
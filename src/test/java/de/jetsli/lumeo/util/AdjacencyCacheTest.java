@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2011 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.lumeo.util;
+
+import de.jetsli.lumeo.util.AdjacencyCache.Adjacency;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Peter Karich, info@jetsli.de
+ */
+public class AdjacencyCacheTest {
+
+    private Adjacency adj(int size) {
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i + 1;
+        }
+        return new Adjacency(new long[size], ids, new int[size]);
+    }
+
+    private void access(AdjacencyCache cache, long id, int times) {
+        for (int i = 0; i < times; i++) {
+            cache.get(id, true);
+        }
+    }
+
+    @Test public void testAdmission() {
+        AdjacencyCache cache = new AdjacencyCache(2 * AdjacencyCache.getWeight(adj(10)));
+        access(cache, 1, 5);
+        assertTrue(cache.put(1, true, adj(10), cache.getStamp()));
+        access(cache, 2, 5);
+        assertTrue(cache.put(2, true, adj(10), cache.getStamp()));
+        assertEquals(2, cache.size());
+
+        // a rarely used vertex does not displace the frequent ones
+        access(cache, 3, 1);
+        assertFalse(cache.put(3, true, adj(10), cache.getStamp()));
+        assertEquals(1, cache.getRejected());
+
+        // a frequent one displaces the least recently used entry
+        access(cache, 4, 10);
+        cache.get(2, true);
+        assertTrue(cache.put(4, true, adj(10), cache.getStamp()));
+        assertNull(cache.get(1, true));
+        assertNotNull(cache.get(2, true));
+        assertEquals(10, cache.get(4, true).size());
+        assertTrue(cache.getSizeInBytes() <= cache.getMaxBytes());
+    }
+
+    @Test public void testDegreeWeight() {
+        AdjacencyCache cache = new AdjacencyCache(AdjacencyCache.getWeight(adj(1000)));
+        access(cache, 1, 3);
+        assertTrue(cache.put(1, true, adj(1), cache.getStamp()));
+        // as often used as the small entry but expanding it costs far more
+        access(cache, 2, 3);
+        assertTrue(cache.put(2, true, adj(1000), cache.getStamp()));
+        assertNull(cache.get(1, true));
+    }
+
+    @Test public void testInvalidate() {
+        AdjacencyCache cache = new AdjacencyCache(1 << 20);
+        assertTrue(cache.put(1, true, adj(3), cache.getStamp()));
+        assertTrue(cache.put(1, false, adj(2), cache.getStamp()));
+        cache.invalidate(1);
+        assertNull(cache.get(1, true));
+        assertNull(cache.get(1, false));
+        assertEquals(0, cache.getSizeInBytes());
+
+        // neighbors read before a write are outdated
+        long stamp = cache.getStamp();
+        cache.invalidate(2);
+        assertFalse(cache.put(1, true, adj(3), stamp));
+    }
+
+    @Test public void testTooLarge() {
+        AdjacencyCache cache = new AdjacencyCache(100);
+        assertFalse(cache.put(1, true, adj(10), cache.getStamp()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testLabels() {
+        Adjacency adj = new Adjacency(new long[]{7, 8, 9}, new long[]{1, 2, 3}, new int[]{0, 1, 0});
+        assertArrayEquals(new long[]{1, 3}, adj.getNeighborIds(0));
+        assertArrayEquals(new long[]{1, 2, 3}, adj.getNeighborIds(0, 1));
+        assertArrayEquals(new long[]{1, 2, 3}, adj.getNeighborIds());
+        assertEquals(0, adj.getNeighborIds(2).length);
+    }
+}
@@ -17,6 +17,7 @@ package de.jetsli.lumeo.util;
 
 import de.jetsli.lumeo.RawLucene;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
@@ -57,6 +58,19 @@ public class LuceneHelperTest {
         assertEquals(integer, LuceneHelper.asInt(ref));
     }
 
+    @Test public void testScratchLong() {
+        BytesRef ref = LuceneHelper.scratchLong(1234L);
+        assertEquals(1234L, NumericUtils.prefixCodedToLong(ref));
+        assertEquals(LuceneHelper.newRefFromLong(1234L), ref);
+
+        // same instance but new content
+        assertSame(ref, LuceneHelper.scratchLong(-5L));
+        assertEquals(-5L, NumericUtils.prefixCodedToLong(ref));
+
+        assertSame(ref, LuceneHelper.scratchInt(7));
+        assertEquals(7, NumericUtils.prefixCodedToInt(ref));
+    }
+
     @Test public void testTermMatching() throws Exception {
         RAMDirectory dir = new RAMDirectory();
         IndexWriter w = new IndexWriter(dir, new IndexWriterConfig(RawLucene.VERSION, new KeywordAnalyzer()));